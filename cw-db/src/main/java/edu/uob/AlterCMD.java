@@ -5,7 +5,8 @@ import edu.uob.DBException.*;
 import java.util.*;
 
 public class AlterCMD extends DBcmd {
-    public AlterCMD(ArrayList<Token> tokenStream) {
+    public AlterCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
         this.tokenStream = tokenStream;
     }
 
@@ -42,6 +43,8 @@ public class AlterCMD extends DBcmd {
     public String handleQuery() {
         try {
             checkParameters();
+            // Logged rows have the old columns, so write them to the table file first
+            this.checkpointDatabase();
             this.instantiateDatabaseTable();
         } catch (DBException exception) {
             return exception.getMessage();
@@ -50,8 +53,9 @@ public class AlterCMD extends DBcmd {
             try {
                 this.databaseTable.addColumn(this.attributeList.get(0));
                 this.databaseTable.writeDataToFile();
-
+                this.databaseTable.markIndexesClean();
             } catch (DBException error) {
+                this.invalidateCachedTable();
                 return error.getMessage();
             }
         }
@@ -59,7 +63,9 @@ public class AlterCMD extends DBcmd {
             try {
                 this.databaseTable.dropColumn(this.attributeList.get(0));
                 this.databaseTable.writeDataToFile();
+                this.databaseTable.markIndexesClean();
             } catch (DBException exception) {
+                this.invalidateCachedTable();
                 return exception.getMessage();
             }
         }
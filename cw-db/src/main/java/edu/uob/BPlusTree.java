@@ -0,0 +1,508 @@
+package edu.uob;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+// B+-tree stored in a file of fixed-size pages, used for the secondary indexes created by
+// CREATE INDEX (see ColumnIndex). Every entry is a Key made of a column value and the id of the
+// row holding it, so entries are unique even when values repeat. Leaves are linked left to
+// right, so a range of keys is read by finding its first leaf and following the links.
+//
+// Page 0 is a header holding the root page, the number of pages and whether the tree is known
+// to match the table file (see ColumnIndex). Every other page is a node:
+//   leaf:     type, key count, next leaf page, keys
+//   internal: type, key count, first child page, then (key, child page) pairs
+// Nodes are split when they outgrow a page. Deleted keys are just removed from their leaf and
+// nodes are never merged; an index that has shrunk a lot is compacted when it is next rebuilt.
+//
+// A tree is opened for the duration of one operation and closed straight afterwards, so an
+// index never holds a file open while its table sits in the cache.
+public class BPlusTree implements Closeable {
+    static final int PAGE_SIZE = 4096;
+    // Longer values are indexed as LONG_TEXT keys without the value (see Key)
+    static final int MAX_TEXT_BYTES = 256;
+    private static final int MAGIC = 0x44424958;
+    private static final int VERSION = 1;
+    private static final byte LEAF = 0;
+    private static final byte INTERNAL = 1;
+    private static final int NODE_HEADER_SIZE = 7;
+    // Bulk loading leaves some room in each node for later inserts
+    private static final int BULK_LOAD_FILL = PAGE_SIZE * 9 / 10;
+
+    private final FileChannel channel;
+    private int rootPage;
+    private int pageCount;
+    private boolean clean;
+    private long tableFileLength;
+    private int rowCount;
+    // Nodes read or written during this operation
+    private final HashMap<Integer, Node> nodes = new HashMap<>();
+
+
+    // One index entry. INTEGER keys hold values that Integer.parseInt() accepts, TEXT keys hold
+    // other values in lower case, and LONG_TEXT keys stand for values too long to fit in a page
+    // comfortably. Keys are ordered by tag, then value, then row id.
+    public static class Key implements Comparable<Key> {
+        public static final byte INTEGER = 0;
+        public static final byte TEXT = 1;
+        public static final byte LONG_TEXT = 2;
+
+        private final byte tag;
+        private final int number;
+        private final String text;
+        private final byte[] textBytes;
+        private final int id;
+
+        private Key(byte tag, int number, String text, byte[] textBytes, int id) {
+            this.tag = tag;
+            this.number = number;
+            this.text = text;
+            this.textBytes = textBytes;
+            this.id = id;
+        }
+
+        public static Key integer(int number, int id) {
+            return new Key(INTEGER, number, null, null, id);
+        }
+
+        public static Key text(String text, int id) {
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            if (textBytes.length > MAX_TEXT_BYTES) {
+                return longText(id);
+            }
+            return new Key(TEXT, 0, text, textBytes, id);
+        }
+
+        public static Key longText(int id) {
+            return new Key(LONG_TEXT, 0, null, null, id);
+        }
+
+        public byte getTag() {
+            return this.tag;
+        }
+        public int getId() {
+            return this.id;
+        }
+
+        public int compareTo(Key other) {
+            if (this.tag != other.tag) return Byte.compare(this.tag, other.tag);
+            int valueOrder = switch (this.tag) {
+                case INTEGER -> Integer.compare(this.number, other.number);
+                case TEXT -> this.text.compareTo(other.text);
+                default -> 0;
+            };
+            return valueOrder != 0 ? valueOrder : Integer.compare(this.id, other.id);
+        }
+
+        private int encodedSize() {
+            return switch (this.tag) {
+                case INTEGER -> 9;
+                case TEXT -> 7 + this.textBytes.length;
+                default -> 5;
+            };
+        }
+
+        private void encode(ByteBuffer page) {
+            page.put(this.tag);
+            if (this.tag == INTEGER) {
+                page.putInt(this.number);
+            } else if (this.tag == TEXT) {
+                page.putShort((short) this.textBytes.length);
+                page.put(this.textBytes);
+            }
+            page.putInt(this.id);
+        }
+
+        private static Key decode(ByteBuffer page) {
+            byte tag = page.get();
+            int number = 0;
+            String text = null;
+            byte[] textBytes = null;
+            if (tag == INTEGER) {
+                number = page.getInt();
+            } else if (tag == TEXT) {
+                textBytes = new byte[page.getShort()];
+                page.get(textBytes);
+                text = new String(textBytes, StandardCharsets.UTF_8);
+            }
+            return new Key(tag, number, text, textBytes, page.getInt());
+        }
+    }
+
+
+    private static class Node {
+        private final boolean leaf;
+        private final ArrayList<Key> keys = new ArrayList<>();
+        // Internal nodes: children.get(i) holds the keys below keys.get(i)
+        private final ArrayList<Integer> children = new ArrayList<>();
+        private int nextLeaf;
+
+        private Node(boolean leaf) {
+            this.leaf = leaf;
+        }
+
+        private int encodedSize() {
+            int size = NODE_HEADER_SIZE;
+            for (Key key : this.keys) {
+                size += key.encodedSize() + (this.leaf ? 0 : 4);
+            }
+            return size;
+        }
+    }
+
+
+    private BPlusTree(FileChannel channel) {
+        this.channel = channel;
+    }
+
+
+    // Opens an existing index file
+    public static BPlusTree open(String indexPath) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(indexPath), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        BPlusTree tree = new BPlusTree(channel);
+        try {
+            tree.readHeader();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return tree;
+    }
+
+
+    // Writes a new index file holding the given keys, which must be sorted. The file is built
+    // under a temporary name and moved into place, so a reader never sees half of it.
+    public static void build(String indexPath, List<Key> sortedKeys, boolean clean, long tableFileLength,
+                             int rowCount) throws IOException {
+        Path finalPath = Paths.get(indexPath);
+        Path buildPath = Files.createTempFile(finalPath.toAbsolutePath().getParent(), finalPath.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(buildPath, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                BPlusTree tree = new BPlusTree(channel);
+                tree.pageCount = 1;
+                tree.rootPage = tree.bulkLoad(sortedKeys);
+                tree.clean = clean;
+                tree.tableFileLength = tableFileLength;
+                tree.rowCount = rowCount;
+                tree.writeHeader();
+                channel.force(true);
+            }
+            Files.move(buildPath, finalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(buildPath);
+        }
+    }
+
+
+    public void insert(Key key) throws IOException {
+        Key separator = null;
+        int newPage = -1;
+        // Walk down to the leaf, remembering the path for splits on the way back up
+        List<Integer> path = this.findPath(key);
+        for (int level = path.size() - 1; level >= 0; level--) {
+            int page = path.get(level);
+            Node node = this.readNode(page);
+            if (node.leaf) {
+                int position = lowerBound(node.keys, key);
+                if (position < node.keys.size() && node.keys.get(position).compareTo(key) == 0) return;
+                node.keys.add(position, key);
+            } else {
+                int position = upperBound(node.keys, separator);
+                node.keys.add(position, separator);
+                node.children.add(position + 1, newPage);
+            }
+            if (node.encodedSize() <= PAGE_SIZE) {
+                this.writeNode(page, node);
+                return;
+            }
+            Node right = this.split(node);
+            separator = right.leaf ? right.keys.get(0) : node.keys.remove(node.keys.size() - 1);
+            newPage = this.pageCount++;
+            if (node.leaf) {
+                right.nextLeaf = node.nextLeaf;
+                node.nextLeaf = newPage;
+            }
+            this.writeNode(page, node);
+            this.writeNode(newPage, right);
+            this.writeHeader();
+        }
+        // The root was split: add a new root above the two halves
+        Node root = new Node(false);
+        root.children.add(this.rootPage);
+        root.keys.add(separator);
+        root.children.add(newPage);
+        this.rootPage = this.pageCount++;
+        this.writeNode(this.rootPage, root);
+        this.writeHeader();
+    }
+
+
+    public void delete(Key key) throws IOException {
+        List<Integer> path = this.findPath(key);
+        int leafPage = path.get(path.size() - 1);
+        Node leaf = this.readNode(leafPage);
+        int position = lowerBound(leaf.keys, key);
+        if (position < leaf.keys.size() && leaf.keys.get(position).compareTo(key) == 0) {
+            leaf.keys.remove(position);
+            this.writeNode(leafPage, leaf);
+        }
+    }
+
+
+    // Passes the id of every key from low up to high (both inclusive) to the consumer. With no
+    // high key, the scan runs to the last key with the same tag as low.
+    public void scan(Key low, Key high, IntConsumer ids) throws IOException {
+        List<Integer> path = this.findPath(low);
+        Node leaf = this.readNode(path.get(path.size() - 1));
+        int position = lowerBound(leaf.keys, low);
+        while (true) {
+            for (; position < leaf.keys.size(); position++) {
+                Key key = leaf.keys.get(position);
+                if (key.tag != low.tag || (high != null && key.compareTo(high) > 0)) return;
+                ids.accept(key.id);
+            }
+            if (leaf.nextLeaf == 0) return;
+            leaf = this.readNode(leaf.nextLeaf);
+            position = 0;
+        }
+    }
+
+
+    // The tree is clean when it is known to match the table file of the given length and
+    // number of rows. It is marked dirty, and synced, before it is first changed.
+    public boolean isClean(long tableFileLength, int rowCount) {
+        return this.clean && this.tableFileLength == tableFileLength && this.rowCount == rowCount;
+    }
+
+
+    public void markDirty() throws IOException {
+        if (!this.clean) return;
+        this.clean = false;
+        this.writeHeader();
+        this.channel.force(false);
+    }
+
+
+    public void markClean(long tableFileLength, int rowCount) throws IOException {
+        this.channel.force(false);
+        this.clean = true;
+        this.tableFileLength = tableFileLength;
+        this.rowCount = rowCount;
+        this.writeHeader();
+        this.channel.force(false);
+    }
+
+
+    public void close() throws IOException {
+        this.channel.close();
+    }
+
+
+    // Pages visited from the root down to the leaf that holds (or would hold) the key
+    private List<Integer> findPath(Key key) throws IOException {
+        List<Integer> path = new ArrayList<>();
+        int page = this.rootPage;
+        while (true) {
+            path.add(page);
+            Node node = this.readNode(page);
+            if (node.leaf) return path;
+            page = node.children.get(upperBound(node.keys, key));
+        }
+    }
+
+
+    // Moves the upper half of a node (by size) into a new node. For internal nodes, the last
+    // key left in the lower half is the separator that the caller moves up to the parent.
+    private Node split(Node node) {
+        int halfSize = node.encodedSize() / 2;
+        int size = NODE_HEADER_SIZE;
+        int splitAt = 0;
+        while (splitAt < node.keys.size() - 1 && size < halfSize) {
+            size += node.keys.get(splitAt).encodedSize() + (node.leaf ? 0 : 4);
+            splitAt++;
+        }
+        if (!node.leaf) splitAt = Math.max(splitAt, 2);
+        Node right = new Node(node.leaf);
+        right.keys.addAll(node.keys.subList(splitAt, node.keys.size()));
+        node.keys.subList(splitAt, node.keys.size()).clear();
+        if (!node.leaf) {
+            // The separator (last key kept on the left) goes up, so the left keeps splitAt children
+            right.children.addAll(node.children.subList(splitAt, node.children.size()));
+            node.children.subList(splitAt, node.children.size()).clear();
+        }
+        return right;
+    }
+
+
+    // Writes the sorted keys into full leaves, then builds each level of internal nodes above
+    // them. Returns the root page.
+    private int bulkLoad(List<Key> sortedKeys) throws IOException {
+        List<Integer> levelPages = new ArrayList<>();
+        List<Key> levelFirstKeys = new ArrayList<>();
+        Node leaf = new Node(true);
+        int leafPage = this.pageCount++;
+        for (Key key : sortedKeys) {
+            if (!leaf.keys.isEmpty() && leaf.encodedSize() + key.encodedSize() > BULK_LOAD_FILL) {
+                leaf.nextLeaf = this.pageCount;
+                this.writeNode(leafPage, leaf);
+                levelPages.add(leafPage);
+                levelFirstKeys.add(leaf.keys.get(0));
+                leaf = new Node(true);
+                leafPage = this.pageCount++;
+            }
+            leaf.keys.add(key);
+        }
+        this.writeNode(leafPage, leaf);
+        levelPages.add(leafPage);
+        levelFirstKeys.add(leaf.keys.isEmpty() ? null : leaf.keys.get(0));
+
+        while (levelPages.size() > 1) {
+            List<Integer> parentPages = new ArrayList<>();
+            List<Key> parentFirstKeys = new ArrayList<>();
+            Node parent = null;
+            int parentPage = -1;
+            for (int i = 0; i < levelPages.size(); i++) {
+                Key separator = levelFirstKeys.get(i);
+                if (parent != null && parent.encodedSize() + separator.encodedSize() + 4 > BULK_LOAD_FILL) {
+                    this.writeNode(parentPage, parent);
+                    parent = null;
+                }
+                if (parent == null) {
+                    parent = new Node(false);
+                    parentPage = this.pageCount++;
+                    parentPages.add(parentPage);
+                    parentFirstKeys.add(separator);
+                } else {
+                    parent.keys.add(separator);
+                }
+                parent.children.add(levelPages.get(i));
+            }
+            this.writeNode(parentPage, parent);
+            levelPages = parentPages;
+            levelFirstKeys = parentFirstKeys;
+        }
+        return levelPages.get(0);
+    }
+
+
+    private Node readNode(int page) throws IOException {
+        Node node = this.nodes.get(page);
+        if (node != null) return node;
+        ByteBuffer buffer = this.readPage(page);
+        node = new Node(buffer.get() == LEAF);
+        int keyCount = buffer.getShort();
+        int link = buffer.getInt();
+        if (node.leaf) {
+            node.nextLeaf = link;
+        } else {
+            node.children.add(link);
+        }
+        for (int i = 0; i < keyCount; i++) {
+            node.keys.add(Key.decode(buffer));
+            if (!node.leaf) node.children.add(buffer.getInt());
+        }
+        this.nodes.put(page, node);
+        return node;
+    }
+
+
+    private void writeNode(int page, Node node) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        buffer.put(node.leaf ? LEAF : INTERNAL);
+        buffer.putShort((short) node.keys.size());
+        buffer.putInt(node.leaf ? node.nextLeaf : node.children.get(0));
+        for (int i = 0; i < node.keys.size(); i++) {
+            node.keys.get(i).encode(buffer);
+            if (!node.leaf) buffer.putInt(node.children.get(i + 1));
+        }
+        this.writePage(page, buffer);
+        this.nodes.put(page, node);
+    }
+
+
+    private void readHeader() throws IOException {
+        ByteBuffer header = this.readPage(0);
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException("Not an index file");
+        }
+        this.clean = header.get() == 1;
+        this.rootPage = header.getInt();
+        this.pageCount = header.getInt();
+        this.tableFileLength = header.getLong();
+        this.rowCount = header.getInt();
+    }
+
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.put((byte) (this.clean ? 1 : 0));
+        header.putInt(this.rootPage);
+        header.putInt(this.pageCount);
+        header.putLong(this.tableFileLength);
+        header.putInt(this.rowCount);
+        this.writePage(0, header);
+    }
+
+
+    private ByteBuffer readPage(int page) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        long position = (long) page * PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Index file is truncated");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+    private void writePage(int page, ByteBuffer buffer) throws IOException {
+        buffer.position(0).limit(PAGE_SIZE);
+        long position = (long) page * PAGE_SIZE;
+        while (buffer.hasRemaining()) {
+            this.channel.write(buffer, position + buffer.position());
+        }
+    }
+
+
+    // Position of the first key that is not less than the given key
+    private static int lowerBound(List<Key> keys, Key key) {
+        int low = 0;
+        int high = keys.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys.get(middle).compareTo(key) < 0) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+
+    // Position of the first key that is greater than the given key
+    private static int upperBound(List<Key> keys, Key key) {
+        int low = 0;
+        int high = keys.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (keys.get(middle).compareTo(key) <= 0) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+}
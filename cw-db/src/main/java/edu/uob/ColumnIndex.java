@@ -0,0 +1,307 @@
+package edu.uob;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+// Secondary index on one column of a table, created by CREATE INDEX and stored as a B+-tree in
+// <table>.<column>.idx next to the table file. Each entry maps a value of the column to the id
+// of a row holding it. The ids are turned into row positions through the table's id index.
+//
+// Values are indexed the way conditions compare them: values that Integer.parseInt() accepts
+// as numbers, and everything else as lower case text. A condition with ==, <, >, <= or >= then
+// reads one range of the tree. The rows found are still tested against the whole condition,
+// so the index only has to be sure not to miss any row.
+//
+// The tree file is changed as soon as a command has finished changing the table, which is
+// before the change reaches the table file. So the tree is marked dirty before it is first
+// changed, and marked clean again by the next checkpoint. A table read from disk rebuilds any
+// index that is not clean, or that was built for a different version of the table file.
+//
+// An NGRAM index (CREATE INDEX ... USING NGRAM) is kept in the same kind of tree, in
+// <table>.<column>.ngram, but holds one entry for each distinct trigram (three character
+// substring) of each lower case value. It helps LIKE conditions instead: a row can only match
+// a pattern if its value holds every trigram of the text the pattern requires.
+public class ColumnIndex {
+    public static final String FILE_EXTENSION = ".idx";
+    public static final String NGRAM_FILE_EXTENSION = ".ngram";
+    private static final int NGRAM_LENGTH = 3;
+
+    public enum IndexType { ORDERED, NGRAM }
+
+    private final String columnName;
+    private final IndexType indexType;
+    private final String indexPath;
+    // Changes made by the current command, written to the tree by applyChanges()
+    private final List<BPlusTree.Key> pendingKeys = new ArrayList<>();
+    private final List<Boolean> pendingInserts = new ArrayList<>();
+
+
+    public ColumnIndex(String tablePath, String columnName, IndexType indexType) {
+        this.columnName = columnName.toLowerCase();
+        this.indexType = indexType;
+        this.indexPath = getIndexPath(tablePath, this.columnName, indexType);
+    }
+
+
+    public static String getIndexPath(String tablePath, String columnName, IndexType indexType) {
+        String extension = indexType == IndexType.NGRAM ? NGRAM_FILE_EXTENSION : FILE_EXTENSION;
+        return tablePath.substring(0, tablePath.lastIndexOf('.')) + "." + columnName.toLowerCase() + extension;
+    }
+
+
+    // The indexes of a table, found from the index files next to the table
+    public static List<ColumnIndex> findIndexes(String tablePath, String tableName) {
+        List<ColumnIndex> indexes = new ArrayList<>();
+        File[] files = new File(tablePath).getParentFile().listFiles();
+        if (files == null) return indexes;
+        String prefix = tableName + ".";
+        for (File file : files) {
+            String fileName = file.getName();
+            if (!fileName.startsWith(prefix)) continue;
+            for (IndexType indexType : IndexType.values()) {
+                String extension = indexType == IndexType.NGRAM ? NGRAM_FILE_EXTENSION : FILE_EXTENSION;
+                if (fileName.endsWith(extension)) {
+                    String columnName = fileName.substring(prefix.length(), fileName.length() - extension.length());
+                    indexes.add(new ColumnIndex(tablePath, columnName, indexType));
+                }
+            }
+        }
+        return indexes;
+    }
+
+
+    public String getColumnName() {
+        return this.columnName;
+    }
+    public IndexType getIndexType() {
+        return this.indexType;
+    }
+
+
+    // The key a cell is indexed under, or null for an empty cell (which no condition matches)
+    public static BPlusTree.Key keyFor(String value, int id) {
+        if (value == null) return null;
+        long integerValue = ColumnVector.parseInteger(value);
+        if (integerValue != ColumnVector.NOT_AN_INTEGER) {
+            return BPlusTree.Key.integer((int) integerValue, id);
+        }
+        return BPlusTree.Key.text(value.toLowerCase(), id);
+    }
+
+
+    // The keys a cell is indexed under by this index
+    public List<BPlusTree.Key> keysFor(String value, int id) {
+        if (this.indexType == IndexType.ORDERED) {
+            BPlusTree.Key key = keyFor(value, id);
+            return key == null ? List.of() : List.of(key);
+        }
+        if (value == null) return List.of();
+        List<BPlusTree.Key> keys = new ArrayList<>();
+        for (String ngram : ngramsOf(value.toLowerCase())) {
+            keys.add(BPlusTree.Key.text(ngram, id));
+        }
+        return keys;
+    }
+
+
+    // The distinct trigrams of some text. Trigrams holding half of a surrogate pair are left
+    // out, since they cannot be stored as UTF-8.
+    private static LinkedHashSet<String> ngramsOf(String text) {
+        LinkedHashSet<String> ngrams = new LinkedHashSet<>();
+        for (int start = 0; start + NGRAM_LENGTH <= text.length(); start++) {
+            String ngram = text.substring(start, start + NGRAM_LENGTH);
+            if (ngram.chars().noneMatch(character -> Character.isSurrogate((char) character))) ngrams.add(ngram);
+        }
+        return ngrams;
+    }
+
+
+    // Writes a new tree holding the given keys (in any order). clean says whether the keys match
+    // the table file as it is on disk now.
+    public void build(List<BPlusTree.Key> keys, boolean clean, long tableFileLength, int rowCount)
+            throws DBException {
+        Collections.sort(keys);
+        try {
+            BPlusTree.build(this.indexPath, keys, clean, tableFileLength, rowCount);
+        } catch (IOException e) {
+            throw new DBException("Failed to build the index on " + this.columnName);
+        }
+        this.pendingKeys.clear();
+        this.pendingInserts.clear();
+    }
+
+
+    // True if the index file exists and matches the table file
+    public boolean isUpToDate(long tableFileLength, int rowCount) {
+        if (!new File(this.indexPath).exists()) return false;
+        try (BPlusTree tree = BPlusTree.open(this.indexPath)) {
+            return tree.isClean(tableFileLength, rowCount);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+
+    // Queues the keys of a cell to be added to or removed from the tree
+    public void addChange(String value, int id, boolean insert) {
+        for (BPlusTree.Key key : this.keysFor(value, id)) {
+            this.pendingKeys.add(key);
+            this.pendingInserts.add(insert);
+        }
+    }
+
+
+    public boolean hasPendingChanges() {
+        return !this.pendingKeys.isEmpty();
+    }
+
+
+    public void applyChanges() throws DBException {
+        if (this.pendingKeys.isEmpty()) return;
+        try (BPlusTree tree = BPlusTree.open(this.indexPath)) {
+            tree.markDirty();
+            for (int i = 0; i < this.pendingKeys.size(); i++) {
+                if (this.pendingInserts.get(i)) {
+                    tree.insert(this.pendingKeys.get(i));
+                } else {
+                    tree.delete(this.pendingKeys.get(i));
+                }
+            }
+        } catch (IOException e) {
+            throw new DBException("Failed to update the index on " + this.columnName);
+        } finally {
+            this.pendingKeys.clear();
+            this.pendingInserts.clear();
+        }
+    }
+
+
+    public void markClean(long tableFileLength, int rowCount) throws DBException {
+        try (BPlusTree tree = BPlusTree.open(this.indexPath)) {
+            tree.markClean(tableFileLength, rowCount);
+        } catch (IOException e) {
+            throw new DBException("Failed to update the index on " + this.columnName);
+        }
+    }
+
+
+    // Passes the ids of the rows that may satisfy "column comparator value" to the consumer.
+    // Returns false, without reading the index, for comparators it cannot help with.
+    public boolean findCandidates(String comparator, String conditionValue, IntConsumer ids) throws DBException {
+        if (this.indexType == IndexType.NGRAM) return this.findNgramCandidates(comparator, conditionValue, ids);
+        long conditionInteger = ColumnVector.parseInteger(conditionValue);
+        BPlusTree.Key low;
+        BPlusTree.Key high;
+        if (conditionInteger != ColumnVector.NOT_AN_INTEGER) {
+            // Only numeric cells can match a numeric value
+            int number = (int) conditionInteger;
+            BPlusTree.Key first = BPlusTree.Key.integer(number, Integer.MIN_VALUE);
+            BPlusTree.Key last = BPlusTree.Key.integer(number, Integer.MAX_VALUE);
+            switch (comparator) {
+                case "==" -> { low = first; high = last; }
+                case ">", ">=" -> { low = first; high = null; }
+                case "<", "<=" -> { low = BPlusTree.Key.integer(Integer.MIN_VALUE, Integer.MIN_VALUE); high = last; }
+                default -> { return false; }
+            }
+        } else {
+            BPlusTree.Key first = BPlusTree.Key.text(conditionValue, Integer.MIN_VALUE);
+            BPlusTree.Key last = BPlusTree.Key.text(conditionValue, Integer.MAX_VALUE);
+            if (first.getTag() != BPlusTree.Key.TEXT) return false;
+            switch (comparator) {
+                case "==" -> { low = first; high = last; }
+                case ">", ">=" -> { low = first; high = null; }
+                case "<", "<=" -> { low = BPlusTree.Key.text("", Integer.MIN_VALUE); high = last; }
+                default -> { return false; }
+            }
+        }
+        try (BPlusTree tree = BPlusTree.open(this.indexPath)) {
+            tree.scan(low, high, ids);
+            if (low.getTag() == BPlusTree.Key.TEXT) {
+                // Values too long to be keys could be anywhere in the range
+                tree.scan(BPlusTree.Key.longText(Integer.MIN_VALUE), null, ids);
+            }
+        } catch (IOException e) {
+            throw new DBException("Failed to read the index on " + this.columnName);
+        }
+        return true;
+    }
+
+
+    // Passes the ids of the rows holding every trigram that the LIKE pattern requires
+    private boolean findNgramCandidates(String comparator, String pattern, IntConsumer ids) throws DBException {
+        if (!comparator.equals("like")) return false;
+        LinkedHashSet<String> ngrams = new LinkedHashSet<>();
+        for (String requiredText : LikeMatcher.forPattern(pattern).getRequiredText()) {
+            ngrams.addAll(ngramsOf(requiredText));
+        }
+        if (ngrams.isEmpty()) return false;
+        int[] candidates = null;
+        try (BPlusTree tree = BPlusTree.open(this.indexPath)) {
+            for (String ngram : ngrams) {
+                int[] ngramIds = readIds(tree, ngram);
+                candidates = candidates == null ? ngramIds : intersect(candidates, ngramIds);
+                if (candidates.length == 0) break;
+            }
+        } catch (IOException e) {
+            throw new DBException("Failed to read the index on " + this.columnName);
+        }
+        for (int id : candidates) {
+            ids.accept(id);
+        }
+        return true;
+    }
+
+
+    // The ids of the rows holding a trigram. The tree orders them by id.
+    private static int[] readIds(BPlusTree tree, String ngram) throws IOException {
+        int[][] found = {new int[16]};
+        int[] numberFound = new int[1];
+        tree.scan(BPlusTree.Key.text(ngram, Integer.MIN_VALUE), BPlusTree.Key.text(ngram, Integer.MAX_VALUE), id -> {
+            if (numberFound[0] == found[0].length) found[0] = Arrays.copyOf(found[0], numberFound[0] * 2);
+            found[0][numberFound[0]++] = id;
+        });
+        return Arrays.copyOf(found[0], numberFound[0]);
+    }
+
+
+    private static int[] intersect(int[] ids1, int[] ids2) {
+        int[] common = new int[Math.min(ids1.length, ids2.length)];
+        int numberCommon = 0;
+        for (int position1 = 0, position2 = 0; position1 < ids1.length && position2 < ids2.length; ) {
+            if (ids1[position1] < ids2[position2]) {
+                position1++;
+            } else if (ids1[position1] > ids2[position2]) {
+                position2++;
+            } else {
+                common[numberCommon++] = ids1[position1];
+                position1++;
+                position2++;
+            }
+        }
+        return Arrays.copyOf(common, numberCommon);
+    }
+
+
+    // Passes the ids of every row with a value in the column to the consumer, in order of
+    // their values
+    public void scanInOrder(IntConsumer ids) throws DBException {
+        try (BPlusTree tree = BPlusTree.open(this.indexPath)) {
+            tree.scan(BPlusTree.Key.integer(Integer.MIN_VALUE, Integer.MIN_VALUE), null, ids);
+            tree.scan(BPlusTree.Key.text("", Integer.MIN_VALUE), null, ids);
+            tree.scan(BPlusTree.Key.longText(Integer.MIN_VALUE), null, ids);
+        } catch (IOException e) {
+            throw new DBException("Failed to read the index on " + this.columnName);
+        }
+    }
+
+
+    public void deleteFile() {
+        new File(this.indexPath).delete();
+    }
+}
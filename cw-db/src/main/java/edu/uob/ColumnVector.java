@@ -0,0 +1,477 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.function.IntPredicate;
+import edu.uob.Token.Comparator;
+
+// The values of one column of a DBTable, stored in a typed array rather than as a String per
+// cell. A column starts out untyped and takes the type of the first value put into it:
+//   INTEGER - values that Integer.parseInt() reads back to exactly the same text ("65", "-3")
+//   BOOLEAN - TRUE or FALSE (upper case, as they are written in queries)
+//   DOUBLE  - values that Double.toString() writes back to exactly the same text ("3.5")
+//   STRING  - anything else, dictionary encoded so that repeated values are stored once
+// If a value arrives that does not fit the column's type, the column is converted to STRING.
+// Only values whose text can be rebuilt exactly are stored as primitives, so a table always
+// reads and writes back the same text it was given. Empty cells are kept in a null bitmap.
+public class ColumnVector {
+    public enum ColumnType {
+        UNTYPED,
+        INTEGER,
+        DOUBLE,
+        BOOLEAN,
+        STRING
+    }
+
+    // Returned by parseInteger() for text that Integer.parseInt() would reject
+    public static final long NOT_AN_INTEGER = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final byte MATCH = 1;
+    private static final byte NO_MATCH = 2;
+
+    private ColumnType columnType = ColumnType.UNTYPED;
+    private int size;
+    private int capacity;
+    private final BitSet nulls = new BitSet();
+    // INTEGER values, or dictionary codes for STRING columns. Only the array used by the
+    // column's type is allocated.
+    private int[] ints;
+    private double[] doubles;
+    private final BitSet booleans = new BitSet();
+    private ArrayList<DictionaryEntry> dictionary;
+    private HashMap<String, Integer> dictionaryCodes;
+    private long dictionarySize;
+
+
+    // A distinct value of a STRING column. The lower case form and whether Integer.parseInt()
+    // accepts it are worked out once, when the value is first stored.
+    private static class DictionaryEntry {
+        private final String value;
+        private final String lowerCaseValue;
+        private final long integerValue;
+
+        private DictionaryEntry(String value) {
+            this.value = value;
+            this.lowerCaseValue = value.toLowerCase();
+            this.integerValue = parseInteger(value);
+        }
+    }
+
+
+    public int size() {
+        return this.size;
+    }
+
+
+    public ColumnType getColumnType() {
+        return this.columnType;
+    }
+
+
+    public boolean isNull(int rowIndex) {
+        return this.nulls.get(rowIndex);
+    }
+
+
+    public void add(String value) {
+        this.ensureCapacity(this.size + 1);
+        this.size++;
+        this.store(this.size - 1, value);
+    }
+
+
+    public void set(int rowIndex, String value) {
+        this.store(rowIndex, value);
+        if (this.columnType == ColumnType.STRING && this.dictionary.size() > 2 * this.size + INITIAL_CAPACITY) {
+            // Updates leave values in the dictionary that no row uses any more
+            this.rebuildDictionary();
+        }
+    }
+
+
+    public String get(int rowIndex) {
+        if (this.nulls.get(rowIndex)) return null;
+        return switch (this.columnType) {
+            case INTEGER -> Integer.toString(this.ints[rowIndex]);
+            case DOUBLE -> Double.toString(this.doubles[rowIndex]);
+            case BOOLEAN -> this.booleans.get(rowIndex) ? "TRUE" : "FALSE";
+            case STRING -> this.dictionary.get(this.ints[rowIndex]).value;
+            default -> null;
+        };
+    }
+
+
+    // The value of a cell of an INTEGER column
+    public int getInt(int rowIndex) {
+        return this.ints[rowIndex];
+    }
+
+
+    // Same as get(), but in lower case. Lower case strings are kept in the dictionary, so this
+    // does not create a new String for STRING or BOOLEAN columns.
+    public String getLowerCase(int rowIndex) {
+        if (this.nulls.get(rowIndex)) return null;
+        return switch (this.columnType) {
+            case INTEGER -> Integer.toString(this.ints[rowIndex]);
+            case DOUBLE -> Double.toString(this.doubles[rowIndex]).toLowerCase();
+            case BOOLEAN -> this.booleans.get(rowIndex) ? "true" : "false";
+            case STRING -> this.dictionary.get(this.ints[rowIndex]).lowerCaseValue;
+            default -> null;
+        };
+    }
+
+
+    public void remove(int rowIndex) {
+        int rowsAfter = this.size - rowIndex - 1;
+        if (this.ints != null) System.arraycopy(this.ints, rowIndex + 1, this.ints, rowIndex, rowsAfter);
+        if (this.doubles != null) System.arraycopy(this.doubles, rowIndex + 1, this.doubles, rowIndex, rowsAfter);
+        for (int row = rowIndex; row < this.size - 1; row++) {
+            this.nulls.set(row, this.nulls.get(row + 1));
+            this.booleans.set(row, this.booleans.get(row + 1));
+        }
+        this.size--;
+        this.nulls.clear(this.size);
+        this.booleans.clear(this.size);
+    }
+
+
+    // Removes every row whose bit is set, in one pass
+    public void removeRows(BitSet removedRows) {
+        int keptRows = 0;
+        for (int row = 0; row < this.size; row++) {
+            if (removedRows.get(row)) continue;
+            if (this.ints != null) this.ints[keptRows] = this.ints[row];
+            if (this.doubles != null) this.doubles[keptRows] = this.doubles[row];
+            this.nulls.set(keptRows, this.nulls.get(row));
+            this.booleans.set(keptRows, this.booleans.get(row));
+            keptRows++;
+        }
+        this.nulls.clear(keptRows, this.size);
+        this.booleans.clear(keptRows, this.size);
+        this.size = keptRows;
+    }
+
+
+    // Compiles a test of one cell against "comparator conditionValue" for every row of the
+    // column. This gives the same answers as comparing the cell's text, with Integer.parseInt()
+    // deciding what is a number, but the condition value is parsed once and the test is chosen
+    // for the column's type: integers are compared without parsing (see IntegerMatcher), STRING
+    // columns test each distinct value only once, and BOOLEAN columns only ever test "true" and
+    // "false". The test is only valid until the column is next changed.
+    public IntPredicate compileMatcher(Comparator comparator, String conditionValue) {
+        long conditionInteger = parseInteger(conditionValue);
+        boolean like = comparator == Comparator.LIKE;
+        StringMatcher stringMatcher = new StringMatcher(comparator, conditionValue);
+        switch (this.columnType) {
+            case UNTYPED:
+                // Columns only get a type once they hold a value, so every cell is empty
+                return rowIndex -> false;
+            case INTEGER:
+                if (like) break;
+                if (conditionInteger == NOT_AN_INTEGER) return rowIndex -> false;
+                return new IntegerMatcher(this.ints, this.nulls, comparator, (int) conditionInteger);
+            case STRING:
+                // Results for each dictionary code: 0 until tested, then MATCH or NO_MATCH
+                byte[] results = new byte[this.dictionary.size()];
+                return rowIndex -> {
+                    if (this.nulls.get(rowIndex)) return false;
+                    int code = this.ints[rowIndex];
+                    if (results[code] == 0) {
+                        results[code] = matchesEntry(this.dictionary.get(code), comparator, stringMatcher,
+                                conditionInteger) ? MATCH : NO_MATCH;
+                    }
+                    return results[code] == MATCH;
+                };
+            case BOOLEAN:
+                if (!like && conditionInteger != NOT_AN_INTEGER) return rowIndex -> false;
+                boolean trueMatches = stringMatcher.matches("true");
+                boolean falseMatches = stringMatcher.matches("false");
+                return rowIndex -> !this.nulls.get(rowIndex) &&
+                        (this.booleans.get(rowIndex) ? trueMatches : falseMatches);
+            case DOUBLE:
+                // Doubles keep their text ordering, but equality can be decided on the value. An
+                // exponent is upper case in the stored text but compared in lower case, so a
+                // condition value with an upper case exponent never matches.
+                if (!like && conditionInteger != NOT_AN_INTEGER) return rowIndex -> false;
+                if ((comparator == Comparator.EQUAL || comparator == Comparator.NOT_EQUAL) &&
+                        conditionValue.indexOf('E') < 0) {
+                    double conditionDouble = parseCanonicalDouble(conditionValue);
+                    if (!Double.isNaN(conditionDouble)) {
+                        boolean equalMatches = comparator == Comparator.EQUAL;
+                        return rowIndex -> !this.nulls.get(rowIndex) &&
+                                (Double.compare(this.doubles[rowIndex], conditionDouble) == 0) == equalMatches;
+                    }
+                }
+                break;
+        }
+        return rowIndex -> !this.nulls.get(rowIndex) && stringMatcher.matches(this.getLowerCase(rowIndex));
+    }
+
+
+    private static boolean matchesEntry(DictionaryEntry entry, Comparator comparator, StringMatcher stringMatcher,
+                                        long conditionInteger) {
+        boolean like = comparator == Comparator.LIKE;
+        if (!like && entry.integerValue != NOT_AN_INTEGER) {
+            return conditionInteger != NOT_AN_INTEGER &&
+                    compareNumerics((int) entry.integerValue, comparator, (int) conditionInteger);
+        }
+        if (!like && conditionInteger != NOT_AN_INTEGER) return false;
+        return stringMatcher.matches(entry.lowerCaseValue);
+    }
+
+
+    // Rough number of bytes used by the column's values
+    public long getEstimatedSize() {
+        long arraySize = switch (this.columnType) {
+            case INTEGER, STRING -> 4L * this.capacity;
+            case DOUBLE -> 8L * this.capacity;
+            default -> 0;
+        };
+        return arraySize + this.size / 8 + this.dictionarySize;
+    }
+
+
+    // Integer.parseInt() without the exception: returns the value, or NOT_AN_INTEGER
+    public static long parseInteger(String text) {
+        if (text == null || text.isEmpty()) return NOT_AN_INTEGER;
+        int start = 0;
+        boolean negative = false;
+        char first = text.charAt(0);
+        if (first == '-' || first == '+') {
+            if (text.length() == 1) return NOT_AN_INTEGER;
+            negative = first == '-';
+            start = 1;
+        }
+        long value = 0;
+        for (int i = start; i < text.length(); i++) {
+            int digit = Character.digit(text.charAt(i), 10);
+            if (digit < 0) return NOT_AN_INTEGER;
+            value = value * 10 + digit;
+            if (value > 1L + Integer.MAX_VALUE) return NOT_AN_INTEGER;
+        }
+        if (negative) value = -value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) return NOT_AN_INTEGER;
+        return value;
+    }
+
+
+    private void store(int rowIndex, String value) {
+        if (value == null) {
+            this.nulls.set(rowIndex);
+            return;
+        }
+        if (this.columnType == ColumnType.UNTYPED) {
+            this.setColumnType(typeOf(value));
+        }
+        if (!this.storeTyped(rowIndex, value)) {
+            this.convertToStrings();
+            this.storeTyped(rowIndex, value);
+        }
+        this.nulls.clear(rowIndex);
+    }
+
+
+    // Stores a value if it fits the column's type, and returns false if it does not
+    private boolean storeTyped(int rowIndex, String value) {
+        switch (this.columnType) {
+            case INTEGER:
+                long integerValue = parseCanonicalInteger(value);
+                if (integerValue == NOT_AN_INTEGER) return false;
+                this.ints[rowIndex] = (int) integerValue;
+                return true;
+            case DOUBLE:
+                double doubleValue = parseCanonicalDouble(value);
+                if (Double.isNaN(doubleValue)) return false;
+                this.doubles[rowIndex] = doubleValue;
+                return true;
+            case BOOLEAN:
+                if (!value.equals("TRUE") && !value.equals("FALSE")) return false;
+                this.booleans.set(rowIndex, value.equals("TRUE"));
+                return true;
+            default:
+                this.ints[rowIndex] = this.encode(value);
+                return true;
+        }
+    }
+
+
+    private static ColumnType typeOf(String value) {
+        if (parseCanonicalInteger(value) != NOT_AN_INTEGER) return ColumnType.INTEGER;
+        if (value.equals("TRUE") || value.equals("FALSE")) return ColumnType.BOOLEAN;
+        if (!Double.isNaN(parseCanonicalDouble(value))) return ColumnType.DOUBLE;
+        return ColumnType.STRING;
+    }
+
+
+    // Returns the value if it is written exactly as Integer.toString() would write it
+    private static long parseCanonicalInteger(String value) {
+        long integerValue = parseInteger(value);
+        if (integerValue == NOT_AN_INTEGER || !Long.toString(integerValue).equals(value)) return NOT_AN_INTEGER;
+        return integerValue;
+    }
+
+
+    // Returns the value if it is written exactly as Double.toString() would write it, else NaN
+    private static double parseCanonicalDouble(String value) {
+        // Cheap test first, so ordinary strings are not run through the number parser
+        if (value.indexOf('.') < 0 || value.length() > 32) return Double.NaN;
+        try {
+            double doubleValue = Double.parseDouble(value);
+            return Double.toString(doubleValue).equals(value) ? doubleValue : Double.NaN;
+        } catch (NumberFormatException error) {
+            return Double.NaN;
+        }
+    }
+
+
+    private void setColumnType(ColumnType columnType) {
+        this.columnType = columnType;
+        this.ints = null;
+        this.doubles = null;
+        this.booleans.clear();
+        this.dictionary = null;
+        this.dictionaryCodes = null;
+        this.dictionarySize = 0;
+        switch (columnType) {
+            case INTEGER -> this.ints = new int[this.capacity];
+            case DOUBLE -> this.doubles = new double[this.capacity];
+            case STRING -> {
+                this.ints = new int[this.capacity];
+                this.startDictionary();
+            }
+            default -> { }
+        }
+    }
+
+
+    private void startDictionary() {
+        this.dictionary = new ArrayList<>();
+        this.dictionaryCodes = new HashMap<>();
+        this.dictionarySize = 0;
+    }
+
+
+    private int encode(String value) {
+        Integer code = this.dictionaryCodes.get(value);
+        if (code == null) {
+            code = this.dictionary.size();
+            this.dictionary.add(new DictionaryEntry(value));
+            this.dictionaryCodes.put(value, code);
+            this.dictionarySize += ENTRY_OVERHEAD + 4L * value.length();
+        }
+        return code;
+    }
+
+
+    // Re-stores every value as a dictionary-encoded string, once a value that does not fit the
+    // column's type has been put into it
+    private void convertToStrings() {
+        String[] values = new String[this.size];
+        for (int row = 0; row < this.size; row++) {
+            values[row] = this.get(row);
+        }
+        this.setColumnType(ColumnType.STRING);
+        for (int row = 0; row < this.size; row++) {
+            if (values[row] != null) this.ints[row] = this.encode(values[row]);
+        }
+    }
+
+
+    private void rebuildDictionary() {
+        ArrayList<DictionaryEntry> oldDictionary = this.dictionary;
+        this.startDictionary();
+        for (int row = 0; row < this.size; row++) {
+            if (!this.nulls.get(row)) this.ints[row] = this.encode(oldDictionary.get(this.ints[row]).value);
+        }
+    }
+
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= this.capacity) return;
+        this.capacity = Math.max(capacity, Math.max(INITIAL_CAPACITY, this.capacity * 2));
+        if (this.ints != null) this.ints = Arrays.copyOf(this.ints, this.capacity);
+        if (this.doubles != null) this.doubles = Arrays.copyOf(this.doubles, this.capacity);
+    }
+
+
+    private static boolean compareNumerics(int comparisonValue1, Comparator comparator, int comparisonValue2) {
+        return switch (comparator) {
+            case EQUAL -> comparisonValue1 == comparisonValue2;
+            case GREATER -> comparisonValue1 > comparisonValue2;
+            case LESS -> comparisonValue1 < comparisonValue2;
+            case GREATER_OR_EQUAL -> comparisonValue1 >= comparisonValue2;
+            case LESS_OR_EQUAL -> comparisonValue1 <= comparisonValue2;
+            case NOT_EQUAL -> comparisonValue1 != comparisonValue2;
+            default -> false;
+        };
+    }
+
+
+    // Compares the cells of an INTEGER column with an integer. Its parts are public so that
+    // PredicateCompiler can generate the same comparison inline.
+    public static class IntegerMatcher implements IntPredicate {
+        private final int[] ints;
+        private final BitSet nulls;
+        private final Comparator comparator;
+        private final int conditionInteger;
+
+        private IntegerMatcher(int[] ints, BitSet nulls, Comparator comparator, int conditionInteger) {
+            this.ints = ints;
+            this.nulls = nulls;
+            this.comparator = comparator;
+            this.conditionInteger = conditionInteger;
+        }
+
+        public boolean test(int rowIndex) {
+            return !this.nulls.get(rowIndex) &&
+                    compareNumerics(this.ints[rowIndex], this.comparator, this.conditionInteger);
+        }
+
+        // Getters for the parts of the comparison
+        public int[] getInts() {
+            return this.ints;
+        }
+        public BitSet getNulls() {
+            return this.nulls;
+        }
+        public Comparator getComparator() {
+            return this.comparator;
+        }
+        public int getConditionInteger() {
+            return this.conditionInteger;
+        }
+    }
+
+
+    // Compares cells as lower case text against a condition value. The LIKE matcher is looked
+    // up the first time it is needed, and then reused for every cell.
+    private static class StringMatcher {
+        private final Comparator comparator;
+        private final String conditionValue;
+        private LikeMatcher likeMatcher;
+
+        private StringMatcher(Comparator comparator, String conditionValue) {
+            this.comparator = comparator;
+            this.conditionValue = conditionValue;
+        }
+
+        private boolean matches(String cellValue) {
+            return switch (this.comparator) {
+                case EQUAL -> cellValue.equals(this.conditionValue);
+                case NOT_EQUAL -> !cellValue.equals(this.conditionValue);
+                case GREATER -> cellValue.compareTo(this.conditionValue) > 0;
+                case LESS -> cellValue.compareTo(this.conditionValue) < 0;
+                case GREATER_OR_EQUAL -> cellValue.compareTo(this.conditionValue) >= 0;
+                case LESS_OR_EQUAL -> cellValue.compareTo(this.conditionValue) <= 0;
+                case LIKE -> {
+                    // LIKE - regex pattern matching
+                    if (this.likeMatcher == null) this.likeMatcher = LikeMatcher.forPattern(this.conditionValue);
+                    yield this.likeMatcher.matches(cellValue);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package edu.uob;
+
+import java.util.List;
+
+import edu.uob.Token.BooleanOperator;
+import edu.uob.Token.TokenType;
+
+// Builds the Condition tree of a WHERE clause in one pass over its tokens, by recursive descent:
+//
+//     <Condition>  ::= <AndChain> | <AndChain> "OR" <Condition>
+//     <AndChain>   ::= <Operand> | <Operand> "AND" <AndChain>
+//     <Operand>    ::= "(" <Condition> ")" | [AttributeName] <Comparator> [Value]
+//
+// So AND binds more tightly than OR, brackets override both, and a chain of the same operator
+// is grouped from the left. Chains are built in a loop, so only brackets make the parser recurse.
+public class ConditionParser {
+    private final List<Token> tokens;
+    private int position;
+
+
+    private ConditionParser(List<Token> tokens) {
+        this.tokens = tokens;
+    }
+
+
+    public static Condition parse(List<Token> tokens) throws DBException {
+        ConditionParser parser = new ConditionParser(tokens);
+        Condition condition = parser.parseCondition();
+        // Anything left over (such as an unopened closing bracket) is not part of a condition
+        if (parser.position != tokens.size()) throw new DBException("Malformed condition.");
+        return condition;
+    }
+
+
+    private Condition parseCondition() throws DBException {
+        Condition condition = this.parseAndChain();
+        while (this.isBooleanOperator(BooleanOperator.OR)) {
+            this.position++;
+            condition = combine(condition, BooleanOperator.OR, this.parseAndChain());
+        }
+        return condition;
+    }
+
+
+    private Condition parseAndChain() throws DBException {
+        Condition condition = this.parseOperand();
+        while (this.isBooleanOperator(BooleanOperator.AND)) {
+            this.position++;
+            condition = combine(condition, BooleanOperator.AND, this.parseOperand());
+        }
+        return condition;
+    }
+
+
+    private Condition parseOperand() throws DBException {
+        if (this.isBracket("(")) {
+            this.position++;
+            Condition condition = this.parseCondition();
+            if (!this.isBracket(")")) throw new DBException("Malformed condition.");
+            this.position++;
+            return condition;
+        }
+        // [AttributeName] <Comparator> [Value]
+        if (this.position + 3 > this.tokens.size()) throw new DBException("Malformed condition.");
+        Token attributeName = this.tokens.get(this.position);
+        Token comparator = this.tokens.get(this.position + 1);
+        Token value = this.tokens.get(this.position + 2);
+        if (!isOperand(attributeName) || !Token.comparators.contains(comparator.getTokenValue()) || !isOperand(value)) {
+            throw new DBException("Malformed condition.");
+        }
+        this.position += 3;
+        Condition condition = new Condition();
+        condition.setAttributeName(attributeName.getTokenValue());
+        condition.setComparator(comparator.getTokenValue());
+        condition.setValue(value.getTokenValue());
+        return condition;
+    }
+
+
+    private static Condition combine(Condition condition1, BooleanOperator booleanOperator, Condition condition2) {
+        Condition condition = new Condition();
+        condition.setCondition1(condition1);
+        condition.setBooleanOperator(booleanOperator);
+        condition.setCondition2(condition2);
+        return condition;
+    }
+
+
+    private boolean isBooleanOperator(BooleanOperator booleanOperator) {
+        if (this.position >= this.tokens.size()) return false;
+        Token token = this.tokens.get(this.position);
+        return token.getTokenType() == TokenType.booleanOperator &&
+                token.getTokenValue().equalsIgnoreCase(booleanOperator.name());
+    }
+
+
+    private boolean isBracket(String bracket) {
+        if (this.position >= this.tokens.size()) return false;
+        Token token = this.tokens.get(this.position);
+        return token.getTokenType() == TokenType.symbol && token.getTokenValue().equals(bracket);
+    }
+
+
+    // Brackets and AND/OR cannot be names or values. Quoted text always can, as it is never
+    // given those types.
+    private static boolean isOperand(Token token) {
+        if (token.getTokenType() == TokenType.booleanOperator) return false;
+        return token.getTokenType() != TokenType.symbol ||
+                !(token.getTokenValue().equals("(") || token.getTokenValue().equals(")"));
+    }
+}
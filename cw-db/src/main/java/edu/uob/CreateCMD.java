@@ -9,13 +9,28 @@ import edu.uob.Token.*;
 import edu.uob.DBException.*;
 
 public class CreateCMD extends DBcmd {
-    public CreateCMD(ArrayList<Token> tokenStream) {
+    private ColumnIndex.IndexType indexType = ColumnIndex.IndexType.ORDERED;
+
+    public CreateCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
         this.tokenStream = tokenStream;
     }
 
     public void parseCommand() throws DBException {
-        // <Create> ::= <>CreateDatabase> | <CreateTable>
+        // <Create> ::= <>CreateDatabase> | <CreateTable> | <CreateIndex>
         checkTokenType(1, TokenType.keyword);
+        if (this.tokenStream.get(1).getTokenValue().equals("index")) {
+            // <CreateIndex> ::= "CREATE" "INDEX" "ON" [TableName] "(" [AttributeName] ")" |
+            //                   "CREATE" "INDEX" "ON" [TableName] "(" [AttributeName] ")" "USING" "NGRAM"
+            this.targetType = TargetType.INDEX;
+            if (this.tokenStream.size() == 10) {
+                this.parseIndexTarget(2);
+                this.parseIndexType();
+            } else {
+                this.parseIndexTarget();
+            }
+            return;
+        }
         checkIdentifier(2);
         if (this.tokenStream.get(1).getTokenValue().equals("database")) {
             this.targetType = TargetType.DATABASE;
@@ -27,8 +42,20 @@ public class CreateCMD extends DBcmd {
         }
         else {
             throw new DBException("Malformed query. The second word of a CREATE query should " +
-                    "be either DATABASE or TABLE.");
+                    "be DATABASE, TABLE or INDEX.");
+        }
+    }
+
+
+    private void parseIndexType() throws DBException {
+        // CREATE queries keep the case of everything after their third word
+        if (!this.tokenStream.get(7).getTokenValue().equalsIgnoreCase("using")) {
+            throw new malformedQueryException();
+        }
+        if (!this.tokenStream.get(8).getTokenValue().equalsIgnoreCase("ngram")) {
+            throw new DBException("Malformed query. The only index type that can follow USING is NGRAM.");
         }
+        this.indexType = ColumnIndex.IndexType.NGRAM;
     }
 
 
@@ -64,9 +91,12 @@ public class CreateCMD extends DBcmd {
         else if (this.targetType == TargetType.TABLE) {
             return this.createTable();
         }
+        else if (this.targetType == TargetType.INDEX) {
+            return this.createIndex();
+        }
         else {
             return new DBException("Sorry, something was wrong with your query. " +
-                    "CREATE must be followed by either DATABASE or TABLE.").getMessage();
+                    "CREATE must be followed by DATABASE, TABLE or INDEX.").getMessage();
         }
     }
 
@@ -93,6 +123,8 @@ public class CreateCMD extends DBcmd {
 
     // Create a database table
     public String createTable() {
+        // A table of the same name may have been dropped and recreated
+        this.invalidateCachedTable();
         File newTableFile = new File(this.tablePath);
         try {
             isFilepathValid();
@@ -109,6 +141,20 @@ public class CreateCMD extends DBcmd {
     }
 
 
+    // Create an index on a column of a table
+    public String createIndex() {
+        try {
+            // The index is built to match the table file, so write logged changes to it first
+            this.checkpointDatabase();
+            this.instantiateDatabaseTable();
+            this.databaseTable.createIndex(this.attributeList.get(0), this.indexType);
+        } catch (DBException exception) {
+            return exception.getMessage();
+        }
+        return "[OK]";
+    }
+
+
     private void addNewColumns() throws DBException {
         if (this.attributeList == null) return;
         for (String s : this.attributeList) {
@@ -1,11 +1,18 @@
 package edu.uob;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DBClient {
 
@@ -16,6 +23,14 @@ public class DBClient {
         Socket socket = new Socket("localhost", 8888);
         BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         BufferedWriter socketWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        if (args.length > 0 && args[0].equals("--framed")) {
+            framedCommands(input, socket);
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--pipeline")) {
+            pipelineCommands(input, socket, socketReader, socketWriter);
+            return;
+        }
         while (!Thread.interrupted()) {
             handleNextCommand(input, socketReader, socketWriter);
         }
@@ -35,4 +50,121 @@ public class DBClient {
             incomingMessage = socketReader.readLine();
         }
     }
+
+
+    // Pipelined mode (--pipeline): every command read from the input is sent straight away,
+    // without waiting for the response to the previous one, and responses are printed as they
+    // arrive. Bulk jobs piped in from a file are then bounded by execution speed, not by the
+    // network round trip per command.
+    private static void pipelineCommands(BufferedReader commands, Socket socket, BufferedReader socketReader,
+                                         BufferedWriter socketWriter) throws IOException {
+        Thread sender = new Thread(() -> {
+            try {
+                String command;
+                while ((command = commands.readLine()) != null) {
+                    socketWriter.write(command + "\n");
+                    // Keep batching while more input is immediately available
+                    if (!commands.ready()) socketWriter.flush();
+                }
+                socketWriter.flush();
+                // Tell the server there are no more commands - it closes the connection
+                // once every command has been answered
+                socket.shutdownOutput();
+            } catch (IOException e) {
+                System.err.println("Failed to send command: " + e.getMessage());
+            }
+        }, "db-client-sender");
+        sender.start();
+        String response;
+        while ((response = readResponse(socketReader)) != null) {
+            System.out.print(response);
+        }
+    }
+
+
+    // Sends all commands back-to-back over one connection and returns their responses in the
+    // same order. Commands are written on a separate thread so that neither side stalls when
+    // the socket buffers fill up.
+    public static List<String> sendPipelined(List<String> commands, Socket socket) throws IOException {
+        BufferedReader socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        BufferedWriter socketWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        IOException[] sendError = new IOException[1];
+        Thread sender = new Thread(() -> {
+            try {
+                for (String command : commands) {
+                    socketWriter.write(command + "\n");
+                }
+                socketWriter.flush();
+            } catch (IOException e) {
+                sendError[0] = e;
+            }
+        }, "db-client-sender");
+        sender.start();
+
+        List<String> responses = new ArrayList<>(commands.size());
+        while (responses.size() < commands.size()) {
+            String response = readResponse(socketReader);
+            if (response == null) {
+                throw new IOException("Server disconnected (end-of-stream)", sendError[0]);
+            }
+            responses.add(response);
+        }
+        try {
+            sender.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (sendError[0] != null) throw sendError[0];
+        return responses;
+    }
+
+
+    // Framed mode (--framed): the connection uses the length-prefixed protocol. Input lines are
+    // collected until one ends with a semicolon, so a command can span several lines, and
+    // large results are printed chunk by chunk as they arrive.
+    private static void framedCommands(BufferedReader commandLine, Socket socket) throws IOException {
+        InputStream socketInput = new BufferedInputStream(socket.getInputStream());
+        OutputStream socketOutput = new BufferedOutputStream(socket.getOutputStream());
+        FramedProtocol.sendHandshake(socketInput, socketOutput);
+        FramedProtocol.FrameReader responseReader = new FramedProtocol.FrameReader(socketInput);
+        Writer console = new OutputStreamWriter(System.out);
+        StringBuilder command = new StringBuilder();
+        System.out.print("SQL:> ");
+        String line;
+        while ((line = commandLine.readLine()) != null) {
+            command.append(line).append("\n");
+            if (!line.trim().endsWith(";")) continue;
+            FramedProtocol.writeRequest(socketOutput, command.toString());
+            command.setLength(0);
+            readFramedResponse(responseReader, console);
+            console.write("\n");
+            console.flush();
+            System.out.print("SQL:> ");
+        }
+    }
+
+
+    // Copies the chunks of one framed response to the given writer, up to the END frame
+    public static void readFramedResponse(FramedProtocol.FrameReader responseReader, Writer output)
+            throws IOException {
+        while (responseReader.readFrame()) {
+            if (responseReader.getFrameType() == FramedProtocol.END) return;
+            output.write(responseReader.getPayloadAsString());
+            output.flush();
+        }
+        throw new IOException("Server disconnected (end-of-stream)");
+    }
+
+
+    // Reads one response up to the end-of-transmission marker. Returns null at end-of-stream.
+    private static String readResponse(BufferedReader socketReader) throws IOException {
+        String incomingMessage = socketReader.readLine();
+        if (incomingMessage == null) return null;
+        StringBuilder response = new StringBuilder();
+        while (incomingMessage != null && !incomingMessage.contains("" + END_OF_TRANSMISSION + "")) {
+            response.append(incomingMessage).append("\n");
+            incomingMessage = socketReader.readLine();
+        }
+        return response.toString();
+    }
 }
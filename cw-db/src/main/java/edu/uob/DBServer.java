@@ -5,17 +5,61 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.file.Paths;
 import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /** This class implements the DB server. */
 public class DBServer {
 
     private static final char END_OF_TRANSMISSION = 4;
+    private static final int DEFAULT_MAX_CONNECTIONS = 64;
     private String storageFolderPath;
+    // How often the checkpoint thread looks for write-ahead logs that have grown past
+    // CHECKPOINT_LOG_SIZE, and writes their changes into the table files
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 500;
+    private static final long CHECKPOINT_LOG_SIZE = 1024 * 1024;
+    // Write-ahead logs and tables read from disk, shared by every session
+    private final LogManager logManager = new LogManager();
+    private final TableCache tableCache = new TableCache(logManager);
+    private final StatementCache statementCache = new StatementCache();
+    // Session used by handleCommand(String). Network connections each get their own session.
+    private final Session defaultSession;
+    // One lock per database: commands on different databases run in parallel, read-only
+    // commands on the same database share it, and commands that change it run alone.
+    private final ConcurrentHashMap<String, ReadWriteLock> databaseLocks = new ConcurrentHashMap<>();
+    private Thread checkpointThread;
+    // Set by close(). Guarded by the server's lock, which the checkpoint thread holds while it
+    // checkpoints, so that it is never interrupted part way through writing a file.
+    private boolean closed;
 
 
     public static void main(String args[]) throws IOException {
         DBServer server = new DBServer();
-        server.blockingListenOn(8888);
+        // "nio [workerThreads]" selects the non-blocking front end. Otherwise the optional
+        // first argument is the maximum number of clients served at the same time.
+        if (args.length > 0 && args[0].equalsIgnoreCase("nio")) {
+            int workerThreads = parseCountArgument(args, 1, Runtime.getRuntime().availableProcessors());
+            server.nonBlockingListenOn(8888, workerThreads);
+        } else {
+            server.concurrentListenOn(8888, parseCountArgument(args, 0, DEFAULT_MAX_CONNECTIONS));
+        }
+    }
+
+    private static int parseCountArgument(String[] args, int index, int defaultValue) {
+        if (args.length <= index) return defaultValue;
+        try {
+            return Integer.parseInt(args[index]);
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid number " + args[index] + ", using " + defaultValue);
+            return defaultValue;
+        }
     }
 
     /**
@@ -29,6 +73,10 @@ public class DBServer {
         } catch(IOException ioe) {
             System.out.println("Can't seem to create database storage folder " + storageFolderPath);
         }
+        // Apply changes that a previous run logged but did not write to the table files
+        logManager.recover(storageFolderPath, tableCache);
+        startCheckpointThread();
+        defaultSession = createSession();
     }
 
     /**
@@ -38,21 +86,152 @@ public class DBServer {
     * <p>This method handles all incoming DB commands and carries out the required actions.
     */
     public String handleCommand(String command) {
+        return handleCommand(command, defaultSession);
+    }
+
+
+    // Handles a command on behalf of one client session
+    public String handleCommand(String command, Session session) {
+        StringWriter response = new StringWriter();
+        try {
+            handleCommand(command, session, new TextResultSink(response));
+        } catch (IOException e) {
+            // A StringWriter never throws
+            throw new UncheckedIOException(e);
+        }
+        return response.toString();
+    }
+
+
+    // Handles a command and sends its response to resultSink as it is produced. Network
+    // connections pass a sink that writes to the socket, so large results are never built
+    // up in memory first.
+    public void handleCommand(String command, Session session, ResultSink resultSink) throws IOException {
         // Instantiate a new QueryHandler to handle the command
-        // Pass command to QueryHandler, receive results from QueryHandler, pass them back
-        // // to DBClient for displaying to console
-        String response;
+        // Pass command to QueryHandler, and pass the results back to DBClient for displaying
+        // to console
+        DBcmd query;
         try {
-            QueryTokeniser queryTokeniser = new QueryTokeniser();
-            QueryParser queryParser = new QueryParser(queryTokeniser.getTokens(command));
-            DBcmd query = queryParser.parse();
+            // Statements of a shape seen before reuse its tokens (see StatementCache)
+            query = statementCache.getCommand(command, session);
             query.parseCommand();
+            // Nothing may touch a database whose log could not be applied, not even to drop it
+            if (query.getDatabaseName() != null) {
+                logManager.checkRecovered(storageFolderPath + File.separator + query.getDatabaseName().toLowerCase());
+            }
+        } catch (DBException exception) {
+            resultSink.writeMessage(exception.getMessage());
+            return;
+        }
+        Lock databaseLock = getDatabaseLock(query.getDatabaseName(), query.isReadOnly());
+        if (query.isReadOnly()) {
+            databaseLock.lock();
+            try {
+                query.handleQuery(resultSink);
+            } finally {
+                databaseLock.unlock();
+            }
+            return;
+        }
+        String response;
+        databaseLock.lock();
+        try {
             response = query.handleQuery();
+        } finally {
+            databaseLock.unlock();
+        }
+        // Changes are only acknowledged once they are on disk. Waiting outside the lock lets
+        // the next commands log their changes, so one sync of the log can cover them all.
+        try {
+            query.awaitDurability();
         } catch (DBException exception) {
             response = exception.getMessage();
         }
-        return response;
+        resultSink.writeMessage(response);
+    }
+
+
+    // Creates the state for a new client connection
+    public Session createSession() {
+        return new Session(storageFolderPath, tableCache, logManager);
+    }
+
+
+    public TableCache getTableCache() {
+        return tableCache;
+    }
+
+
+    public StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+
+    public LogManager getLogManager() {
+        return logManager;
+    }
+
+
+    private Lock getDatabaseLock(String databaseName, boolean readOnly) {
+        String lockName = databaseName == null ? "" : databaseName.toLowerCase();
+        ReadWriteLock lock = databaseLocks.computeIfAbsent(lockName, name -> new ReentrantReadWriteLock());
+        return readOnly ? lock.readLock() : lock.writeLock();
+    }
+
+
+    // Background thread that checkpoints databases whose write-ahead log has grown large, so
+    // that the logs (and the time to replay them at startup) stay small
+    private void startCheckpointThread() {
+        checkpointThread = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(CHECKPOINT_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                synchronized (this) {
+                    if (closed) return;
+                    for (WriteAheadLog log : logManager.getOpenLogs()) {
+                        if (log.size() >= CHECKPOINT_LOG_SIZE) {
+                            checkpoint(log);
+                        }
+                    }
+                }
+            }
+        }, "db-checkpoint");
+        checkpointThread.setDaemon(true);
+        checkpointThread.start();
+    }
+
+
+    // Stops the checkpoint thread and closes the write-ahead logs, so that nothing keeps the
+    // server's caches and open files alive, and it no longer writes to the databases. Nothing
+    // is checkpointed: logged changes are applied by the next server to start, as after a
+    // crash. The server must not be used once it is closed.
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            checkpointThread.interrupt();
+        }
+        try {
+            checkpointThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logManager.closeLogs();
+    }
+
 
+    private void checkpoint(WriteAheadLog log) {
+        Lock databaseLock = getDatabaseLock(new File(log.getDatabasePath()).getName(), false);
+        databaseLock.lock();
+        try {
+            logManager.checkpoint(log, tableCache);
+        } catch (DBException exception) {
+            System.err.println("Checkpoint failed: " + exception.getMessage());
+        } finally {
+            databaseLock.unlock();
+        }
     }
 
 
@@ -73,20 +252,118 @@ public class DBServer {
         }
     }
 
+    // Serves every accepted connection on its own pooled thread, so a slow or idle client no
+    // longer holds up the others. At most maxConnections clients are served at once; further
+    // clients wait in the accept backlog until a slot frees up.
+    public void concurrentListenOn(int portNumber, int maxConnections) throws IOException {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("Max connections must be at least 1, but was " + maxConnections);
+        }
+        Semaphore connectionSlots = new Semaphore(maxConnections);
+        ExecutorService connectionPool = Executors.newFixedThreadPool(maxConnections,
+                new ConnectionThreadFactory());
+        try (ServerSocket s = new ServerSocket(portNumber)) {
+            System.out.println("Server listening on port " + portNumber + " (max " + maxConnections +
+                    " concurrent connections)");
+            while (!Thread.interrupted()) {
+                connectionSlots.acquire();
+                Socket socket;
+                try {
+                    socket = s.accept();
+                } catch (IOException e) {
+                    connectionSlots.release();
+                    System.err.println("Server encountered a non-fatal IO error:");
+                    e.printStackTrace();
+                    System.err.println("Continuing...");
+                    continue;
+                }
+                connectionPool.execute(() -> {
+                    try {
+                        handleConnection(socket);
+                    } catch (IOException e) {
+                        System.err.println("Connection closed after a non-fatal IO error: " + e.getMessage());
+                    } finally {
+                        connectionSlots.release();
+                    }
+                });
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            connectionPool.shutdownNow();
+        }
+    }
+
+    // Serves all connections from one selector thread, executing commands on a fixed pool of
+    // worker threads. Suited to many mostly idle connections, which then cost no thread each.
+    public void nonBlockingListenOn(int portNumber, int workerThreads) throws IOException {
+        new SelectorListener(this, workerThreads).listenOn(portNumber);
+    }
+
     private void blockingHandleConnection(ServerSocket serverSocket) throws IOException {
-        try (Socket s = serverSocket.accept();
-        BufferedReader reader = new BufferedReader(new InputStreamReader(s.getInputStream()));
-        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()))) {
+        handleConnection(serverSocket.accept());
+    }
 
-            System.out.println("Connection established: " + serverSocket.getInetAddress());
-            while (!Thread.interrupted()) {
-                String incomingCommand = reader.readLine();
-                System.out.println("Received message: " + incomingCommand);
-                String result = handleCommand(incomingCommand);
-                writer.write(result);
-                writer.write("\n" + END_OF_TRANSMISSION + "\n");
+    private void handleConnection(Socket socket) throws IOException {
+        Session session = createSession();
+        try (Socket s = socket;
+        BufferedInputStream input = new BufferedInputStream(s.getInputStream());
+        BufferedOutputStream output = new BufferedOutputStream(s.getOutputStream())) {
+
+            System.out.println("Connection established: " + s.getInetAddress());
+            // Clients that open with the framed handshake use the length-prefixed protocol
+            if (FramedProtocol.acceptHandshake(input, output)) {
+                handleFramedConnection(input, output, session);
+            } else {
+                handleTextConnection(input, output, session);
+            }
+        }
+    }
+
+    private void handleTextConnection(InputStream input, OutputStream output, Session session) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(output));
+        while (!Thread.interrupted()) {
+            String incomingCommand = reader.readLine();
+            if (incomingCommand == null) {
+                // Client closed the connection
+                break;
+            }
+            System.out.println("Received message: " + incomingCommand);
+            // Rows are written as they are produced; the writer sends them whenever its buffer fills
+            handleCommand(incomingCommand, session, new TextResultSink(writer));
+            writer.write("\n" + END_OF_TRANSMISSION + "\n");
+            // A pipelining client may already have sent the next commands. Only flush once
+            // there is nothing left to execute, so back-to-back responses share packets.
+            if (!reader.ready()) {
                 writer.flush();
             }
         }
     }
+
+    private void handleFramedConnection(InputStream input, OutputStream output, Session session) throws IOException {
+        FramedProtocol.FrameReader requestReader = new FramedProtocol.FrameReader(input);
+        FramedProtocol.ResponseWriter responseWriter = new FramedProtocol.ResponseWriter(output);
+        while (!Thread.interrupted() && requestReader.readFrame()) {
+            if (requestReader.getFrameType() != FramedProtocol.REQUEST) {
+                throw new IOException("Expected a request frame but received frame type " +
+                        requestReader.getFrameType());
+            }
+            String incomingCommand = requestReader.getPayloadAsString();
+            System.out.println("Received message: " + incomingCommand);
+            handleCommand(incomingCommand, session, new TextResultSink(responseWriter));
+            responseWriter.endResponse(input.available() == 0);
+        }
+    }
+
+
+    private static class ConnectionThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "db-connection-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
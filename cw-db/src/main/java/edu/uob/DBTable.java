@@ -1,7 +1,13 @@
 package edu.uob;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.function.IntPredicate;
 import java.util.regex.*;
 
 public class DBTable {
@@ -10,8 +16,37 @@ public class DBTable {
     private String metadataPath;
     public Hashtable<String, Integer> metadata;
     private ArrayList<String> tableHeaders;
-    private ArrayList<ArrayList<String>> tableData;
+    // Position of the id column among the headers, or -1 if there is none
+    private int idColumnIndex = -1;
+    // Table data is stored column by column, in typed vectors (see ColumnVector)
+    private ArrayList<ColumnVector> columns;
+    private int numberOfRows;
+    // Positions of the rows by id. Only used while every id is a distinct integer, which is
+    // always the case unless the table file has been edited by hand.
+    private final IdIndex idIndex = new IdIndex();
+    private boolean idIndexUsable;
     public int idCounter;
+    // Rough number of bytes the table data takes up in memory, kept up to date as rows change.
+    // Used by the table cache to stay within its memory budget.
+    private volatile long estimatedSize;
+    // Checkpoints append id counter updates to metadata.tab. Once the file grows past this size
+    // it is rewritten with one line per table.
+    private static final long METADATA_COMPACTION_SIZE = 64 * 1024;
+    private static final int NOT_INDEXED = -2;
+    // What has been written to the table file so far. Rows after persistedRowCount have been
+    // inserted since then; rewriteNeeded is set once existing rows or columns have changed.
+    private int persistedRowCount;
+    private boolean rewriteNeeded;
+    private int persistedIdCounter;
+    // Set when the last line of the table file ends part way through its id (see isIdCutShort)
+    private boolean lastRowIdCutShort;
+    // Indexes made by CREATE INDEX, by lower case column name. Changes to the table are queued
+    // in the indexes and written to their files by flushIndexChanges().
+    private final LinkedHashMap<String, ColumnIndex> columnIndexes = new LinkedHashMap<>();
+    // Set when the indexes have to be built again from the table, e.g. after ids have changed
+    private boolean columnIndexesStale;
+    // Set once the index files no longer match the table file, until the next checkpoint
+    private boolean columnIndexesChanged;
 
     public DBTable(String tablePath) throws DBException {
         this.tablePath = tablePath;
@@ -20,11 +55,13 @@ public class DBTable {
         File.separator + "metadata.tab";
         this.metadata = this.readMetadata();
         this.idCounter = this.metadata.get(this.tableName);
+        this.persistedIdCounter = this.idCounter;
         this.tableHeaders = new ArrayList<>();
-        this.tableData = new ArrayList<>();
+        this.columns = new ArrayList<>();
 
         // Try to open and read table data - throw DBException if you can't
         this.readDataFromFile(tablePath);
+        this.openColumnIndexes();
     }
 
 
@@ -33,7 +70,8 @@ public class DBTable {
         // It contains two tab-separated columns. The first column contains names of all of the
         // tables inside the database. The second contains the current idCounter value for that
         // table. This is represented within DBTable as a Hashmap, with table names as keys
-        // and idCounter values as values.
+        // and idCounter values as values. A table can have more than one line, since INSERTs
+        // append the new idCounter value - the last line for a table is the current one.
         try {
             Hashtable<String, Integer> metadata = new Hashtable<>();
             File metadataFile = new File(this.metadataPath);
@@ -45,9 +83,14 @@ public class DBTable {
             ArrayList<String> metadataValues;
             while ((metadataLine = metadataReader.readLine()) != null) {
                 metadataValues = new ArrayList<>(Arrays.asList(metadataLine.split("\\t")));
-                if (!(metadataValues.isEmpty() || metadataValues.get(0).isEmpty())) {
-                    metadata.put(metadataValues.get(0), Integer.parseInt(metadataValues.get(1)));
+                // A line cut short by a crash while it was being appended is skipped. The id
+                // counter it held is put right when the write-ahead log is replayed, since the
+                // log still holds the inserts it counted.
+                if (metadataValues.size() < 2 || metadataValues.get(0).isEmpty() ||
+                        !metadataValues.get(1).matches("\\d+")) {
+                    continue;
                 }
+                metadata.put(metadataValues.get(0), Integer.parseInt(metadataValues.get(1)));
             }
             metadataReader.close();
             return metadata;
@@ -59,6 +102,8 @@ public class DBTable {
 
     // Delete a row in metadata
     public void deleteMetadataRow() throws DBException {
+        // Other tables may have changed the metadata file since this table was read
+        this.metadata = this.readMetadata();
         for (int i = 0; i < this.metadata.size(); i++) {
             String key = new ArrayList<>(this.metadata.keySet()).get(i);
             if (key.equals(this.tableName)) {
@@ -81,19 +126,43 @@ public class DBTable {
             String tableRow;
             if ((tableRow = tableDataBuffReader.readLine()) != null) {
                 this.tableHeaders = formatRow(tableRow);
+                for (int i = 0; i < this.tableHeaders.size(); i++) {
+                    this.columns.add(new ColumnVector());
+                }
+                this.findIdColumn();
             }
 
+            String lastRow = null;
             while ((tableRow = tableDataBuffReader.readLine()) != null) {
-                ArrayList<String> rowList = formatRow(tableRow);
-                this.tableData.add(rowList);
+                this.appendRow(formatRow(tableRow));
+                lastRow = tableRow;
             }
             tableDataBuffReader.close();
+            this.lastRowIdCutShort = lastRow != null && this.isIdCutShort(lastRow) && !endsWithNewline(tablePath);
+            this.rebuildIdIndex();
+            this.updateEstimatedSize();
+            this.persistedRowCount = this.numberOfRows;
         } catch (IOException readDataException) {
             throw new DBException("Error reading in data: malformed line in table " + tableName);
         }
     }
 
 
+    // Whether a row ends before its id does. Rows are written with a cell for every column, so
+    // that only happens to a row that a crash cut short while it was being appended. A table
+    // whose id is its last column cannot be told apart from a whole row, and is left alone.
+    private boolean isIdCutShort(String tableRow) {
+        if (this.idColumnIndex == -1 || this.idColumnIndex == this.tableHeaders.size() - 1) return false;
+        return tableRow.split("\\t", -1).length <= this.idColumnIndex + 1;
+    }
+
+
+    // Called whenever the headers change
+    private void findIdColumn() {
+        this.idColumnIndex = this.getColumnNames(false).indexOf("id");
+    }
+
+
     private ArrayList<String> formatRow(String rowToBeRead) {
         ArrayList<String> rowList = new ArrayList<>(Arrays.asList(rowToBeRead.split("\\t")));
         rowList.replaceAll(s -> s.isEmpty() ? null: s); // replace empty cells with null
@@ -101,18 +170,52 @@ public class DBTable {
     }
 
 
-    // Generic write IO helper
-    private void writeToFile(String filePath, String text) throws DBException {
+    // Generic write IO helper. The file is synced to disk before returning, since a checkpoint
+    // empties the write-ahead log straight afterwards. A file that is rewritten is written under
+    // a temporary name and moved into place, so a crash part way through leaves the old file as
+    // it was: the log only holds the changes since the last checkpoint, not the rest of the file.
+    private void writeToFile(String filePath, String text, boolean append) throws DBException {
         try {
-            FileWriter writer = new FileWriter(filePath);
-            writer.write(text);
-            writer.close();
+            if (append) {
+                writeAndSync(new File(filePath), text, true);
+                return;
+            }
+            Path finalPath = Paths.get(filePath);
+            Path tempPath = Files.createTempFile(finalPath.toAbsolutePath().getParent(), finalPath.getFileName().toString(), ".tmp");
+            try {
+                writeAndSync(tempPath.toFile(), text, false);
+                Files.move(tempPath, finalPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tempPath);
+            }
         } catch (IOException e) {
             throw new DBException("Failed to write to file" + filePath);
         }
     }
 
 
+    private static void writeAndSync(File file, String text, boolean append) throws IOException {
+        try (FileOutputStream fileStream = new FileOutputStream(file, append)) {
+            Writer writer = new OutputStreamWriter(fileStream, Charset.defaultCharset());
+            writer.write(text);
+            writer.flush();
+            fileStream.getFD().sync();
+        }
+    }
+
+
+    private static boolean endsWithNewline(String filePath) throws DBException {
+        try (RandomAccessFile file = new RandomAccessFile(filePath, "r")) {
+            long fileLength = file.length();
+            if (fileLength == 0) return false;
+            file.seek(fileLength - 1);
+            return file.read() == '\n';
+        } catch (IOException e) {
+            throw new DBException("Failed to read file" + filePath);
+        }
+    }
+
+
     // Write data from memory to filesystem
     public void writeDataToFile() throws DBException {
         String fileToWriteTo = this.tablePath;
@@ -123,12 +226,31 @@ public class DBTable {
             String tableRow = String.join("\t", this.getTableRow(rowIndex));
             textToWrite.append("\n").append(tableRow);
         }
-        writeToFile(fileToWriteTo, textToWrite.toString());
+        writeToFile(fileToWriteTo, textToWrite.toString(), false);
+        this.persistedRowCount = numberOfRows;
+        this.rewriteNeeded = false;
+    }
+
+
+    // Write the changes made since the table was last written to disk. If rows have only been
+    // inserted, they are appended to the file; otherwise the whole file is rewritten.
+    public void writeChangesToFile() throws DBException {
+        if (this.rewriteNeeded) {
+            this.writeDataToFile();
+        } else if (this.persistedRowCount < this.getNumberOfRows()) {
+            this.appendRowsToFile();
+        }
+        if (this.idCounter != this.persistedIdCounter) {
+            this.appendIdCounterToMetadata();
+        }
     }
 
 
     public void writeMetadataToFile() throws DBException {
         String fileToWriteTo = this.metadataPath;
+        // This table may have been cached for a while, so read the other tables' rows again
+        // rather than overwrite them with old values
+        this.metadata = this.readMetadata();
         // Update idCounter value in the metadata hash table
         this.metadata.put(this.tableName, idCounter);
         StringBuilder textToWrite = new StringBuilder();
@@ -136,7 +258,62 @@ public class DBTable {
             String metadataRow = metadataKey + "\t" + this.metadata.get(metadataKey);
             textToWrite.append(metadataRow).append("\n");
         }
-        writeToFile(fileToWriteTo, textToWrite.toString());
+        writeToFile(fileToWriteTo, textToWrite.toString(), false);
+        this.persistedIdCounter = this.idCounter;
+    }
+
+
+    public long getEstimatedSize() {
+        return this.estimatedSize;
+    }
+
+
+    private void updateEstimatedSize() {
+        long tableSize = 0;
+        for (ColumnVector column : this.columns) {
+            tableSize += column.getEstimatedSize();
+        }
+        this.estimatedSize = tableSize;
+    }
+
+
+    // Adds a row to the end of every column. Cells missing from the end of a short row (empty
+    // cells at the end of a line in the table file) are left empty.
+    private void appendRow(List<String> row) {
+        for (int columnIndex = 0; columnIndex < this.columns.size(); columnIndex++) {
+            this.columns.get(columnIndex).add(columnIndex < row.size() ? row.get(columnIndex) : null);
+        }
+        this.numberOfRows++;
+    }
+
+
+    // Append the rows inserted since the table was last written to the end of the table file,
+    // instead of rewriting the whole file
+    private void appendRowsToFile() throws DBException {
+        // Rows are separated by newlines, and files written by writeDataToFile() do not end
+        // with one
+        boolean endsWithNewline = endsWithNewline(this.tablePath);
+        StringBuilder rowText = new StringBuilder();
+        for (int rowIndex = this.persistedRowCount; rowIndex < this.getNumberOfRows(); rowIndex++) {
+            if (rowText.length() > 0 || !endsWithNewline) rowText.append("\n");
+            rowText.append(String.join("\t", this.getTableRow(rowIndex)));
+        }
+        writeToFile(this.tablePath, rowText.toString(), true);
+        this.persistedRowCount = this.getNumberOfRows();
+    }
+
+
+    // Record this table's idCounter by appending a line to the metadata file, rather than
+    // rewriting it. The file is compacted once it has grown too big.
+    private void appendIdCounterToMetadata() throws DBException {
+        File metadataFile = new File(this.metadataPath);
+        if (metadataFile.length() > METADATA_COMPACTION_SIZE) {
+            this.writeMetadataToFile();
+            return;
+        }
+        writeToFile(this.metadataPath, "\n" + this.tableName + "\t" + this.idCounter, true);
+        this.metadata.put(this.tableName, this.idCounter);
+        this.persistedIdCounter = this.idCounter;
     }
 
 
@@ -147,7 +324,7 @@ public class DBTable {
 
 
     public int getNumberOfRows() {
-        return this.tableData.size();
+        return this.numberOfRows;
     }
 
 
@@ -163,6 +340,7 @@ public class DBTable {
         if (this.getColumnNames(false).contains(columnName.toLowerCase())) {
             throw new DBException("Column " + columnName + " already exists in this table.");
         }
+        this.rewriteNeeded = true;
         // Add column name to headers list
         if (this.tableHeaders.isEmpty()) {
             this.tableHeaders.add(columnName);
@@ -171,9 +349,15 @@ public class DBTable {
         }
 
         // Add an empty cell to new column of each row in the table
+        ColumnVector newColumn = new ColumnVector();
         for (int row = 0; row < this.getNumberOfRows(); row++) {
-            this.tableData.get(row).add(null);
+            newColumn.add(null);
         }
+        this.columns.add(newColumn);
+        this.findIdColumn();
+        this.rebuildIdIndex();
+        this.columnIndexesChanged = true;
+        this.updateEstimatedSize();
     }
 
 
@@ -186,11 +370,16 @@ public class DBTable {
         if (columnIndex == -1) {
             throw new DBException("This column does not exist in this table.");
         }
+        this.rewriteNeeded = true;
         this.tableHeaders.remove(this.tableHeaders.get(columnIndex));
         // If there is data in the table, remove it
-            for (int rowIndex = 0; rowIndex < this.getNumberOfRows(); rowIndex++) {
-                this.tableData.get(rowIndex).remove(columnIndex);
-            }
+        this.columns.remove(columnIndex);
+        ColumnIndex droppedIndex = this.columnIndexes.remove(columnName.toLowerCase());
+        if (droppedIndex != null) droppedIndex.deleteFile();
+        this.findIdColumn();
+        this.rebuildIdIndex();
+        this.columnIndexesChanged = true;
+        this.updateEstimatedSize();
     }
 
 
@@ -215,185 +404,250 @@ public class DBTable {
     }
 
 
+    // Builds a row from the column vectors. The list is a copy, so changing it does not change
+    // the table.
     public ArrayList<String> getTableRow(int rowIndex) {
-        return this.tableData.get(rowIndex);
+        ArrayList<String> tableRow = new ArrayList<>(this.columns.size());
+        for (ColumnVector column : this.columns) {
+            tableRow.add(column.get(rowIndex));
+        }
+        return tableRow;
     }
 
 
-    public void deleteTableRow(int rowIndex) {
-        this.tableData.remove(rowIndex);
+    // Deletes every row whose bit is set, moving the remaining rows only once
+    public void deleteTableRows(BitSet rowIndices) {
+        if (rowIndices.isEmpty()) return;
+        this.rewriteNeeded = true;
+        int[] indexedColumns = this.findIndexedColumns();
+        for (int rowIndex = rowIndices.nextSetBit(0); rowIndex >= 0; rowIndex = rowIndices.nextSetBit(rowIndex + 1)) {
+            this.unindexRow(rowIndex, indexedColumns);
+        }
+        for (ColumnVector column : this.columns) {
+            column.removeRows(rowIndices);
+        }
+        this.numberOfRows -= rowIndices.cardinality();
+        this.rebuildIdIndex();
+        this.updateEstimatedSize();
     }
 
 
-    public void filterColumnsByIndex(List<Integer> indices) {
-        ArrayList<ArrayList<String>> filteredTable = new ArrayList<>();
-        for (int rowIndex = 0; rowIndex < this.getNumberOfRows(); rowIndex++) {
-            filteredTable.add(rowIndex, new ArrayList<>());
-            for (int colIndex = 0; colIndex < this.getNumberOfColumns(); colIndex++) {
-                if (indices.contains(colIndex)) {
-                    filteredTable.get(rowIndex).add(this.getTableValue(colIndex, rowIndex, true));
+    // Returns the positions of the rows where the condition is true. A condition on a single id
+    // (possibly ANDed with other conditions) is looked up in the id index, and conditions on
+    // columns with an index are looked up in those, instead of testing every row.
+    public BitSet filterRows(Condition condition)
+            throws DBException {
+        BitSet filteredRows = new BitSet();
+        if (this.getNumberOfRows() == 0) return filteredRows;
+        // Compiling the condition also checks that every column it names exists, before any
+        // row is skipped by an index
+        IntPredicate predicate = this.compileCondition(condition);
+        int indexedRow = this.findRowById(condition);
+        if (indexedRow != NOT_INDEXED) {
+            if (indexedRow >= 0 && predicate.test(indexedRow)) {
+                filteredRows.set(indexedRow);
+            }
+            return filteredRows;
+        }
+        BitSet candidateRows = this.findRowsByColumnIndex(condition);
+        if (candidateRows != null) {
+            for (int rowIndex = candidateRows.nextSetBit(0); rowIndex >= 0;
+                 rowIndex = candidateRows.nextSetBit(rowIndex + 1)) {
+                if (predicate.test(rowIndex)) {
+                    filteredRows.set(rowIndex);
                 }
             }
+            return filteredRows;
         }
-        this.tableData = filteredTable;
-        ArrayList<String> newHeaders = new ArrayList<>();
-        for (int index : indices) {
-            newHeaders.add(this.tableHeaders.get(index));
+        for (int rowIndex = 0; rowIndex < this.getNumberOfRows(); rowIndex++) {
+            if (predicate.test(rowIndex)) {
+                filteredRows.set(rowIndex);
+            }
         }
-        this.tableHeaders = newHeaders;
+        return filteredRows;
     }
 
 
-    public ArrayList<ArrayList<String>> getFilteredTable(Condition condition)
-            throws DBException {
-        // Loop over rows, testing condition on each. If condition is true
-        // for that row, keep it in table. If not, remove it.
-        ArrayList<ArrayList<String>> filteredTable = new ArrayList<>();
-
-        for (int rowIndex = 0; rowIndex < this.getNumberOfRows(); rowIndex++) {
-            try {
-                if (this.filterRow(condition, rowIndex)) {
-                    filteredTable.add(getTableRow(rowIndex));
-                }
-            } catch (DBException error) {
-                throw new DBException(error.getMessage());
+    // Returns the position of the only row that can satisfy the condition (-1 if no row can),
+    // or NOT_INDEXED if the condition does not pin down an id
+    private int findRowById(Condition condition) throws DBException {
+        if (!this.idIndexUsable) return NOT_INDEXED;
+        if (condition.getTypeOfCondition().equals(Condition.ConditionType.TERMINAL)) {
+            if (!condition.getAttributeName().equals("id") || !condition.getComparator().equals("==")) {
+                return NOT_INDEXED;
             }
+            long id = ColumnVector.parseInteger(condition.getValue());
+            return id == ColumnVector.NOT_AN_INTEGER ? -1 : this.idIndex.get((int) id);
         }
-        return filteredTable;
+        if (!condition.getBooleanOperator().equals(Token.BooleanOperator.AND)) return NOT_INDEXED;
+        int indexedRow = this.findRowById(condition.getCondition1());
+        return indexedRow != NOT_INDEXED ? indexedRow : this.findRowById(condition.getCondition2());
     }
 
 
-    public void filterTable(Condition condition) throws DBException {
-        this.tableData = getFilteredTable(condition);
+    // Returns the rows that may satisfy the condition according to the column indexes, or null
+    // if the indexes cannot narrow it down. Every row returned still has to be tested.
+    private BitSet findRowsByColumnIndex(Condition condition) throws DBException {
+        if (!this.idIndexUsable || this.columnIndexes.isEmpty() || this.columnIndexesStale) return null;
+        if (condition.getTypeOfCondition().equals(Condition.ConditionType.TERMINAL)) {
+            ColumnIndex columnIndex = this.columnIndexes.get(condition.getAttributeName());
+            if (columnIndex == null || columnIndex.hasPendingChanges()) return null;
+            BitSet candidateRows = new BitSet();
+            boolean indexUsed = columnIndex.findCandidates(condition.getComparator(), condition.getValue(), id -> {
+                int rowIndex = this.idIndex.get(id);
+                if (rowIndex >= 0) candidateRows.set(rowIndex);
+            });
+            return indexUsed ? candidateRows : null;
+        }
+        BitSet candidateRows1 = this.findRowsByColumnIndex(condition.getCondition1());
+        BitSet candidateRows2 = this.findRowsByColumnIndex(condition.getCondition2());
+        if (condition.getBooleanOperator().equals(Token.BooleanOperator.AND)) {
+            // Either side on its own is enough to narrow down an AND
+            if (candidateRows1 == null) return candidateRows2;
+            if (candidateRows2 != null) candidateRows1.and(candidateRows2);
+            return candidateRows1;
+        }
+        // An OR can only be narrowed down if both sides can
+        if (candidateRows1 == null || candidateRows2 == null) return null;
+        candidateRows1.or(candidateRows2);
+        return candidateRows1;
     }
 
 
-    public ArrayList<String> filterRows(Condition condition)
-            throws DBException {
-        // Return the 'id' values of the columns where the condition is true
-        ArrayList<ArrayList<String>> filteredTable = getFilteredTable(condition);
-        int idColumnIndex = this.getColumnIndex("id");
-        ArrayList<String> filteredDataIds = new ArrayList<>();
-        for (int rowIndex = 0; rowIndex < filteredTable.size(); rowIndex++) {
-            filteredDataIds.add(rowIndex, filteredTable.get(rowIndex).get(idColumnIndex));
+    private void rebuildIdIndex() {
+        this.idIndex.clear();
+        this.idIndexUsable = this.idColumnIndex != -1 &&
+                this.columns.get(this.idColumnIndex).getColumnType() != ColumnVector.ColumnType.STRING;
+        for (int rowIndex = 0; rowIndex < this.numberOfRows && this.idIndexUsable; rowIndex++) {
+            this.indexRow(rowIndex);
         }
-        return filteredDataIds;
     }
 
 
-    public boolean filterRow(Condition condition, int rowIndex)
-            throws DBException {
-        if (condition.getTypeOfCondition().equals(Condition.ConditionType.TERMINAL)) {
-            int columnIndex = this.getColumnIndex(condition.getAttributeName());
-            String tableValue = this.getTableValue(columnIndex, rowIndex, false);
-            return compareConditionToValues(tableValue, condition.getComparator(), condition.getValue());
+    private void indexRow(int rowIndex) {
+        // Integer columns only hold values written the way Integer.toString() writes them, so
+        // their ids match exactly the rows a condition on id would
+        ColumnVector idColumn = this.columns.get(this.idColumnIndex);
+        if (idColumn.getColumnType() != ColumnVector.ColumnType.INTEGER || idColumn.isNull(rowIndex) ||
+                !this.idIndex.put(idColumn.getInt(rowIndex), rowIndex)) {
+            // Missing, non-numeric or repeated ids: fall back to testing every row
+            this.idIndexUsable = false;
         }
+    }
+
+
+    // Turns a condition into a test of a row, with the columns looked up, the condition values
+    // parsed and the comparators resolved once rather than for every row. Conditions that are
+    // compiled often are turned into generated code (see PredicateCompiler). The test is only
+    // valid until the table is next changed.
+    public IntPredicate compileCondition(Condition condition) throws DBException {
+        List<IntPredicate> comparisons = new ArrayList<>();
+        IntPredicate predicate = this.compileCondition(condition, comparisons);
+        return PredicateCompiler.compile(condition, comparisons, predicate);
+    }
+
 
+    private IntPredicate compileCondition(Condition condition, List<IntPredicate> comparisons) throws DBException {
+        if (condition.getTypeOfCondition().equals(Condition.ConditionType.TERMINAL)) {
+            int columnIndex = this.getColumnIndex(condition.getAttributeName());
+            Token.Comparator comparator = Token.Comparator.fromSymbol(condition.getComparator());
+            if (comparator == Token.Comparator.LIKE) LikeMatcher.checkPattern(condition.getValue());
+            IntPredicate comparison = this.columns.get(columnIndex).compileMatcher(comparator, condition.getValue());
+            comparisons.add(comparison);
+            return comparison;
+        }
+        IntPredicate predicate1 = this.compileCondition(condition.getCondition1(), comparisons);
+        IntPredicate predicate2 = this.compileCondition(condition.getCondition2(), comparisons);
         if (condition.getBooleanOperator().equals(Token.BooleanOperator.AND)) {
-            return filterRow(condition.getCondition1(), rowIndex) &&
-                    filterRow(condition.getCondition2(), rowIndex);
-        } else {
-            return filterRow(condition.getCondition1(), rowIndex) ||
-                    filterRow(condition.getCondition2(), rowIndex);
+            return rowIndex -> predicate1.test(rowIndex) && predicate2.test(rowIndex);
         }
+        return rowIndex -> predicate1.test(rowIndex) || predicate2.test(rowIndex);
     }
 
 
-    private static boolean isStringNumeric(String string) {
-        try {
-            Integer.parseInt(string);
-            return true;
-        } catch (NumberFormatException error) {
-            return false;
-        }
-    }
-
-
-    private static boolean compareStrings(String comparisonValue1, String comparator, String comparisonValue2) {
-        switch (comparator) {
-            case "==":
-                return comparisonValue1.equals(comparisonValue2);
-            case "!=":
-                return !(comparisonValue1.equals(comparisonValue2));
-            case ">":
-                return comparisonValue1.compareTo(comparisonValue2) > 0;
-            case "<":
-                return comparisonValue1.compareTo(comparisonValue2) < 0;
-            case ">=":
-                return comparisonValue1.compareTo(comparisonValue2) >= 0;
-            case "<=":
-                return comparisonValue1.compareTo(comparisonValue2) <= 0;
-            case "like":
-                // LIKE - regex pattern matching
-                Pattern pattern = Pattern.compile(comparisonValue2);
-                Matcher matcher = pattern.matcher(comparisonValue1);
-                return matcher.find();
-            default:
-                return false; // no other valid comparisons for strings
-        }
-    }
-
-
-    private static boolean compareNumerics(int comparisonValue1, String comparator, int comparisonValue2) {
-        return switch (comparator) {
-            case "==" -> comparisonValue1 == comparisonValue2;
-            case ">" -> comparisonValue1 > comparisonValue2;
-            case "<" -> comparisonValue1 < comparisonValue2;
-            case ">=" -> comparisonValue1 >= comparisonValue2;
-            case "<=" -> comparisonValue1 <= comparisonValue2;
-            case "!=" -> comparisonValue1 != comparisonValue2;
-            default -> false;
-        };
-    }
-
-
-    private static boolean compareConditionToValues(String tableValue, String comparator, String conditionValue) {
-        if (isStringNumeric(tableValue) && isStringNumeric(conditionValue) &&
-                !comparator.equals("like")) {
-            return compareNumerics(Integer.parseInt(tableValue), comparator, Integer.parseInt(conditionValue));
-        } else if (!comparator.equals("like") &&
-                (isStringNumeric(tableValue) || isStringNumeric(conditionValue))) {
-            return false;
-        } else {
-            return compareStrings(tableValue, comparator, conditionValue);
+    // Checks that every column named in a condition exists, so that a query fails before any of
+    // its result has been sent rather than part way through
+    public void checkConditionColumns(Condition condition) throws DBException {
+        if (condition.getTypeOfCondition().equals(Condition.ConditionType.TERMINAL)) {
+            this.getColumnIndex(condition.getAttributeName());
+            return;
         }
+        this.checkConditionColumns(condition.getCondition1());
+        this.checkConditionColumns(condition.getCondition2());
     }
 
 
     // by column index
     public String getTableValue(int columnIndex, int rowIndex, boolean preserveCase) {
-        String tableValue = this.tableData.get(rowIndex).get(columnIndex);
-        if (preserveCase) return tableValue;
-        return tableValue.toLowerCase();
-    }
-
-
-    public void setTableValue(int columnIndex, int rowIndex, String value) {
-        this.tableData.get(rowIndex).set(columnIndex, value);
+        ColumnVector column = this.columns.get(columnIndex);
+        if (preserveCase) return column.get(rowIndex);
+        return column.getLowerCase(rowIndex);
+    }
+
+
+    // Sets one column of every row whose bit is set to the same value
+    public void setTableValues(int columnIndex, BitSet rowIndices, String value) {
+        if (rowIndices.isEmpty()) return;
+        this.rewriteNeeded = true;
+        ColumnVector column = this.columns.get(columnIndex);
+        ColumnIndex index = this.columnIndexes.get(this.tableHeaders.get(columnIndex).toLowerCase());
+        for (int rowIndex = rowIndices.nextSetBit(0); rowIndex >= 0; rowIndex = rowIndices.nextSetBit(rowIndex + 1)) {
+            int id = this.getRowId(rowIndex);
+            if (index != null && id != NOT_INDEXED) {
+                index.addChange(column.get(rowIndex), id, false);
+                index.addChange(value, id, true);
+            }
+            column.set(rowIndex, value);
+        }
+        if (columnIndex == this.idColumnIndex) {
+            this.rebuildIdIndex();
+            // Every index entry holds an id
+            this.columnIndexesStale = true;
+        }
+        this.updateEstimatedSize();
     }
 
 
-    public void insertRow(ArrayList<String> valueList) throws DBException {
-        // Data validation: valueList must contain the same number of values as the table contains
+    // Adds rows in memory and returns them. The caller logs them in the write-ahead log. Every
+    // row is checked before any is added, so either all of the rows are added or none are.
+    public List<ArrayList<String>> insertRows(List<ArrayList<String>> valueLists) throws DBException {
+        // Data validation: each valueList must contain the same number of values as the table contains
         // columns. If not, error.
-        if (valueList.size() != this.getNumberOfColumns()-1) {
-            throw new DBException("The number of columns in the table does not match the number of values to be " +
-                    "entered into the table. This table contains " + this.getNumberOfColumns() + " columns.");
-        }
-
-        // Create a new (empty) row
-        ArrayList<String> newRow = this.createRow();
-        // Populate the new row with auto-generated id value and input values
-        this.populateRow(newRow, valueList);
-        // Add new row to tableData
-        this.tableData.add(newRow);
-        // write changes to idCount to metadata file
-        this.writeMetadataToFile();
+        for (ArrayList<String> valueList : valueLists) {
+            if (valueList.size() != this.getNumberOfColumns()-1) {
+                throw new DBException("The number of columns in the table does not match the number of values to be " +
+                        "entered into the table. This table contains " + this.getNumberOfColumns() + " columns.");
+            }
+        }
+
+        if (this.idColumnIndex == -1) {
+            throw new DBException("Column id does not exist in this table.");
+        }
+        int[] indexedColumns = this.findIndexedColumns();
+        // The rows take the next ids in turn
+        int firstId = this.idCounter;
+        this.idCounter += valueLists.size();
+        List<ArrayList<String>> newRows = new ArrayList<>(valueLists.size());
+        for (int i = 0; i < valueLists.size(); i++) {
+            // Create a new (empty) row
+            ArrayList<String> newRow = this.createRow();
+            // Populate the new row with auto-generated id value and input values
+            this.populateRow(newRow, valueLists.get(i), firstId + i);
+            // Add new row to the column vectors
+            this.appendRow(newRow);
+            if (this.idIndexUsable) {
+                this.indexRow(this.numberOfRows - 1);
+            }
+            this.indexColumnValues(this.numberOfRows - 1, true, indexedColumns);
+            newRows.add(newRow);
+        }
+        this.updateEstimatedSize();
+        return newRows;
     }
 
 
     private ArrayList<String> createRow() {
-        // Add a new (empty...for now..) row to the tableData
+        // Create a new (empty...for now..) row
         ArrayList<String> newRow = new ArrayList<>();
         for (int i = 0; i < this.getNumberOfColumns(); i++) {
             newRow.add(null);
@@ -402,19 +656,16 @@ public class DBTable {
     }
 
 
-    private void populateRow(ArrayList<String> newRow, ArrayList<String> valueList)
+    private void populateRow(ArrayList<String> newRow, ArrayList<String> valueList, int id)
     throws DBException {
-        // For each column (key), add value to table. Also add an auto-generated id value.
-        // get index of id column and add idCounter to table
-        int idColumnIndex = this.getColumnIndex("id");
-        newRow.set(idColumnIndex, "" + idCounter);
-        idCounter++;
+        // For each column (key), add value to table. Also add the auto-generated id value.
+        newRow.set(this.idColumnIndex, "" + id);
         // populate other columns
         int valueListIndex = 0;
         try {
             for (int i = 0; i < this.getNumberOfColumns(); i++) {
                 // Skip the id column. This has already been auto-populated
-                if (i != idColumnIndex) {
+                if (i != this.idColumnIndex) {
                     newRow.set(i, valueList.get(valueListIndex));
                     valueListIndex++;
                 }
@@ -426,110 +677,250 @@ public class DBTable {
     }
 
 
-    // Join another table to this table
-    public void joinTable(DBTable table2, int joinColIndex1, int joinColIndex2)
-     throws DBException {
-        ArrayList<ArrayList<Integer>> table2MatchIndex = this.matchRows(table2, joinColIndex1, joinColIndex2);
+    // Re-applies changes from the write-ahead log that are newer than the table file. A record
+    // that is applied twice has no further effect, so records that already reached the table
+    // file before the server stopped are harmless.
+    public void replayLogRecords(List<WriteAheadLog.Record> records) throws DBException {
+        int idColumnIndex = this.getColumnIndex("id");
+        if (this.lastRowIdCutShort) this.dropCutShortRow(records, idColumnIndex);
+        HashMap<String, Integer> rowsById = new HashMap<>();
+        for (int rowIndex = 0; rowIndex < this.numberOfRows; rowIndex++) {
+            rowsById.put(this.getTableValue(idColumnIndex, rowIndex, true), rowIndex);
+        }
+        BitSet deletedRows = new BitSet();
+        boolean recordsApplied = false;
+        for (WriteAheadLog.Record record : records) {
+            if (!record.getTableName().equals(this.tableName)) continue;
+            recordsApplied = true;
+            if (record.isDelete()) {
+                Integer deletedRow = rowsById.remove(record.getId());
+                if (deletedRow != null) deletedRows.set(deletedRow);
+                continue;
+            }
+            List<String> loggedRow = record.getRow();
+            if (loggedRow.size() != this.getNumberOfColumns()) {
+                throw new DBException("The write-ahead log does not match the columns of table " + this.tableName);
+            }
+            String id = loggedRow.get(idColumnIndex);
+            Integer rowIndex = rowsById.get(id);
+            if (rowIndex == null) {
+                rowsById.put(id, this.numberOfRows);
+                this.appendRow(loggedRow);
+            } else {
+                for (int columnIndex = 0; columnIndex < loggedRow.size(); columnIndex++) {
+                    this.columns.get(columnIndex).set(rowIndex, loggedRow.get(columnIndex));
+                }
+                this.rewriteNeeded = true;
+            }
+            if (record.isInsert()) {
+                this.idCounter = Math.max(this.idCounter, Integer.parseInt(id) + 1);
+            }
+        }
+        if (!deletedRows.isEmpty()) {
+            for (ColumnVector column : this.columns) {
+                column.removeRows(deletedRows);
+            }
+            this.numberOfRows -= deletedRows.cardinality();
+            this.rewriteNeeded = true;
+        }
+        this.rebuildIdIndex();
+        if (recordsApplied && !this.columnIndexes.isEmpty()) {
+            // The index files only match the table file, so build them again for the rows
+            // added from the log
+            this.columnIndexesStale = true;
+            this.flushIndexChanges();
+        }
+        this.updateEstimatedSize();
+    }
+
+
+    // A crash while a checkpoint was appending rows can leave the last of them cut short in its
+    // id, which would make it look like a different row. The whole row is still in the log, as
+    // the log is only emptied once the rows are on disk, so the part in the file is dropped
+    // (and the file rewritten at the next checkpoint) for the log to add it again. A row whose
+    // id was written in full is matched by id and overwritten by the log as it is.
+    private void dropCutShortRow(List<WriteAheadLog.Record> records, int idColumnIndex) {
+        int lastRowIndex = this.numberOfRows - 1;
+        String idStart = this.columns.get(idColumnIndex).get(lastRowIndex);
+        for (WriteAheadLog.Record record : records) {
+            if (!record.getTableName().equals(this.tableName) || !record.isInsert() ||
+                    record.getRow().size() != this.getNumberOfColumns()) {
+                continue;
+            }
+            String loggedId = record.getRow().get(idColumnIndex);
+            if (idStart == null || (loggedId != null && loggedId.startsWith(idStart))) {
+                for (ColumnVector column : this.columns) {
+                    column.remove(lastRowIndex);
+                }
+                this.numberOfRows--;
+                this.persistedRowCount--;
+                this.rewriteNeeded = true;
+                break;
+            }
+        }
+        this.lastRowIdCutShort = false;
+    }
 
-        // For JOINs: discard the ids from the original tables
-        // discard the columns that the tables were matched on
-        this.dropJoiningColumns(table2, joinColIndex1, joinColIndex2);
 
-        // Join the rows together
-        // if a row does not match, drop it
-        this.joinTables(table2, table2MatchIndex);
+    // Opens the indexes of this table, building again any that do not match the table file
+    private void openColumnIndexes() throws DBException {
+        long tableFileLength = new File(this.tablePath).length();
+        ArrayList<String> columnNames = this.getColumnNames(false);
+        for (ColumnIndex index : ColumnIndex.findIndexes(this.tablePath, this.tableName)) {
+            // Files left over from a column that has since been dropped are ignored
+            if (!columnNames.contains(index.getColumnName())) continue;
+            this.columnIndexes.put(index.getColumnName(), index);
+            if (!index.isUpToDate(tableFileLength, this.numberOfRows)) {
+                this.buildColumnIndex(index, true);
+            }
+        }
     }
 
 
-    public void editColumnName(String initialColumnName, String newColumnName) throws DBException {
-        int colIndex = this.getColumnNames(false).indexOf(initialColumnName.toLowerCase());
-        if (colIndex == -1) {
-            throw new DBException("Column " + initialColumnName + " does not exist in this table.");
+    // Writes the index file from the values of its column. clean says whether the table
+    // file holds the same rows as memory.
+    private void buildColumnIndex(ColumnIndex index, boolean clean) throws DBException {
+        int columnIndex = this.getColumnIndex(index.getColumnName());
+        ArrayList<BPlusTree.Key> keys = new ArrayList<>(this.numberOfRows);
+        for (int rowIndex = 0; rowIndex < this.numberOfRows; rowIndex++) {
+            int id = this.getRowId(rowIndex);
+            if (id == NOT_INDEXED) continue;
+            keys.addAll(index.keysFor(this.columns.get(columnIndex).get(rowIndex), id));
         }
-        this.tableHeaders.set(colIndex, newColumnName);
+        index.build(keys, clean, new File(this.tablePath).length(), this.numberOfRows);
+        if (!clean) this.columnIndexesChanged = true;
     }
 
 
-    private int searchColumnNames(String pattern) {
-        int columnIndex = -1; // If pattern not found, returns -1
-        for (String column : this.tableHeaders) {
-            if (column.matches(pattern)) {
-                columnIndex = this.getColumnNames(false).indexOf(column);
-            }
+    // The id of a row, or NOT_INDEXED if it does not have an integer id
+    private int getRowId(int rowIndex) {
+        if (this.idColumnIndex == -1) return NOT_INDEXED;
+        ColumnVector idColumn = this.columns.get(this.idColumnIndex);
+        if (idColumn.getColumnType() != ColumnVector.ColumnType.INTEGER || idColumn.isNull(rowIndex)) {
+            return NOT_INDEXED;
         }
-        return columnIndex;
+        return idColumn.getInt(rowIndex);
     }
 
 
-    private void dropJoiningColumns(DBTable table2, int joinColIndex1, int joinColIndex2)
-    throws DBException {
-        // For JOINs: discard the ids from the original tables
-        // discard the columns that the tables were matched on
-        int idColIndex1 = this.searchColumnNames(".*\\.id$");
-        int idColIndex2 = table2.searchColumnNames(".*\\.id$");
-        if (idColIndex1 == -1 || idColIndex2 == -1) {
-            throw new DBException("An id column was not found in one of the tables.");
+    // The position of the column of each column index, in the order of columnIndexes. Worked
+    // out once by commands that change many rows, rather than for every row.
+    private int[] findIndexedColumns() {
+        int[] indexedColumns = new int[this.columnIndexes.size()];
+        ArrayList<String> columnNames = this.getColumnNames(false);
+        int i = 0;
+        for (ColumnIndex index : this.columnIndexes.values()) {
+            indexedColumns[i++] = columnNames.indexOf(index.getColumnName());
         }
-        try {
-            this.dropColumn(this.getColumnNames(false).get(joinColIndex1));
-            if (joinColIndex1 != idColIndex1) {
-                this.dropColumn(this.getColumnNames(false).get(idColIndex1));
-            }
-            table2.dropColumn(table2.getColumnNames(false).get(joinColIndex2));
-            if (joinColIndex2 != idColIndex2) {
-                table2.dropColumn(table2.getColumnNames(false).get(idColIndex2));
+        return indexedColumns;
+    }
+
+
+    // Queues the values of a row to be added to (or removed from) every column index
+    private void indexColumnValues(int rowIndex, boolean insert, int[] indexedColumns) {
+        if (this.columnIndexes.isEmpty()) return;
+        int id = this.getRowId(rowIndex);
+        if (id == NOT_INDEXED) return;
+        int i = 0;
+        for (ColumnIndex index : this.columnIndexes.values()) {
+            index.addChange(this.columns.get(indexedColumns[i++]).get(rowIndex), id, insert);
+        }
+    }
+
+
+    private void unindexRow(int rowIndex, int[] indexedColumns) {
+        this.indexColumnValues(rowIndex, false, indexedColumns);
+    }
+
+
+    // Writes the changes queued by the current command to the index files. Called before the
+    // changes are logged, so that an index file is marked as out of date before the log holds
+    // anything it is missing.
+    public void flushIndexChanges() throws DBException {
+        if (this.columnIndexesStale) {
+            for (ColumnIndex index : this.columnIndexes.values()) {
+                this.buildColumnIndex(index, false);
             }
-        } catch (DBException error) {
-            throw new DBException(error.getMessage());
-        }
-    }
-
-
-    private void joinTables(DBTable table2, ArrayList<ArrayList<Integer>> table2MatchIndex) {
-        ArrayList<ArrayList<String>> joinedTable = new ArrayList<>();
-        ArrayList<String> joinedHeaders = new ArrayList<>();
-        joinedHeaders.add("id");
-        joinedHeaders.addAll(this.tableHeaders);
-        joinedHeaders.addAll(table2.tableHeaders);
-
-        // Add values
-        ArrayList<String> table1Row;
-        ArrayList<String> table2Row;
-        ArrayList<String> joinedRow;
-        for (int i = 0; i < table2MatchIndex.size(); i++) {
-            table1Row = new ArrayList<>(this.getTableRow(table2MatchIndex.get(i).get(0)));
-            table2Row = new ArrayList<>(table2.getTableRow(table2MatchIndex.get(i).get(1)));
-            joinedRow = new ArrayList<>();
-            joinedRow.add(Integer.toString(i+1));
-            joinedRow.addAll(table1Row);
-            joinedRow.addAll(table2Row);
-            joinedTable.add(joinedRow);
-        }
-        this.tableData = joinedTable;
-        this.tableHeaders = joinedHeaders;
-    }
-
-
-    // This method returns an arraylist of integers that represent the rowIndex
-    // in the joinTable that matches that row in this table. For example, an
-    // arraylist [2, 4, 1, ...] means that row0 in this table is matched by row 2
-    // in the join table, etc. A value of -1 means there is no match in the join
-    // table for that row in this table.
-    private ArrayList<ArrayList<Integer>> matchRows(DBTable table2, int joinColIndex1, int joinColIndex2) {
-        // Each row of the 2D array contains 2 values: row index of table1 + row index of table2 match
-        ArrayList<ArrayList<Integer>> joinTableMatchedRows = new ArrayList<>();
-        for (int table1Row = 0; table1Row < this.getNumberOfRows(); table1Row++) {
-            for (int table2Row = 0; table2Row < table2.getNumberOfRows(); table2Row++) {
-                String table1Value = this.getTableValue(joinColIndex1, table1Row, false);
-                String table2Value = table2.getTableValue(joinColIndex2, table2Row, false);
-                if ((table1Value).equals(table2Value)) {
-                    joinTableMatchedRows.add(new ArrayList<>());
-                    joinTableMatchedRows.get(joinTableMatchedRows.size()-1).add(table1Row);
-                    joinTableMatchedRows.get(joinTableMatchedRows.size()-1).add(table2Row);
-                }
+            this.columnIndexesStale = false;
+            return;
+        }
+        for (ColumnIndex index : this.columnIndexes.values()) {
+            if (index.hasPendingChanges()) {
+                index.applyChanges();
+                this.columnIndexesChanged = true;
             }
         }
-        return joinTableMatchedRows;
+    }
+
+
+    // Records in the index files that they match the table file. Called once the table file
+    // has been written and the log emptied.
+    public void markIndexesClean() throws DBException {
+        if (!this.columnIndexesChanged) return;
+        long tableFileLength = new File(this.tablePath).length();
+        for (ColumnIndex index : this.columnIndexes.values()) {
+            index.markClean(tableFileLength, this.numberOfRows);
+        }
+        this.columnIndexesChanged = false;
+    }
+
+
+    // Build an index on a column. The table file must hold the same rows as memory.
+    public void createIndex(String columnName, ColumnIndex.IndexType indexType) throws DBException {
+        String indexedColumn = columnName.toLowerCase();
+        this.getColumnIndex(indexedColumn);
+        if (this.columnIndexes.containsKey(indexedColumn)) {
+            throw new DBException("Column " + columnName + " already has an index.");
+        }
+        ColumnIndex index = new ColumnIndex(this.tablePath, indexedColumn, indexType);
+        this.buildColumnIndex(index, true);
+        this.columnIndexes.put(indexedColumn, index);
+    }
+
+
+    public void dropIndex(String columnName) throws DBException {
+        ColumnIndex index = this.columnIndexes.remove(columnName.toLowerCase());
+        if (index == null) {
+            throw new DBException("Column " + columnName + " does not have an index.");
+        }
+        index.deleteFile();
+    }
+
+
+    public boolean hasIndex(String columnName) {
+        return this.columnIndexes.containsKey(columnName.toLowerCase());
+    }
+
+
+    // The rows with a value in a column, in the order of the column's index, or null if the
+    // column has no ordered index that is up to date
+    public int[] getRowsInIndexOrder(String columnName) throws DBException {
+        ColumnIndex index = this.columnIndexes.get(columnName.toLowerCase());
+        if (index == null || index.getIndexType() != ColumnIndex.IndexType.ORDERED || !this.idIndexUsable || this.columnIndexesStale || index.hasPendingChanges()) {
+            return null;
+        }
+        ColumnVector column = this.columns.get(this.getColumnIndex(index.getColumnName()));
+        int numberOfValues = 0;
+        for (int rowIndex = 0; rowIndex < this.numberOfRows; rowIndex++) {
+            if (!column.isNull(rowIndex)) numberOfValues++;
+        }
+        int[] rows = new int[numberOfValues];
+        int[] numberFound = new int[1];
+        index.scanInOrder(id -> {
+            int rowIndex = this.idIndex.get(id);
+            if (rowIndex >= 0 && numberFound[0] < rows.length) rows[numberFound[0]++] = rowIndex;
+        });
+        // An index that does not hold every row cannot be used to find all of the matches
+        return numberFound[0] == rows.length ? rows : null;
+    }
+
+
+    // Deletes the index files of a table that is being dropped
+    public void deleteIndexFiles() {
+        for (ColumnIndex index : this.columnIndexes.values()) {
+            index.deleteFile();
+        }
+        this.columnIndexes.clear();
     }
 
 
@@ -545,8 +936,8 @@ public class DBTable {
         // Values
         for (int rowIndex = 0; rowIndex < this.getNumberOfRows(); rowIndex++) {
             for (int columnIndex = 0; columnIndex < this.getNumberOfColumns(); columnIndex++) {
-                String cellData = this.tableData.get(rowIndex).get(columnIndex);
-                if (cellData.equals("null") || cellData.isBlank()) {
+                String cellData = this.columns.get(columnIndex).get(rowIndex);
+                if (cellData == null || cellData.equals("null") || cellData.isBlank()) {
                     cellData = "";
                 }
                 printableTable.append(cellData).append("\t");
@@ -2,14 +2,16 @@ package edu.uob;
 
 import java.io.*;
 import java.util.*;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import edu.uob.DBException.*;
 import edu.uob.Token.*;
 
 public abstract class DBcmd {
-    protected static String databaseName;
-    protected static String databasePath;
+    protected Session session;
+    // Database this command operates on. Starts as the session's current database, but
+    // CREATE/DROP/USE DATABASE point it at the database named in the query.
+    protected String databaseName;
+    protected String databasePath;
     protected ArrayList<Token> tokenStream;
 
     protected TargetType targetType;
@@ -21,18 +23,40 @@ public abstract class DBcmd {
     protected ArrayList<String> valueList;
     protected ArrayList<NameValuePair> nameValueList;
     protected DBTable databaseTable;
+    // Write-ahead log this command's changes were appended to, and the position to wait for
+    private WriteAheadLog commitLog;
+    private long commitPosition;
 
 
-    public DBcmd() {
+    public DBcmd(Session session) {
+        this.session = session;
+        this.databaseName = session.getDatabaseName();
+        this.databasePath = this.getFilePath(null);
     }
 
     public abstract String handleQuery();
 
+    // Sends the response to a sink. Commands that return a table override this to send it
+    // row by row; the rest send the message from handleQuery().
+    public void handleQuery(ResultSink resultSink) throws IOException {
+        resultSink.writeMessage(this.handleQuery());
+    }
+
     public abstract void parseCommand() throws DBException;
 
     public void setDatabaseName(String dbName) {
-        databaseName = dbName;
-        databasePath = this.getFilePath(null);
+        this.databaseName = dbName;
+        this.databasePath = this.getFilePath(null);
+    }
+
+    public String getDatabaseName() {
+        return this.databaseName;
+    }
+
+    // Commands that only read from the database can run alongside each other. Commands that
+    // change it need the database to themselves.
+    public boolean isReadOnly() {
+        return false;
     }
 
 
@@ -89,6 +113,28 @@ public abstract class DBcmd {
     }
 
 
+    // Utility function for parsing the target of CREATE INDEX and DROP INDEX:
+    // "INDEX" "ON" [TableName] "(" [AttributeName] ")"
+    protected void parseIndexTarget() throws DBException {
+        this.parseIndexTarget(0);
+    }
+
+
+    // As above, with extraTokens words after the closing bracket for the caller to parse
+    protected void parseIndexTarget(int extraTokens) throws DBException {
+        checkQueryLength(8 + extraTokens);
+        checkKeyword(2, "on");
+        checkIdentifier(3);
+        checkKeyword(4, "(");
+        checkIdentifier(5);
+        checkKeyword(6, ")");
+        // CREATE queries keep the case of everything after their third word
+        this.tableName = this.tokenStream.get(3).getTokenValue().toLowerCase();
+        this.tablePath = this.getFilePath(this.tableName);
+        this.attributeList = new ArrayList<>(List.of(this.tokenStream.get(5).getTokenValue()));
+    }
+
+
     // Utility function for parsing attribute lists
     protected void parseAttributeList(List<Token> attributeList) {
         ArrayList<String> attributes = new ArrayList<>();
@@ -124,150 +170,23 @@ public abstract class DBcmd {
 
 
     // Utility functions for parsing Conditions
-    protected static void removeBrackets(List<Token> tokens) {
-        tokens.removeIf(token -> "(".equals(token.getTokenValue()) || ")".equals(token.getTokenValue()));
-    }
-
-
-    // Parses terminal conditions that contains no whitespace between values
-    // and comparator e.g. age<40.
-    protected static List<Token> parseConditionNoWhitespace(List<Token> tokens) {
-        // If no spaces between condition tokens, separate them out
-        List<String> comparators = Arrays.asList("==", ">", "<", ">=", "<=", "!=");
-        List<Token> parsedTokens = new ArrayList<>(tokens);
-        for (Token token: tokens) {
-            for (String comparator : comparators) {
-                if (!token.getTokenValue().equals(comparator) &&
-                        token.getTokenValue().contains(comparator)) {
-                    int conditionIndex = tokens.indexOf(token);
-                    String[] tokenValues = token.getTokenValue().split(comparator);
-                    parsedTokens.remove(conditionIndex);
-                    parsedTokens.add(conditionIndex, new Token(tokenValues[0]));
-                    parsedTokens.add(conditionIndex+1, new Token(comparator));
-                    parsedTokens.add(conditionIndex+2, new Token(tokenValues[1]));
-                    break;
-                }
-            }
-        }
-        return parsedTokens;
-    }
-
-
     protected void parseConditions(List<Token> conditionTokens) throws DBException {
         // If no condition, just return
         if (conditionTokens.isEmpty()) return;
 
-        // If no spaces between condition tokens, separate them out
-        conditionTokens = parseConditionNoWhitespace(conditionTokens);
-
-        // Top-level Condition object
-        Condition topCondition = new Condition();
-        parseNonTerminalCondition(topCondition, conditionTokens);
-        this.condition = topCondition;
-    }
-
-
-    // If there are brackets in the condition, correctly apply precedence rules. I.e. top-level condition
-    // is the last to be evaluated, so conditions most deeply nested in brackets are most deeply nested in
-    // recursive condition structure.
-    private static int evaluatePrecedence(List<Token> tokens, int boolOperatorIndex) {
-        int openBracketIndex = findToken(tokens, "(");
-        int closeBracketIndex = findToken(tokens, ")");
-
-        // Precedence - evaluate condition within the brackets (if they are present) first.
-        if (openBracketIndex != -1 && closeBracketIndex != -1) {
-            // Is there a boolean operator outside the brackets? If so, this is top-level bool operator
-            while (boolOperatorIndex != -1 && boolOperatorIndex > openBracketIndex &&
-                    boolOperatorIndex < closeBracketIndex) {
-                boolOperatorIndex = indexOfBooleanOperator(tokens.subList(closeBracketIndex+1,
-                        tokens.size()))+closeBracketIndex+1;
-            }
-            // If gets to end of loop and boolOperatorIndex == -1, means that the only boolOperator is
-            // inside the brackets - use this one. Else, start with the boolOperator outside the bracket
-            if (boolOperatorIndex == -1 || !(tokens.get(boolOperatorIndex).getTokenValue().equals("and") ||
-                    tokens.get(boolOperatorIndex).getTokenValue().equals("or"))) {
-                boolOperatorIndex = indexOfBooleanOperator(tokens);
-            }
-        }
-        return boolOperatorIndex;
-    }
-
-
-    protected void parseNonTerminalCondition(Condition condition, List<Token> tokens)
-            throws DBException {
-        int boolOperatorIndex = indexOfBooleanOperator(tokens);
-        if (boolOperatorIndex == -1) {
-            parseTerminalCondition(condition, tokens);
-            return;
-        }
-        Condition condition1 = new Condition();
-        Condition condition2 = new Condition();
-        // Precedence - evaluate condition within the brackets (if they are present) first.
-        boolOperatorIndex = evaluatePrecedence(tokens, boolOperatorIndex);
-
-        // Recursively evaluate non-terminal conditions within this condition
-        List<Token> tokensSublist1 = new ArrayList<>(tokens.subList(0, boolOperatorIndex));
-        List<Token> tokensSublist2 = new ArrayList<>(tokens.subList(boolOperatorIndex + 1, tokens.size()));
-        parseNonTerminalCondition(condition1, tokensSublist1);
-        parseNonTerminalCondition(condition2, tokensSublist2);
-        condition.setCondition1(condition1);
-        condition.setCondition2(condition2);
-
-        BooleanOperator booleanOperator = getBooleanOperator(tokens, boolOperatorIndex);
-        condition.setBooleanOperator(booleanOperator);
-    }
-
-
-    private static BooleanOperator getBooleanOperator(List<Token> tokens, int boolOperatorIndex)
-            throws DBException {
-        BooleanOperator booleanOperator;
-        if (tokens.get(boolOperatorIndex).getTokenValue().equals("and")) {
-            booleanOperator = BooleanOperator.AND;
-        } else if (tokens.get(boolOperatorIndex).getTokenValue().equals("or")) {
-            booleanOperator = BooleanOperator.OR;
-        } else {
-            throw new DBException("Malformed condition.");
-        }
-        return booleanOperator;
-    }
-
-
-    protected static void parseTerminalCondition(Condition condition, List<Token> tokens)
-            throws DBException {
-        // Remove brackets
-        removeBrackets(tokens);
-        List<String> comparators = Arrays.asList("==", ">", "<", ">=", "<=", "!=", "like");
-        // No boolean operator means terminal condition -> [attributeName] [comparator] [value]
-        if (tokens.size() != 3 ||
-                !comparators.contains(tokens.get(1).getTokenValue())){
-            throw new DBException("Malformed condition");
-        }
-        condition.setAttributeName(tokens.get(0).getTokenValue());
-        condition.setComparator(tokens.get(1).getTokenValue());
-        condition.setValue(tokens.get(2).getTokenValue());
-    }
-
-
-    protected static int indexOfBooleanOperator(List<Token> tokens) {
-        List<String> booleanOperators = Arrays.asList("and", "or");
-        for (int i = 0; i < tokens.size(); i++) {
-            for (String operator: booleanOperators) {
-                if (tokens.get(i).getTokenValue().equals(operator)) return i;
-            }
-        }
-        return -1; // -1 means not found
+        this.condition = ConditionParser.parse(conditionTokens);
     }
 
 
-    // Returns a list of the ids of columns to be deleted/updated (where condition is true)
-    protected ArrayList<String> filterTableByCondition()
+    // Returns the positions of the rows to be deleted/updated (where condition is true)
+    protected BitSet filterTableByCondition()
             throws DBException {
-        ArrayList<String> filteredDataIds = this.databaseTable.filterRows(this.condition);
-        // If WHERE condition is never true, i.e. the above returns an empty list, error
-        if (filteredDataIds.isEmpty()) {
+        BitSet filteredRows = this.databaseTable.filterRows(this.condition);
+        // If WHERE condition is never true, i.e. the above returns an empty set, error
+        if (filteredRows.isEmpty()) {
             throw new DBException("No rows in the table matched the condition. Nothing was changed.");
         }
-        return filteredDataIds;
+        return filteredRows;
     }
 
 
@@ -306,8 +225,7 @@ public abstract class DBcmd {
 
     // Utility functions for file I/O and database table instantiation
     protected String getFilePath(String tableName) {
-        String storageFolderPath = Paths.get("databases").toAbsolutePath().toString();
-        String filePath = storageFolderPath + File.separator + databaseName;
+        String filePath = this.session.getDatabasePath(this.databaseName);
         if (tableName != null) {
             return filePath + File.separator + tableName + ".tab";
         }
@@ -353,6 +271,40 @@ public abstract class DBcmd {
     protected void instantiateDatabaseTable()
             throws DBException {
         this.checkTableExists();
-        this.databaseTable = new DBTable(this.tablePath);
+        this.databaseTable = this.session.getTableCache().getTable(this.tablePath);
+    }
+
+
+    // Append this command's changes to the database's write-ahead log, after applying them to
+    // the table's indexes. They are saved to disk by awaitDurability(), once the database lock
+    // has been released.
+    protected void logChanges(List<WriteAheadLog.Record> records) throws DBException {
+        this.databaseTable.flushIndexChanges();
+        WriteAheadLog log = this.session.getLogManager().getLog(this.databasePath);
+        this.commitPosition = log.append(records);
+        this.commitLog = log;
+    }
+
+
+    // Waits until the changes made by this command are safely on disk. Commands from other
+    // sessions that finish in the meantime share the same sync of the log (group commit).
+    public void awaitDurability() throws DBException {
+        if (this.commitLog != null) {
+            this.commitLog.awaitDurable(this.commitPosition);
+        }
+    }
+
+
+    // Writes logged changes into the table files and empties the log. Commands that change the
+    // structure of the database do this first, so the log never holds rows of an old layout.
+    protected void checkpointDatabase() throws DBException {
+        this.session.getLogManager().checkpoint(this.databasePath, this.session.getTableCache());
+    }
+
+
+    // Called when a command fails after it may have changed the cached copy of its table,
+    // so that the table is read from disk again next time
+    protected void invalidateCachedTable() {
+        this.session.getTableCache().invalidateTable(this.tablePath);
     }
 }
\ No newline at end of file
@@ -1,9 +1,12 @@
 package edu.uob;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 public class DeleteCMD extends DBcmd {
-    public DeleteCMD(ArrayList<Token> tokenStream) {
+    public DeleteCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
         this.tokenStream = tokenStream;
     }
 
@@ -28,31 +31,34 @@ public class DeleteCMD extends DBcmd {
             return exception.getMessage();
         }
 
-        // Apply condition - get ids of the rows the condition applies to
-        ArrayList<String> filteredDataIds;
+        // Apply condition - get the rows the condition applies to. This does not change the
+        // table, so the cached table is still good if it fails.
+        BitSet filteredRows;
         try {
-            filteredDataIds = this.filterTableByCondition();
-            // Delete all rows where condition is true and write results to filesystem
-            this.deleteRows(filteredDataIds);
+            filteredRows = this.filterTableByCondition();
         } catch (DBException error) {
             return error.getMessage();
         }
+        try {
+            // Delete all rows where condition is true and log the deletions
+            this.deleteRows(filteredRows);
+        } catch (DBException error) {
+            this.invalidateCachedTable();
+            return error.getMessage();
+        }
         return "[OK]";
     }
 
 
-    private void deleteRows(ArrayList<String> filteredDataIds)
+    private void deleteRows(BitSet filteredRows)
             throws DBException {
         int idColumnIndex = this.databaseTable.getColumnIndex("id");
-        int rowIndex = 0;
-        int numberOfRows = this.databaseTable.getNumberOfRows();
-        for (int i = 0; i < numberOfRows; i++) {
-            if (filteredDataIds.contains(this.databaseTable.getTableValue(idColumnIndex, rowIndex, false))) {
-                this.databaseTable.deleteTableRow(rowIndex);
-            } else {
-                rowIndex++;
-            }
+        List<WriteAheadLog.Record> changes = new ArrayList<>();
+        for (int rowIndex = filteredRows.nextSetBit(0); rowIndex >= 0; rowIndex = filteredRows.nextSetBit(rowIndex + 1)) {
+            String id = this.databaseTable.getTableValue(idColumnIndex, rowIndex, true);
+            changes.add(WriteAheadLog.Record.delete(this.databaseTable.getTableName(), id));
         }
-        this.databaseTable.writeDataToFile();
+        this.databaseTable.deleteTableRows(filteredRows);
+        this.logChanges(changes);
     }
 }
\ No newline at end of file
@@ -7,13 +7,20 @@ import edu.uob.DBException.*;
 
 public class DropCMD extends DBcmd {
 
-    public DropCMD(ArrayList<Token> tokenStream) {
+    public DropCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
         this.tokenStream = tokenStream;
     }
 
 
     public void parseCommand() throws DBException {
-        // <Drop> ::= "DROP" "DATABASE" [DatabaseName] | "DROP" "TABLE" [TableName]
+        // <Drop> ::= "DROP" "DATABASE" [DatabaseName] | "DROP" "TABLE" [TableName] |
+        //            "DROP" "INDEX" "ON" [TableName] "(" [AttributeName] ")"
+        if (this.tokenStream.size() > 1 && this.tokenStream.get(1).getTokenValue().equals("index")) {
+            this.targetType = TargetType.INDEX;
+            this.parseIndexTarget();
+            return;
+        }
         checkQueryLength(4);
         checkIdentifier(2);
 
@@ -26,8 +33,8 @@ public class DropCMD extends DBcmd {
             this.parseDropTable();
         }
         else {
-            throw new DBException("Malformed query. The second word of a DROP query should be either " +
-                    "DATABASE or TABLE, but you input " + this.tokenStream.get(1).getTokenValue());
+            throw new DBException("Malformed query. The second word of a DROP query should be " +
+                    "DATABASE, TABLE or INDEX, but you input " + this.tokenStream.get(1).getTokenValue());
         }
     }
 
@@ -50,9 +57,12 @@ public class DropCMD extends DBcmd {
         else if (this.targetType == TargetType.TABLE) {
             return deleteTable();
         }
+        else if (this.targetType == TargetType.INDEX) {
+            return deleteIndex();
+        }
         else {
             return new DBException("Sorry, something was wrong with your query. " +
-                    "DROP must be followed by either DATABASE or TABLE.").getMessage();
+                    "DROP must be followed by DATABASE, TABLE or INDEX.").getMessage();
         }
     }
 
@@ -65,6 +75,8 @@ public class DropCMD extends DBcmd {
         // If database doesn't exist, you can't delete it
         databaseToBeDeleted = new File(databasePath);
         if (!databaseToBeDeleted.exists()) return new databaseDoesNotExistException(databaseName).getMessage();
+        this.session.getLogManager().closeLog(databasePath);
+        this.session.getTableCache().invalidateDatabase(databasePath);
 
         for (File file : databaseToBeDeleted.listFiles()) {
             if (!file.delete()) {
@@ -87,8 +99,13 @@ public class DropCMD extends DBcmd {
         if (!tableToBeDeleted.exists()) return new tableDoesNotExistException(this.tableName).getMessage();
         // Delete metadata
         try {
+            // Write logged changes out first, so none are left to be replayed into a new
+            // table with the same name
+            this.checkpointDatabase();
+            this.invalidateCachedTable();
             DBTable droppedTableData = new DBTable(this.tablePath);
             droppedTableData.deleteMetadataRow();
+            droppedTableData.deleteIndexFiles();
         } catch (DBException exception) {
             return exception.getMessage();
         }
@@ -98,4 +115,16 @@ public class DropCMD extends DBcmd {
         }
         return "[OK]";
     }
+
+
+    // Drop the index on a column of a table
+    public String deleteIndex() {
+        try {
+            this.instantiateDatabaseTable();
+            this.databaseTable.dropIndex(this.attributeList.get(0));
+        } catch (DBException exception) {
+            return exception.getMessage();
+        }
+        return "[OK]";
+    }
 }
@@ -0,0 +1,83 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uob.DBException.*;
+import edu.uob.Token.*;
+
+// Runs a statement saved by PREPARE. Once the values are bound, everything is passed on to
+// the command for the statement, which is parsed and run as if it had been sent itself.
+public class ExecuteCMD extends DBcmd {
+    private DBcmd statement;
+
+    public ExecuteCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
+        this.tokenStream = tokenStream;
+    }
+
+
+    public void parseCommand() throws DBException {
+        // <Execute> ::= "EXECUTE " [StatementName] | "EXECUTE " [StatementName] "(" <ValueList> ")"
+        checkIdentifier(1);
+        String statementName = this.tokenStream.get(1).getTokenValue();
+        PreparedStatement preparedStatement = this.session.getPreparedStatement(statementName);
+        if (preparedStatement == null) {
+            throw new DBException("There is no prepared statement called " + statementName + ".");
+        }
+        List<Token> values = new ArrayList<>();
+        if (this.tokenStream.size() != 3) {
+            checkKeyword(2, "(");
+            checkKeyword(this.tokenStream.size() - 2, ")");
+            this.parseExecuteValues(this.tokenStream.subList(3, this.tokenStream.size() - 2), values);
+        }
+        this.statement = preparedStatement.bind(values, this.session);
+        this.statement.parseCommand();
+    }
+
+
+    // Values are separated by commas. Each is one token, and so cannot be a bracket or comma.
+    private void parseExecuteValues(List<Token> valueList, List<Token> values) throws DBException {
+        for (int i = 0; i < valueList.size(); i++) {
+            Token token = valueList.get(i);
+            boolean isSeparator = token.getTokenType() == TokenType.symbol && token.getTokenValue().equals(",");
+            if (i % 2 == 1) {
+                if (!isSeparator) throw new malformedQueryException();
+            } else {
+                if (isSeparator || (token.getTokenType() == TokenType.symbol &&
+                        (token.getTokenValue().equals("(") || token.getTokenValue().equals(")")))) {
+                    throw new malformedQueryException();
+                }
+                values.add(token);
+            }
+        }
+        // No trailing comma
+        if (valueList.size() % 2 == 0 && !valueList.isEmpty()) throw new malformedQueryException();
+    }
+
+
+    public String handleQuery() {
+        return this.statement.handleQuery();
+    }
+
+
+    public void handleQuery(ResultSink resultSink) throws IOException {
+        this.statement.handleQuery(resultSink);
+    }
+
+
+    public String getDatabaseName() {
+        return this.statement.getDatabaseName();
+    }
+
+
+    public boolean isReadOnly() {
+        return this.statement.isReadOnly();
+    }
+
+
+    public void awaitDurability() throws DBException {
+        this.statement.awaitDurability();
+    }
+}
@@ -0,0 +1,195 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Optional length-prefixed protocol, negotiated when a client connects.
+//
+// A framed client starts by sending HANDSHAKE, and the server echoes it back. Text clients
+// never start with a zero byte, so the server can tell the two apart from the first byte.
+// After the handshake, every message is a frame: a one byte frame type, a four byte
+// big-endian payload length, then the UTF-8 payload. A command is sent as one REQUEST frame
+// (so it may contain newlines), and a response comes back as any number of CHUNK frames
+// followed by an END frame, so large results can be read while they are still being sent.
+public class FramedProtocol {
+    static final byte[] HANDSHAKE = {0, 'D', 'B', 'F', 1};
+    public static final byte REQUEST = 'Q';
+    public static final byte CHUNK = 'C';
+    public static final byte END = 'E';
+    // Responses are sent in chunks of about this many characters
+    static final int CHUNK_SIZE = 8192;
+    // Largest payload a frame may have. The length comes from the other side of the
+    // connection, so it is checked before a buffer that size is allocated.
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+
+    // Server side: if the client opened with the framed handshake, consume it, acknowledge it and
+    // return true. Otherwise leave the stream untouched (a text client) and return false.
+    public static boolean acceptHandshake(BufferedInputStream input, OutputStream output) throws IOException {
+        input.mark(HANDSHAKE.length);
+        if (input.read() != HANDSHAKE[0]) {
+            input.reset();
+            return false;
+        }
+        byte[] handshake = new byte[HANDSHAKE.length];
+        int bytesRead = input.readNBytes(handshake, 1, HANDSHAKE.length - 1) + 1;
+        if (bytesRead != HANDSHAKE.length || !Arrays.equals(handshake, HANDSHAKE)) {
+            throw new IOException("Client sent an unsupported protocol handshake");
+        }
+        output.write(HANDSHAKE);
+        output.flush();
+        return true;
+    }
+
+
+    // Client side: switch the connection to framed mode
+    public static void sendHandshake(InputStream input, OutputStream output) throws IOException {
+        output.write(HANDSHAKE);
+        output.flush();
+        byte[] reply = input.readNBytes(HANDSHAKE.length);
+        if (!Arrays.equals(reply, HANDSHAKE)) {
+            throw new IOException("Server does not support the framed protocol");
+        }
+    }
+
+
+    public static void writeFrame(OutputStream output, byte frameType, byte[] payload, int length)
+            throws IOException {
+        output.write(frameType);
+        output.write(length >>> 24);
+        output.write(length >>> 16);
+        output.write(length >>> 8);
+        output.write(length);
+        output.write(payload, 0, length);
+    }
+
+
+    public static void writeRequest(OutputStream output, String command) throws IOException {
+        byte[] payload = command.getBytes(StandardCharsets.UTF_8);
+        writeFrame(output, REQUEST, payload, payload.length);
+        output.flush();
+    }
+
+
+    // Reads frames one at a time into a payload buffer that is reused for every frame
+    public static class FrameReader {
+        private final DataInputStream input;
+        private byte[] payload = new byte[CHUNK_SIZE];
+        private byte frameType;
+        private int payloadLength;
+
+        public FrameReader(InputStream input) {
+            this.input = new DataInputStream(input);
+        }
+
+        // Returns false if the connection was closed cleanly before the next frame
+        public boolean readFrame() throws IOException {
+            int type = this.input.read();
+            if (type == -1) return false;
+            this.frameType = (byte) type;
+            this.payloadLength = this.input.readInt();
+            if (this.payloadLength < 0) {
+                throw new IOException("Received a frame with negative length " + this.payloadLength);
+            }
+            if (this.payloadLength > MAX_FRAME_SIZE) {
+                throw new IOException("Received a frame of " + this.payloadLength + " bytes, more than the maximum of " +
+                        MAX_FRAME_SIZE);
+            }
+            if (this.payloadLength > this.payload.length) {
+                this.payload = new byte[Math.max(this.payloadLength, this.payload.length * 2)];
+            }
+            this.input.readFully(this.payload, 0, this.payloadLength);
+            return true;
+        }
+
+        public byte getFrameType() {
+            return this.frameType;
+        }
+
+        public String getPayloadAsString() {
+            return new String(this.payload, 0, this.payloadLength, StandardCharsets.UTF_8);
+        }
+    }
+
+
+    // Writer that turns whatever is written to it into CHUNK frames of about CHUNK_SIZE
+    // characters, sending each one as soon as it is full. endResponse() sends the remainder
+    // followed by an END frame. The character and byte buffers are reused for every chunk.
+    public static class ResponseWriter extends Writer {
+        private final OutputStream output;
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final CharBuffer pendingChars = CharBuffer.allocate(CHUNK_SIZE);
+        private final ByteBuffer encodedBytes;
+
+        public ResponseWriter(OutputStream output) {
+            this.output = output;
+            this.encodedBytes = ByteBuffer.allocate((int) (CHUNK_SIZE * this.encoder.maxBytesPerChar()));
+        }
+
+        public void write(char[] characters, int offset, int length) throws IOException {
+            while (length > 0) {
+                int count = Math.min(length, this.pendingChars.remaining());
+                this.pendingChars.put(characters, offset, count);
+                offset += count;
+                length -= count;
+                if (!this.pendingChars.hasRemaining()) {
+                    this.sendChunk(false);
+                }
+            }
+        }
+
+        public void write(String text, int offset, int length) throws IOException {
+            while (length > 0) {
+                int count = Math.min(length, this.pendingChars.remaining());
+                this.pendingChars.put(text, offset, offset + count);
+                offset += count;
+                length -= count;
+                if (!this.pendingChars.hasRemaining()) {
+                    this.sendChunk(false);
+                }
+            }
+        }
+
+        private void sendChunk(boolean endOfResponse) throws IOException {
+            this.pendingChars.flip();
+            this.encodedBytes.clear();
+            CoderResult result = this.encoder.encode(this.pendingChars, this.encodedBytes, endOfResponse);
+            if (result.isError()) result.throwException();
+            if (endOfResponse) {
+                this.encoder.flush(this.encodedBytes);
+                this.encoder.reset();
+            }
+            // An unpaired high surrogate at the end of a full chunk stays for the next chunk
+            this.pendingChars.compact();
+            if (this.encodedBytes.position() > 0) {
+                writeFrame(this.output, CHUNK, this.encodedBytes.array(), this.encodedBytes.position());
+                // Send full chunks straight away so the client can start reading them
+                if (!endOfResponse) this.output.flush();
+            }
+        }
+
+        // Finish the current response. The underlying stream is flushed only if requested,
+        // so pipelined responses can share packets.
+        public void endResponse(boolean flush) throws IOException {
+            this.sendChunk(true);
+            writeFrame(this.output, END, this.encodedBytes.array(), 0);
+            if (flush) this.output.flush();
+        }
+
+        public void flush() throws IOException {
+            this.output.flush();
+        }
+
+        public void close() throws IOException {
+            this.output.close();
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package edu.uob;
+
+import java.util.Arrays;
+
+// Hash index from the id (primary key) of each row of a DBTable to the row's position, so that
+// "WHERE id == 42" finds its row without a scan. Ids and positions are kept in two int arrays
+// with open addressing and linear probing, so lookups do not box or allocate.
+//
+// Deleting a row moves every row after it, so DBTable rebuilds the index after deletes rather
+// than adjusting it. The index is only ever changed by commands that hold the database's write
+// lock, and so is never rebuilt while a SELECT is reading it.
+public class IdIndex {
+    private static final int EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] ids;
+    private int[] rows;
+    private int size;
+    private int mask;
+
+
+    public IdIndex() {
+        this.clear();
+    }
+
+
+    public void clear() {
+        this.ids = new int[INITIAL_CAPACITY];
+        this.rows = new int[INITIAL_CAPACITY];
+        Arrays.fill(this.rows, EMPTY);
+        this.size = 0;
+        this.mask = INITIAL_CAPACITY - 1;
+    }
+
+
+    // Returns the position of the row with the given id, or -1 if there is none
+    public int get(int id) {
+        for (int slot = slot(id, this.mask); this.rows[slot] != EMPTY; slot = (slot + 1) & this.mask) {
+            if (this.ids[slot] == id) return this.rows[slot];
+        }
+        return EMPTY;
+    }
+
+
+    // Adds a row and returns false if the id is already in the index
+    public boolean put(int id, int row) {
+        if (2 * (this.size + 1) > this.rows.length) {
+            this.resize(this.rows.length * 2);
+        }
+        int slot = slot(id, this.mask);
+        while (this.rows[slot] != EMPTY) {
+            if (this.ids[slot] == id) return false;
+            slot = (slot + 1) & this.mask;
+        }
+        this.ids[slot] = id;
+        this.rows[slot] = row;
+        this.size++;
+        return true;
+    }
+
+
+    public int size() {
+        return this.size;
+    }
+
+
+    private void resize(int capacity) {
+        int[] oldIds = this.ids;
+        int[] oldRows = this.rows;
+        this.ids = new int[capacity];
+        this.rows = new int[capacity];
+        Arrays.fill(this.rows, EMPTY);
+        this.mask = capacity - 1;
+        for (int oldSlot = 0; oldSlot < oldRows.length; oldSlot++) {
+            if (oldRows[oldSlot] == EMPTY) continue;
+            int slot = slot(oldIds[oldSlot], this.mask);
+            while (this.rows[slot] != EMPTY) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.ids[slot] = oldIds[oldSlot];
+            this.rows[slot] = oldRows[oldSlot];
+        }
+    }
+
+
+    // Ids are mostly consecutive, so spread them over the table before masking
+    private static int slot(int id, int mask) {
+        int hash = id * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+}
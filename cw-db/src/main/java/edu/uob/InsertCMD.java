@@ -1,36 +1,78 @@
 package edu.uob;
 
 import java.util.ArrayList;
+import java.util.List;
 import edu.uob.DBException.*;
+import edu.uob.Token.TokenType;
 
 public class InsertCMD extends DBcmd {
+    // The values of each row to be inserted
+    private final List<ArrayList<String>> rows = new ArrayList<>();
 
-    public InsertCMD(ArrayList<Token> tokenStream) {
+    public InsertCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
         this.tokenStream = tokenStream;
     }
 
 
     public void parseCommand() throws DBException {
-        // <Insert> ::= "INSERT " "INTO " [TableName] "VALUES " "(" <ValueList> ")"
+        // <Insert> ::= "INSERT " "INTO " [TableName] "VALUES " <RowList>
         checkKeyword(1, "into");
         checkKeyword(3, "values");
         checkKeyword(4, "(");
         checkKeyword(this.tokenStream.size()-2, ")");
         checkIdentifier(2);
 
-        String tableName = this.tokenStream.get(2).getTokenValue();
-        this.tablePath = this.getFilePath(tableName);
-        this.parseValueList(this.tokenStream.subList(5, this.tokenStream.size()-2));
+        this.tableName = this.tokenStream.get(2).getTokenValue();
+        this.tablePath = this.getFilePath(this.tableName);
+        this.parseRowList(4);
+    }
+
+
+    // <RowList> ::= "(" <ValueList> ")" | "(" <ValueList> ")" "," <RowList>
+    private void parseRowList(int position) throws DBException {
+        int semicolonIndex = this.tokenStream.size() - 1;
+        while (true) {
+            checkKeyword(position, "(");
+            int closingBracket = this.findClosingBracket(position + 1);
+            if (closingBracket == -1) throw new malformedQueryException();
+            this.parseValueList(this.tokenStream.subList(position + 1, closingBracket));
+            this.rows.add(this.valueList);
+            position = closingBracket + 1;
+            if (position == semicolonIndex) return;
+            checkKeyword(position, ",");
+            position++;
+        }
+    }
+
+
+    // Returns the index of the first ")" from start, or -1 if there is none before the semicolon.
+    // A quoted ')' is a value, not a bracket.
+    private int findClosingBracket(int start) {
+        for (int i = start; i < this.tokenStream.size() - 1; i++) {
+            Token token = this.tokenStream.get(i);
+            if (token.getTokenType() == TokenType.symbol && token.getTokenValue().equals(")")) return i;
+        }
+        return -1;
     }
 
 
     public String handleQuery() {
         try {
             this.instantiateDatabaseTable();
-            this.databaseTable.insertRow(this.valueList);
-            this.databaseTable.writeDataToFile();
+        } catch (DBException exception) {
+            return exception.getMessage();
+        }
+        try {
+            // All of the rows go into the write-ahead log together, so they are saved by one write
+            List<WriteAheadLog.Record> records = new ArrayList<>(this.rows.size());
+            for (ArrayList<String> newRow : this.databaseTable.insertRows(this.rows)) {
+                records.add(WriteAheadLog.Record.insert(this.databaseTable.getTableName(), newRow));
+            }
+            this.logChanges(records);
             return "[OK]";
         } catch (DBException exception) {
+            this.invalidateCachedTable();
             return exception.getMessage();
         }
     }
@@ -1,6 +1,8 @@
 package edu.uob;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import edu.uob.DBException.*;
 
 
@@ -14,7 +16,8 @@ public class JoinCMD extends DBcmd {
     private DBTable databaseTable1;
     private DBTable databaseTable2;
 
-    public JoinCMD(ArrayList<Token> tokenStream) {
+    public JoinCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
         this.tokenStream = tokenStream;
     }
 
@@ -44,23 +47,65 @@ public class JoinCMD extends DBcmd {
 
 
     public String handleQuery() {
+        return TextResultSink.collect(this);
+    }
+
+
+    // Matching rows are sent to the sink as they are found, without building the joined table
+    // in memory or changing the tables that are being joined
+    public void handleQuery(ResultSink resultSink) throws IOException {
+        int joinColIndex1;
+        int joinColIndex2;
+        List<Integer> outputColumns1;
+        List<Integer> outputColumns2;
+        JoinMatches joinMatches;
         try {
             this.instantiateTables();
 
             // Get indices of joining columns (handle errors if they dont exist)
-            int joinColIndex1 = getJoinColumnIndex(databaseTable1, this.joinAttribute1);
-            int joinColIndex2 = getJoinColumnIndex(databaseTable2, this.joinAttribute2);
-            
-            // attribute names are prepended with name of table from which they originated
-            this.prependColumnName(databaseTable1);
-            this.prependColumnName(databaseTable2);
-
-            // Join tables
-            databaseTable1.joinTable(databaseTable2, joinColIndex1, joinColIndex2);
+            joinColIndex1 = getJoinColumnIndex(databaseTable1, this.joinAttribute1);
+            joinColIndex2 = getJoinColumnIndex(databaseTable2, this.joinAttribute2);
+
+            // For JOINs: discard the ids from the original tables and the columns that the
+            // tables were matched on
+            outputColumns1 = getOutputColumns(databaseTable1, joinColIndex1);
+            outputColumns2 = getOutputColumns(databaseTable2, joinColIndex2);
+
+            // Join values are compared case-insensitively
+            joinMatches = this.findMatches(getJoinValues(databaseTable1, joinColIndex1),
+                    getJoinValues(databaseTable2, joinColIndex2));
         } catch (DBException exception) {
-            return exception.getMessage();
+            resultSink.writeMessage(exception.getMessage());
+            return;
+        }
+
+        // attribute names are prepended with name of table from which they originated
+        List<String> joinedHeaders = new ArrayList<>();
+        joinedHeaders.add("id");
+        this.addColumnNames(joinedHeaders, databaseTable1, outputColumns1);
+        this.addColumnNames(joinedHeaders, databaseTable2, outputColumns2);
+        resultSink.writeHeader(joinedHeaders);
+
+        // Joined rows are numbered from 1. The row list is reused for every joined row.
+        List<String> joinedRow = new ArrayList<>(joinedHeaders.size());
+        int joinedRowId = 1;
+        for (int table1Row = 0; table1Row < databaseTable1.getNumberOfRows(); table1Row++) {
+            int numberOfMatches = joinMatches.getNumberOfMatches(table1Row);
+            if (numberOfMatches == 0) continue;
+            List<String> table1Values = databaseTable1.getTableRow(table1Row);
+            for (int match = 0; match < numberOfMatches; match++) {
+                joinedRow.clear();
+                joinedRow.add(Integer.toString(joinedRowId++));
+                addValues(joinedRow, table1Values, outputColumns1);
+                addValues(joinedRow, databaseTable2.getTableRow(joinMatches.getMatch(table1Row, match)), outputColumns2);
+                resultSink.writeRow(joinedRow);
+            }
         }
-        return "[OK]\r\n" + databaseTable1;
+    }
+
+
+    public boolean isReadOnly() {
+        return true;
     }
 
 
@@ -72,21 +117,75 @@ public class JoinCMD extends DBcmd {
         if (!checkFileExists(this.tablePath2)) {
             throw new tableDoesNotExistException(this.tableName2);
         }
-        this.databaseTable1 = new DBTable(this.tablePath1);
-        this.databaseTable2 = new DBTable(this.tablePath2);
+        // Rows that have only been logged so far are in the cached tables, not the files
+        this.databaseTable1 = this.session.getTableCache().getTable(this.tablePath1);
+        this.databaseTable2 = this.session.getTableCache().getTable(this.tablePath2);
     }
 
 
-    private void prependColumnName(DBTable databaseTable) throws DBException {
-        // attribute names are prepended with name of table from which they originated
-        for (String columnName : databaseTable.getColumnNames(true)) {
-            try {
-                databaseTable.editColumnName(columnName, databaseTable.getTableName() +
-                        "." + columnName);
-            } catch (Exception error) {
-                throw new DBException("Failed to prepend column " + columnName + " : " + error.getMessage());
+    // Every column except the id column and the joining column
+    private static List<Integer> getOutputColumns(DBTable databaseTable, int joinColIndex)
+            throws DBException {
+        int idColIndex = databaseTable.getColumnNames(false).indexOf("id");
+        if (idColIndex == -1) {
+            throw new DBException("An id column was not found in one of the tables.");
+        }
+        List<Integer> outputColumns = new ArrayList<>();
+        for (int colIndex = 0; colIndex < databaseTable.getNumberOfColumns(); colIndex++) {
+            if (colIndex != idColIndex && colIndex != joinColIndex) {
+                outputColumns.add(colIndex);
             }
         }
+        return outputColumns;
+    }
+
+
+    private void addColumnNames(List<String> joinedHeaders, DBTable databaseTable, List<Integer> columns) {
+        ArrayList<String> columnNames = databaseTable.getColumnNames(true);
+        for (int colIndex : columns) {
+            joinedHeaders.add(databaseTable.getTableName() + "." + columnNames.get(colIndex));
+        }
+    }
+
+
+    private static void addValues(List<String> joinedRow, List<String> tableRow, List<Integer> columns) {
+        for (int colIndex : columns) {
+            joinedRow.add(tableRow.get(colIndex));
+        }
+    }
+
+
+    // A merge join needs no hash table, so it is used when the rows of both tables can be read
+    // in join value order without sorting them: because the joining column is sorted already
+    // (as the id column usually is) or has an index. Otherwise the tables are hash joined,
+    // which takes linear time and so beats sorting either side.
+    private JoinMatches findMatches(String[] joinValues1, String[] joinValues2) throws DBException {
+        SortedRows sortedRows1 = findSortedRows(this.databaseTable1, this.joinAttribute1, joinValues1);
+        SortedRows sortedRows2 = sortedRows1 == null ? null :
+                findSortedRows(this.databaseTable2, this.joinAttribute2, joinValues2);
+        if (sortedRows2 == null) {
+            return JoinMatches.hashJoin(joinValues1, joinValues2);
+        }
+        return JoinMatches.mergeJoin(joinValues1, sortedRows1, joinValues2, sortedRows2);
+    }
+
+
+    private static SortedRows findSortedRows(DBTable databaseTable, String joinAttribute, String[] joinValues)
+            throws DBException {
+        SortedRows sortedRows = SortedRows.inTableOrder(joinValues);
+        if (sortedRows != null) return sortedRows;
+        int[] indexedRows = databaseTable.getRowsInIndexOrder(joinAttribute);
+        return indexedRows == null ? null : SortedRows.inIndexOrder(joinValues, indexedRows);
+    }
+
+
+    // The values of the joining column in lower case, read once per row
+    private static String[] getJoinValues(DBTable databaseTable, int joinColIndex) {
+        String[] joinValues = new String[databaseTable.getNumberOfRows()];
+        for (int row = 0; row < joinValues.length; row++) {
+            joinValues[row] = databaseTable.getTableValue(joinColIndex, row, false);
+        }
+        return joinValues;
     }
 
 
@@ -0,0 +1,300 @@
+package edu.uob;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+// The pairs of rows matched by a JOIN: for each row of the first table, the rows of the second
+// table with an equal join value, in table order. JoinCMD sends the joined rows in exactly this
+// order, which is the order the old nested loop over both tables produced them in.
+//
+// The pairs are found with a hash join. The join values of the smaller table are put in a hash
+// table, and the other table's values are looked up in it, so a join takes time in proportion
+// to the size of the tables and of the result rather than to the product of the table sizes.
+// Empty cells never match.
+//
+// Large joins are split into partitions by the hash of the join value, so that equal values
+// always land in the same partition. The partitions are joined at the same time on the common
+// ForkJoinPool. Each row of the first table belongs to exactly one partition, so the partitions
+// write to separate parts of the result and do not need to be synchronised.
+//
+// When the rows of both tables can already be read in join value order (see SortedRows), the
+// tables are merged instead: both are read in step, and only the rows of table 2 sharing the
+// current value are held at a time.
+public class JoinMatches {
+    private static final int NO_ROW = -1;
+    // Joins of fewer rows than this are not worth splitting up
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final int PARTITIONS_PER_THREAD = 4;
+
+    // The rows of table 2 matching row r of table 1 are matchedRows[firstMatch[r]] up to
+    // (but not including) matchedRows[firstMatch[r + 1]]
+    private final int[] firstMatch;
+    private final int[] matchedRows;
+
+
+    private JoinMatches(int[] firstMatch, int[] matchedRows) {
+        this.firstMatch = firstMatch;
+        this.matchedRows = matchedRows;
+    }
+
+
+    // Matches the join values (already in lower case) of two tables, in parallel if they are big
+    public static JoinMatches hashJoin(String[] joinValues1, String[] joinValues2) throws DBException {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (parallelism < 2 || joinValues1.length + joinValues2.length < PARALLEL_THRESHOLD) {
+            return hashJoin(joinValues1, joinValues2, 1);
+        }
+        return hashJoin(joinValues1, joinValues2, Integer.highestOneBit(parallelism * PARTITIONS_PER_THREAD));
+    }
+
+
+    // Matches the join values of two tables split into the given number of partitions, which
+    // must be a power of two
+    public static JoinMatches hashJoin(String[] joinValues1, String[] joinValues2, int numberOfPartitions)
+            throws DBException {
+        Partition[] partitions = partition(joinValues1, joinValues2, numberOfPartitions);
+        // Count the matches of each row of table 1, then turn the counts into positions
+        int[] firstMatch = new int[joinValues1.length + 1];
+        runPartitions(partitions, partition -> partition.countMatches(firstMatch));
+        int[] matchedRows = new int[countsToPositions(firstMatch)];
+        int[] nextMatch = firstMatch.clone();
+        runPartitions(partitions, partition -> partition.placeMatches(nextMatch, matchedRows));
+        return new JoinMatches(firstMatch, matchedRows);
+    }
+
+
+    // Matches the join values of two tables whose rows are given in join value order. The rows
+    // are merged twice: once to count the matches of each row of table 1 and once to place them.
+    public static JoinMatches mergeJoin(String[] joinValues1, SortedRows sortedRows1,
+                                        String[] joinValues2, SortedRows sortedRows2) throws DBException {
+        int[] firstMatch = new int[joinValues1.length + 1];
+        mergeRows(joinValues1, sortedRows1, joinValues2, sortedRows2,
+                (table1Row, table2Rows, numberOfRows) -> firstMatch[table1Row + 1] += numberOfRows);
+        int[] matchedRows = new int[countsToPositions(firstMatch)];
+        int[] nextMatch = firstMatch.clone();
+        mergeRows(joinValues1, sortedRows1, joinValues2, sortedRows2, (table1Row, table2Rows, numberOfRows) -> {
+            System.arraycopy(table2Rows, 0, matchedRows, nextMatch[table1Row], numberOfRows);
+            nextMatch[table1Row] += numberOfRows;
+        });
+        return new JoinMatches(firstMatch, matchedRows);
+    }
+
+
+    // Passes each row of table 1 that has matches to the consumer, with the rows of table 2 that
+    // it matches (in table order)
+    private static void mergeRows(String[] joinValues1, SortedRows sortedRows1, String[] joinValues2,
+                                  SortedRows sortedRows2, MatchConsumer matches) {
+        SortedRows.RowReader reader1 = sortedRows1.read();
+        SortedRows.RowReader reader2 = sortedRows2.read();
+        int[] group = new int[16];
+        int table1Row = reader1.next();
+        int table2Row = reader2.next();
+        while (table1Row != SortedRows.END && table2Row != SortedRows.END) {
+            int comparison = SortedRows.JOIN_VALUE_ORDER.compare(joinValues1[table1Row], joinValues2[table2Row]);
+            if (comparison < 0) {
+                table1Row = reader1.next();
+            } else if (comparison > 0) {
+                table2Row = reader2.next();
+            } else {
+                String joinValue = joinValues2[table2Row];
+                int groupSize = 0;
+                do {
+                    if (groupSize == group.length) group = Arrays.copyOf(group, groupSize * 2);
+                    group[groupSize++] = table2Row;
+                    table2Row = reader2.next();
+                } while (table2Row != SortedRows.END && joinValues2[table2Row].equals(joinValue));
+                do {
+                    matches.accept(table1Row, group, groupSize);
+                    table1Row = reader1.next();
+                } while (table1Row != SortedRows.END && joinValues1[table1Row].equals(joinValue));
+            }
+        }
+    }
+
+
+    // Turns counts[row + 1] = number of matches of each row into the position of each row's
+    // first match, and returns the total number of matches
+    private static int countsToPositions(int[] counts) throws DBException {
+        long matchCount = 0;
+        for (int row = 1; row < counts.length; row++) {
+            matchCount += counts[row];
+            if (matchCount > Integer.MAX_VALUE - 8) {
+                throw new DBException("This JOIN would return too many rows.");
+            }
+            counts[row] = (int) matchCount;
+        }
+        return (int) matchCount;
+    }
+
+
+    // Splits the rows of both tables by the hash of their join value. The rows of each partition
+    // stay in table order.
+    private static Partition[] partition(String[] joinValues1, String[] joinValues2, int numberOfPartitions) {
+        int[][] rows1 = partitionRows(joinValues1, numberOfPartitions);
+        int[][] rows2 = partitionRows(joinValues2, numberOfPartitions);
+        Partition[] partitions = new Partition[numberOfPartitions];
+        for (int partition = 0; partition < numberOfPartitions; partition++) {
+            partitions[partition] = new Partition(joinValues1, joinValues2, rows1[partition], rows2[partition]);
+        }
+        return partitions;
+    }
+
+
+    private static int[][] partitionRows(String[] joinValues, int numberOfPartitions) {
+        int[] partitionOfRow = new int[joinValues.length];
+        int[] partitionSizes = new int[numberOfPartitions];
+        for (int row = 0; row < joinValues.length; row++) {
+            if (joinValues[row] == null) {
+                partitionOfRow[row] = NO_ROW;
+                continue;
+            }
+            partitionOfRow[row] = partitionOf(joinValues[row], numberOfPartitions);
+            partitionSizes[partitionOfRow[row]]++;
+        }
+        int[][] rows = new int[numberOfPartitions][];
+        for (int partition = 0; partition < numberOfPartitions; partition++) {
+            rows[partition] = new int[partitionSizes[partition]];
+            partitionSizes[partition] = 0;
+        }
+        for (int row = 0; row < joinValues.length; row++) {
+            int partition = partitionOfRow[row];
+            if (partition != NO_ROW) {
+                rows[partition][partitionSizes[partition]++] = row;
+            }
+        }
+        return rows;
+    }
+
+
+    // Uses the top bits of the mixed hash, since the hash maps of a partition use the bottom ones
+    private static int partitionOf(String joinValue, int numberOfPartitions) {
+        if (numberOfPartitions == 1) return 0;
+        int hash = joinValue.hashCode() * 0x9E3779B9;
+        return hash >>> (Integer.SIZE - Integer.numberOfTrailingZeros(numberOfPartitions));
+    }
+
+
+    private static void runPartitions(Partition[] partitions, Consumer<Partition> action) {
+        if (partitions.length == 1) {
+            action.accept(partitions[0]);
+        } else {
+            ForkJoinPool.commonPool().invoke(new PartitionTask(partitions, 0, partitions.length, action));
+        }
+    }
+
+
+    public int getNumberOfMatches(int table1Row) {
+        return this.firstMatch[table1Row + 1] - this.firstMatch[table1Row];
+    }
+
+
+    // The index-th row of table 2 that matches a row of table 1
+    public int getMatch(int table1Row, int index) {
+        return this.matchedRows[this.firstMatch[table1Row] + index];
+    }
+
+
+    public int getTotalMatches() {
+        return this.matchedRows.length;
+    }
+
+
+    private interface MatchConsumer {
+        void accept(int table1Row, int[] table2Rows, int numberOfRows);
+    }
+
+
+    // Runs an action on a range of partitions, splitting the range in half until one is left
+    private static class PartitionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final transient Partition[] partitions;
+        private final int start;
+        private final int end;
+        private final transient Consumer<Partition> action;
+
+        PartitionTask(Partition[] partitions, int start, int end, Consumer<Partition> action) {
+            this.partitions = partitions;
+            this.start = start;
+            this.end = end;
+            this.action = action;
+        }
+
+        protected void compute() {
+            if (this.end - this.start == 1) {
+                this.action.accept(this.partitions[this.start]);
+                return;
+            }
+            int middle = (this.start + this.end) >>> 1;
+            invokeAll(new PartitionTask(this.partitions, this.start, middle, this.action),
+                    new PartitionTask(this.partitions, middle, this.end, this.action));
+        }
+    }
+
+
+    // The rows of both tables whose join values fall in one partition. The smaller side is put
+    // in a hash table: the map holds the first row with each value and nextRow the row after
+    // it, so each chain lists its rows in table order. The rows of the other side are looked
+    // up once, and the chain each one matched is kept for placeMatches().
+    private static class Partition {
+        private final String[] joinValues1;
+        private final String[] joinValues2;
+        // Rows of each table in this partition
+        private final int[] rows1;
+        private final int[] rows2;
+        private final boolean buildOnTable2;
+        private int[] nextRow;
+        private int[] chains;
+
+        Partition(String[] joinValues1, String[] joinValues2, int[] rows1, int[] rows2) {
+            this.joinValues1 = joinValues1;
+            this.joinValues2 = joinValues2;
+            this.rows1 = rows1;
+            this.rows2 = rows2;
+            this.buildOnTable2 = rows2.length <= rows1.length;
+        }
+
+        // Adds the number of matches of each row of table 1 in this partition to counts[row + 1]
+        void countMatches(int[] counts) {
+            int[] buildRows = this.buildOnTable2 ? this.rows2 : this.rows1;
+            String[] buildValues = this.buildOnTable2 ? this.joinValues2 : this.joinValues1;
+            int[] probeRows = this.buildOnTable2 ? this.rows1 : this.rows2;
+            String[] probeValues = this.buildOnTable2 ? this.joinValues1 : this.joinValues2;
+
+            // Positions in buildRows, linked from the last to the first
+            this.nextRow = new int[buildRows.length];
+            HashMap<String, Integer> firstRows = new HashMap<>();
+            for (int position = buildRows.length - 1; position >= 0; position--) {
+                Integer previousFirstRow = firstRows.put(buildValues[buildRows[position]], position);
+                this.nextRow[position] = previousFirstRow == null ? NO_ROW : previousFirstRow;
+            }
+            this.chains = new int[probeRows.length];
+            for (int position = 0; position < probeRows.length; position++) {
+                Integer firstRow = firstRows.get(probeValues[probeRows[position]]);
+                this.chains[position] = firstRow == null ? NO_ROW : firstRow;
+                for (int match = this.chains[position]; match != NO_ROW; match = this.nextRow[match]) {
+                    counts[(this.buildOnTable2 ? this.rows1[position] : this.rows1[match]) + 1]++;
+                }
+            }
+        }
+
+        // Writes the matches of this partition's rows of table 1 into matchedRows, at the
+        // positions in nextMatch. Both sides are read in table order, so the matches of each row
+        // end up in order.
+        void placeMatches(int[] nextMatch, int[] matchedRows) {
+            for (int position = 0; position < this.chains.length; position++) {
+                for (int match = this.chains[position]; match != NO_ROW; match = this.nextRow[match]) {
+                    if (this.buildOnTable2) {
+                        matchedRows[nextMatch[this.rows1[position]]++] = this.rows2[match];
+                    } else {
+                        matchedRows[nextMatch[this.rows1[match]]++] = this.rows2[position];
+                    }
+                }
+            }
+            this.nextRow = null;
+            this.chains = null;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+// The pattern of a LIKE condition, ready to test cells with. A LIKE pattern is a regular
+// expression that may match anywhere in the cell, but most patterns are plain text, perhaps
+// anchored with ^ or $. Those are tested with contains(), startsWith(), endsWith() or equals()
+// instead of a regex matcher. Only the other patterns are compiled by java.util.regex.
+//
+// Matchers hold no state while matching, so one matcher is shared by every query using the
+// same pattern. The most recently used ones are kept in a cache of bounded size.
+public class LikeMatcher {
+    private static final int CACHE_SIZE = 256;
+    // Characters with a meaning in a regular expression. A pattern using any of them (other than
+    // an escaped punctuation character, or ^ and $ at the ends) is left to java.util.regex.
+    private static final String REGEX_CHARACTERS = "\\^$.|?*+()[]{}";
+    // Escapes that stand for a class of characters or a position, rather than for text
+    private static final String CLASS_ESCAPES = "dDsSwWbBAzZG";
+
+    private static final Map<String, LikeMatcher> cache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LikeMatcher> eldest) {
+            return this.size() > CACHE_SIZE;
+        }
+    };
+
+    private enum Kind { CONTAINS, PREFIX, SUFFIX, EXACT, REGEX }
+
+    private final Kind kind;
+    // The text to look for, or null for a regular expression
+    private final String text;
+    private final Pattern pattern;
+    // Pieces of text that every matching cell contains
+    private final List<String> requiredText;
+
+
+    private LikeMatcher(Kind kind, String text, Pattern pattern) {
+        this.kind = kind;
+        this.text = text;
+        this.pattern = pattern;
+        this.requiredText = text != null ? List.of(text) : findRequiredText(pattern.pattern());
+    }
+
+
+    // Returns the matcher for a pattern, from the cache if it has been used recently. Throws
+    // PatternSyntaxException, as Pattern.compile() does, for a pattern that is not valid.
+    public static LikeMatcher forPattern(String pattern) {
+        synchronized (cache) {
+            LikeMatcher matcher = cache.get(pattern);
+            if (matcher != null) return matcher;
+        }
+        LikeMatcher matcher = compile(pattern);
+        synchronized (cache) {
+            cache.put(pattern, matcher);
+        }
+        return matcher;
+    }
+
+
+    // Throws a DBException for a pattern that is not a valid regular expression. Conditions are
+    // checked with this before any cell is tested, since matching cannot throw checked exceptions.
+    // A valid pattern is left in the cache, ready for matching.
+    public static void checkPattern(String pattern) throws DBException {
+        try {
+            forPattern(pattern);
+        } catch (PatternSyntaxException exception) {
+            throw new DBException("The LIKE pattern " + pattern + " is not a valid regular expression.");
+        }
+    }
+
+
+    private static LikeMatcher compile(String pattern) {
+        boolean anchoredAtStart = pattern.startsWith("^");
+        boolean anchoredAtEnd = false;
+        StringBuilder text = new StringBuilder();
+        for (int i = anchoredAtStart ? 1 : 0; i < pattern.length(); i++) {
+            char character = pattern.charAt(i);
+            if (character == '\\' && i + 1 < pattern.length() &&
+                    !Character.isLetterOrDigit(pattern.charAt(i + 1))) {
+                // An escaped punctuation character stands for itself
+                text.append(pattern.charAt(++i));
+            } else if (character == '$' && i == pattern.length() - 1) {
+                anchoredAtEnd = true;
+            } else if (REGEX_CHARACTERS.indexOf(character) >= 0) {
+                return new LikeMatcher(Kind.REGEX, null, Pattern.compile(pattern));
+            } else {
+                text.append(character);
+            }
+        }
+        Kind kind;
+        if (anchoredAtStart) {
+            kind = anchoredAtEnd ? Kind.EXACT : Kind.PREFIX;
+        } else {
+            kind = anchoredAtEnd ? Kind.SUFFIX : Kind.CONTAINS;
+        }
+        return new LikeMatcher(kind, text.toString(), null);
+    }
+
+
+    // Finds the runs of plain text in a regular expression that are not made optional by a
+    // quantifier. Anything the scan does not understand (groups, alternatives, most escapes)
+    // gives up and requires nothing, which is always safe.
+    private static List<String> findRequiredText(String pattern) {
+        List<String> requiredText = new ArrayList<>();
+        if (pattern.indexOf('|') >= 0 || pattern.indexOf('(') >= 0) return requiredText;
+        StringBuilder run = new StringBuilder();
+        boolean previousWasText = false;
+        boolean previousWasQuantifier = false;
+        int i = 0;
+        while (i < pattern.length()) {
+            char character = pattern.charAt(i);
+            if (previousWasQuantifier && (character == '?' || character == '+')) {
+                // A lazy or possessive quantifier
+                i++;
+                previousWasQuantifier = false;
+                continue;
+            }
+            boolean isText = false;
+            boolean isQuantifier = false;
+            if (character == '\\' && i + 1 < pattern.length()) {
+                char escaped = pattern.charAt(i + 1);
+                if (!Character.isLetterOrDigit(escaped)) {
+                    run.append(escaped);
+                    isText = true;
+                } else if (CLASS_ESCAPES.indexOf(escaped) < 0) {
+                    return new ArrayList<>();
+                }
+                i += 2;
+            } else if (character == '[') {
+                i = skipCharacterClass(pattern, i);
+                if (i < 0) return new ArrayList<>();
+            } else if (character == '?' || character == '*' || character == '{') {
+                // The character before may not be there at all
+                if (previousWasText) run.setLength(run.length() - 1);
+                if (character == '{') {
+                    i = pattern.indexOf('}', i);
+                    if (i < 0) return new ArrayList<>();
+                }
+                isQuantifier = true;
+                i++;
+            } else if (character == '+') {
+                isQuantifier = true;
+                i++;
+            } else if (REGEX_CHARACTERS.indexOf(character) >= 0) {
+                i++;
+            } else {
+                run.append(character);
+                isText = true;
+                i++;
+            }
+            if (!isText) {
+                if (!run.isEmpty()) requiredText.add(run.toString());
+                run.setLength(0);
+            }
+            previousWasText = isText;
+            previousWasQuantifier = isQuantifier;
+        }
+        if (!run.isEmpty()) requiredText.add(run.toString());
+        return requiredText;
+    }
+
+
+    // Returns the position after the character class starting at start, or -1 if it does not end
+    private static int skipCharacterClass(String pattern, int start) {
+        int i = start + 1;
+        if (i < pattern.length() && pattern.charAt(i) == '^') i++;
+        // A ] straight after the opening bracket is part of the class
+        if (i < pattern.length() && pattern.charAt(i) == ']') i++;
+        int depth = 1;
+        while (i < pattern.length()) {
+            char character = pattern.charAt(i);
+            if (character == '\\') {
+                i++;
+            } else if (character == '[') {
+                depth++;
+            } else if (character == ']' && --depth == 0) {
+                return i + 1;
+            }
+            i++;
+        }
+        return -1;
+    }
+
+
+    public boolean matches(String cellValue) {
+        return switch (this.kind) {
+            case CONTAINS -> cellValue.contains(this.text);
+            case PREFIX -> cellValue.startsWith(this.text);
+            case SUFFIX -> cellValue.endsWith(this.text);
+            case EXACT -> cellValue.equals(this.text);
+            case REGEX -> this.pattern.matcher(cellValue).find();
+        };
+    }
+
+
+    // True if the pattern is tested without a regular expression
+    public boolean isPlainText() {
+        return this.kind != Kind.REGEX;
+    }
+
+
+    public List<String> getRequiredText() {
+        return this.requiredText;
+    }
+}
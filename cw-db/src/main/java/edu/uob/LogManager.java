@@ -0,0 +1,137 @@
+package edu.uob;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keeps the write-ahead log of each database open, and writes logged changes into the table
+// files (checkpoints). Shared by every session of a server.
+//
+// Every checkpoint must be made while holding the database's write lock, so that no command
+// changes the tables or appends to the log while it runs.
+public class LogManager {
+    // Open logs, keyed by database folder path
+    private final HashMap<String, WriteAheadLog> logs = new HashMap<>();
+    // Databases whose log could not be applied at startup, by folder path. They cannot be used
+    // until the server is restarted: their tables would be read without the logged changes, and
+    // the next checkpoint would write those tables over the log.
+    private final Set<String> unrecoveredDatabases = ConcurrentHashMap.newKeySet();
+
+
+    // Returns the log of a database, opening it if this is the first change since startup
+    public synchronized WriteAheadLog getLog(String databasePath) throws DBException {
+        this.checkRecovered(databasePath);
+        WriteAheadLog log = this.logs.get(databasePath);
+        if (log == null) {
+            log = new WriteAheadLog(databasePath);
+            this.logs.put(databasePath, log);
+        }
+        return log;
+    }
+
+
+    public synchronized List<WriteAheadLog> getOpenLogs() {
+        return new ArrayList<>(this.logs.values());
+    }
+
+
+    // Called before a database folder is deleted
+    public synchronized void closeLog(String databasePath) {
+        WriteAheadLog log = this.logs.remove(databasePath);
+        if (log != null) log.close();
+    }
+
+
+    // Called when the server is closed
+    public synchronized void closeLogs() {
+        for (WriteAheadLog log : this.logs.values()) {
+            log.close();
+        }
+        this.logs.clear();
+    }
+
+
+    // Re-applies logged changes that have not been checkpointed yet to a table just read from disk
+    public void replayLog(DBTable table, String databasePath) throws DBException {
+        this.checkRecovered(databasePath);
+        WriteAheadLog log;
+        synchronized (this) {
+            log = this.logs.get(databasePath);
+        }
+        if (log != null) {
+            table.replayLogRecords(log.readRecords());
+        }
+    }
+
+
+    // Checkpoints a database if anything has been logged for it since startup
+    public void checkpoint(String databasePath, TableCache tableCache) throws DBException {
+        WriteAheadLog log;
+        synchronized (this) {
+            log = this.logs.get(databasePath);
+        }
+        if (log != null) {
+            this.checkpoint(log, tableCache);
+        }
+    }
+
+
+    // Writes every table that has logged changes to its .tab file, then empties the log.
+    // Tables that are not cached any more are read from disk and have their changes replayed.
+    public void checkpoint(WriteAheadLog log, TableCache tableCache) throws DBException {
+        if (log.isClosed() || log.size() == 0) return;
+        Set<String> changedTables = new LinkedHashSet<>();
+        for (WriteAheadLog.Record record : log.readRecords()) {
+            changedTables.add(record.getTableName());
+        }
+        List<DBTable> writtenTables = new ArrayList<>();
+        for (String tableName : changedTables) {
+            String tablePath = log.getDatabasePath() + File.separator + tableName + ".tab";
+            if (new File(tablePath).exists()) {
+                DBTable table = tableCache.getTable(tablePath);
+                table.writeChangesToFile();
+                writtenTables.add(table);
+            }
+        }
+        log.truncate();
+        // Only now do the table files hold everything the indexes do
+        for (DBTable table : writtenTables) {
+            table.markIndexesClean();
+        }
+    }
+
+
+    // Called at startup: applies the changes left in the log of every database by a server
+    // that stopped before they were checkpointed. A database that fails is left as it is on
+    // disk and cannot be used (see checkRecovered), without stopping the others from recovering.
+    public void recover(String storageFolderPath, TableCache tableCache) {
+        File[] databaseFolders = new File(storageFolderPath).listFiles(File::isDirectory);
+        if (databaseFolders == null) return;
+        for (File databaseFolder : databaseFolders) {
+            if (new File(databaseFolder, WriteAheadLog.LOG_FILE_NAME).length() > 0) {
+                String databasePath = databaseFolder.getPath();
+                try {
+                    this.checkpoint(this.getLog(databasePath), tableCache);
+                } catch (DBException | RuntimeException exception) {
+                    this.unrecoveredDatabases.add(databasePath);
+                    this.closeLog(databasePath);
+                    tableCache.invalidateDatabase(databasePath);
+                    System.out.println("Failed to recover database " + databaseFolder.getName() +
+                            " from the write-ahead log: " + exception.getMessage());
+                }
+            }
+        }
+    }
+
+
+    public void checkRecovered(String databasePath) throws DBException {
+        if (this.unrecoveredDatabases.contains(databasePath)) {
+            throw new DBException("The database " + new File(databasePath).getName() + " could not be " +
+                    "recovered from its write-ahead log when the server started, so it cannot be used.");
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package edu.uob;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import edu.uob.Token.Comparator;
+
+// Generates a class for WHERE conditions that are used again and again, such as the queries
+// behind a dashboard. DBTable.compileCondition() builds a tree of predicates for a condition,
+// which is called node by node for every row. Once conditions of the same shape (the same
+// AND/OR tree over the same kinds of comparison) have been compiled COMPILE_THRESHOLD times,
+// the tree is turned into the bytecode of a single test(int) method instead: the ANDs and ORs
+// become jumps, and comparisons on INTEGER columns read the column's array directly. The JIT
+// can then compile the whole condition as one piece of straight-line code.
+//
+// The class is defined as a hidden class with MethodHandles.Lookup.defineHiddenClass(). It
+// holds no values of its own: each condition's columns and condition values are passed to its
+// constructor, so one class serves every condition of its shape (e.g. "a > 5 AND b == x" and
+// "a > 9 AND b == y"). Other comparisons are called through the predicates ColumnVector made
+// for them. If a class cannot be generated, the tree of predicates is used as it is.
+public class PredicateCompiler {
+    // Conditions of one shape are compiled this many times before a class is generated
+    private static final int COMPILE_THRESHOLD = 8;
+    // Limits on the number of classes, and the size of the conditions, that are generated
+    private static final int MAX_SHAPES = 256;
+    private static final int MAX_COMPARISONS = 64;
+    private static final String CLASS_NAME = "edu/uob/GeneratedPredicate";
+    private static final String OBJECT = "java/lang/Object";
+    private static final String INT_PREDICATE = "java/util/function/IntPredicate";
+    private static final String BIT_SET = "java/util/BitSet";
+    private static final String INTEGER = "java/lang/Integer";
+
+    private static final ConcurrentHashMap<String, Shape> shapes = new ConcurrentHashMap<>();
+    private static final AtomicInteger generatedClassCount = new AtomicInteger();
+
+    // Conditions of one shape, and the generated class once there is one
+    private static class Shape {
+        private final AtomicInteger compileCount = new AtomicInteger();
+        private volatile MethodHandle constructor;
+        private volatile boolean failed;
+    }
+
+
+    // Returns a generated predicate for the condition if its shape is used often enough, or
+    // else the interpreted one. comparisons are the predicates of the condition's comparisons,
+    // from left to right.
+    public static IntPredicate compile(Condition condition, List<IntPredicate> comparisons, IntPredicate interpreted)
+            throws DBException {
+        // A single comparison has no tree to flatten
+        if (comparisons.size() < 2 || comparisons.size() > MAX_COMPARISONS) return interpreted;
+        StringBuilder shapeKey = new StringBuilder();
+        describeShape(condition, comparisons, new int[1], shapeKey);
+        Shape shape = shapes.get(shapeKey.toString());
+        if (shape == null) {
+            if (shapes.size() >= MAX_SHAPES) return interpreted;
+            shape = shapes.computeIfAbsent(shapeKey.toString(), key -> new Shape());
+        }
+        MethodHandle constructor = shape.constructor;
+        if (constructor == null) {
+            if (shape.failed || shape.compileCount.incrementAndGet() < COMPILE_THRESHOLD) return interpreted;
+            constructor = generate(shape, condition, comparisons);
+            if (constructor == null) return interpreted;
+        }
+        try {
+            return (IntPredicate) constructor.invokeExact(fieldValues(comparisons));
+        } catch (Throwable error) {
+            return interpreted;
+        }
+    }
+
+
+    // Number of classes generated so far
+    public static int getGeneratedClassCount() {
+        return generatedClassCount.get();
+    }
+
+
+    private static void describeShape(Condition condition, List<IntPredicate> comparisons, int[] nextComparison,
+                                      StringBuilder shapeKey) throws DBException {
+        if (condition.getTypeOfCondition().equals(Condition.ConditionType.TERMINAL)) {
+            IntPredicate comparison = comparisons.get(nextComparison[0]++);
+            if (comparison instanceof ColumnVector.IntegerMatcher integerMatcher) {
+                shapeKey.append('I').append(integerMatcher.getComparator().ordinal());
+            } else {
+                shapeKey.append('P');
+            }
+            return;
+        }
+        shapeKey.append('(');
+        describeShape(condition.getCondition1(), comparisons, nextComparison, shapeKey);
+        shapeKey.append(condition.getBooleanOperator().equals(Token.BooleanOperator.AND) ? '&' : '|');
+        describeShape(condition.getCondition2(), comparisons, nextComparison, shapeKey);
+        shapeKey.append(')');
+    }
+
+
+    // The values passed to the generated constructor: an integer comparison's column array,
+    // null bitmap and condition value, or any other comparison's predicate
+    private static Object[] fieldValues(List<IntPredicate> comparisons) {
+        List<Object> values = new ArrayList<>();
+        for (IntPredicate comparison : comparisons) {
+            if (comparison instanceof ColumnVector.IntegerMatcher integerMatcher) {
+                values.add(integerMatcher.getInts());
+                values.add(integerMatcher.getNulls());
+                values.add(integerMatcher.getConditionInteger());
+            } else {
+                values.add(comparison);
+            }
+        }
+        return values.toArray();
+    }
+
+
+    private static MethodHandle generate(Shape shape, Condition condition, List<IntPredicate> comparisons) {
+        synchronized (shape) {
+            if (shape.constructor != null || shape.failed) return shape.constructor;
+            try {
+                byte[] classBytes = new ClassGenerator(condition, comparisons).generate();
+                MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+                shape.constructor = lookup.findConstructor(lookup.lookupClass(),
+                                MethodType.methodType(void.class, Object[].class))
+                        .asType(MethodType.methodType(IntPredicate.class, Object[].class));
+                generatedClassCount.incrementAndGet();
+            } catch (DBException | ReflectiveOperationException | LinkageError error) {
+                shape.failed = true;
+            }
+            return shape.constructor;
+        }
+    }
+
+
+    // Writes the class file of a generated predicate. The class file is version 49, which is
+    // verified without stack map frames, so the jumps need no frames written for them.
+    private static class ClassGenerator {
+        private final Condition condition;
+        private final List<IntPredicate> comparisons;
+        private final ConstantPool constantPool = new ConstantPool();
+        private final List<String> fieldDescriptors = new ArrayList<>();
+        // For each comparison, the number of its first field
+        private final int[] firstFields;
+
+        private ClassGenerator(Condition condition, List<IntPredicate> comparisons) {
+            this.condition = condition;
+            this.comparisons = comparisons;
+            this.firstFields = new int[comparisons.size()];
+            for (int comparison = 0; comparison < comparisons.size(); comparison++) {
+                this.firstFields[comparison] = this.fieldDescriptors.size();
+                if (comparisons.get(comparison) instanceof ColumnVector.IntegerMatcher) {
+                    this.fieldDescriptors.addAll(List.of("[I", "L" + BIT_SET + ";", "I"));
+                } else {
+                    this.fieldDescriptors.add("L" + INT_PREDICATE + ";");
+                }
+            }
+        }
+
+        private byte[] generate() throws DBException {
+            Bytes constructorCode = this.generateConstructor();
+            Bytes testCode = new Bytes();
+            Label falseLabel = new Label();
+            this.generateJump(this.condition, testCode, new int[1], falseLabel, false);
+            testCode.u1(0x04).u1(0xac);              // iconst_1, ireturn
+            falseLabel.place(testCode);
+            testCode.u1(0x03).u1(0xac);              // iconst_0, ireturn
+            if (testCode.size() > Short.MAX_VALUE) throw new DBException("The condition is too big to compile.");
+
+            Bytes classFile = new Bytes();
+            int thisClass = this.constantPool.classEntry(CLASS_NAME);
+            int superClass = this.constantPool.classEntry(OBJECT);
+            int interfaceClass = this.constantPool.classEntry(INT_PREDICATE);
+            int[] fieldNames = new int[this.fieldDescriptors.size()];
+            int[] fieldTypes = new int[this.fieldDescriptors.size()];
+            for (int field = 0; field < fieldNames.length; field++) {
+                fieldNames[field] = this.constantPool.utf8("f" + field);
+                fieldTypes[field] = this.constantPool.utf8(this.fieldDescriptors.get(field));
+            }
+            int codeName = this.constantPool.utf8("Code");
+            int constructorName = this.constantPool.utf8("<init>");
+            int constructorType = this.constantPool.utf8("([Ljava/lang/Object;)V");
+            int testName = this.constantPool.utf8("test");
+            int testType = this.constantPool.utf8("(I)Z");
+
+            classFile.u4(0xcafebabe).u2(0).u2(49);
+            classFile.u2(this.constantPool.count).bytes(this.constantPool.entries);
+            classFile.u2(0x0031);                    // public final super
+            classFile.u2(thisClass).u2(superClass).u2(1).u2(interfaceClass);
+            classFile.u2(fieldNames.length);
+            for (int field = 0; field < fieldNames.length; field++) {
+                classFile.u2(0x0012).u2(fieldNames[field]).u2(fieldTypes[field]).u2(0); // private final
+            }
+            classFile.u2(2);
+            writeMethod(classFile, constructorName, constructorType, codeName, 3, constructorCode);
+            writeMethod(classFile, testName, testType, codeName, 2, testCode);
+            classFile.u2(0);
+            return classFile.toByteArray();
+        }
+
+        private static void writeMethod(Bytes classFile, int name, int type, int codeName, int maxStack, Bytes code) {
+            classFile.u2(0x0001).u2(name).u2(type).u2(1);
+            classFile.u2(codeName).u4(12 + code.size());
+            classFile.u2(maxStack).u2(2).u4(code.size()).bytes(code).u2(0).u2(0);
+        }
+
+        // Copies each constructor argument into its field
+        private Bytes generateConstructor() {
+            Bytes code = new Bytes();
+            code.u1(0x2a).u1(0xb7).u2(this.constantPool.methodEntry(OBJECT, "<init>", "()V", false));
+            for (int field = 0; field < this.fieldDescriptors.size(); field++) {
+                String descriptor = this.fieldDescriptors.get(field);
+                code.u1(0x2a).u1(0x2b);              // aload_0, aload_1
+                code.u1(0x11).u2(field).u1(0x32);    // sipush field, aaload
+                if (descriptor.equals("I")) {
+                    code.u1(0xc0).u2(this.constantPool.classEntry(INTEGER));
+                    code.u1(0xb6).u2(this.constantPool.methodEntry(INTEGER, "intValue", "()I", false));
+                } else {
+                    String type = descriptor.startsWith("[") ? descriptor : descriptor.substring(1, descriptor.length() - 1);
+                    code.u1(0xc0).u2(this.constantPool.classEntry(type));
+                }
+                code.u1(0xb5).u2(this.fieldEntry(field));
+            }
+            code.u1(0xb1);                           // return
+            return code;
+        }
+
+        // Writes code that jumps to target if the condition is jumpIf, and carries on otherwise
+        private void generateJump(Condition condition, Bytes code, int[] nextComparison, Label target,
+                                  boolean jumpIf) throws DBException {
+            if (condition.getTypeOfCondition().equals(Condition.ConditionType.TERMINAL)) {
+                int comparison = nextComparison[0]++;
+                this.generateComparison(comparison, code, target, jumpIf);
+                return;
+            }
+            boolean and = condition.getBooleanOperator().equals(Token.BooleanOperator.AND);
+            if (and != jumpIf) {
+                // AND is false, or OR is true, as soon as either side is
+                this.generateJump(condition.getCondition1(), code, nextComparison, target, jumpIf);
+                this.generateJump(condition.getCondition2(), code, nextComparison, target, jumpIf);
+            } else {
+                // AND is only true, and OR only false, if both sides are
+                Label skip = new Label();
+                this.generateJump(condition.getCondition1(), code, nextComparison, skip, !jumpIf);
+                this.generateJump(condition.getCondition2(), code, nextComparison, target, jumpIf);
+                skip.place(code);
+            }
+        }
+
+        private void generateComparison(int comparison, Bytes code, Label target, boolean jumpIf) {
+            int firstField = this.firstFields[comparison];
+            if (this.comparisons.get(comparison) instanceof ColumnVector.IntegerMatcher integerMatcher) {
+                // if (nulls.get(row)) the comparison is false
+                Label skip = new Label();
+                code.u1(0x2a).u1(0xb4).u2(this.fieldEntry(firstField + 1)).u1(0x1b);
+                code.u1(0xb6).u2(this.constantPool.methodEntry(BIT_SET, "get", "(I)Z", false));
+                code.jump(0x9a, jumpIf ? skip : target);                      // ifne
+                // ints[row] compared with the condition value
+                code.u1(0x2a).u1(0xb4).u2(this.fieldEntry(firstField)).u1(0x1b).u1(0x2e);
+                code.u1(0x2a).u1(0xb4).u2(this.fieldEntry(firstField + 2));
+                code.jump(integerJump(integerMatcher.getComparator(), jumpIf), target);
+                skip.place(code);
+            } else {
+                code.u1(0x2a).u1(0xb4).u2(this.fieldEntry(firstField)).u1(0x1b);
+                code.u1(0xb9).u2(this.constantPool.methodEntry(INT_PREDICATE, "test", "(I)Z", true)).u1(2).u1(0);
+                code.jump(jumpIf ? 0x9a : 0x99, target);                      // ifne, ifeq
+            }
+        }
+
+        // The if_icmp instruction that jumps when the comparison is jumpIf
+        private static int integerJump(Comparator comparator, boolean jumpIf) {
+            Comparator jumpComparator = jumpIf ? comparator : switch (comparator) {
+                case EQUAL -> Comparator.NOT_EQUAL;
+                case NOT_EQUAL -> Comparator.EQUAL;
+                case LESS -> Comparator.GREATER_OR_EQUAL;
+                case GREATER_OR_EQUAL -> Comparator.LESS;
+                case GREATER -> Comparator.LESS_OR_EQUAL;
+                case LESS_OR_EQUAL -> Comparator.GREATER;
+                default -> comparator;
+            };
+            return switch (jumpComparator) {
+                case EQUAL -> 0x9f;
+                case NOT_EQUAL -> 0xa0;
+                case LESS -> 0xa1;
+                case GREATER_OR_EQUAL -> 0xa2;
+                case GREATER -> 0xa3;
+                default -> 0xa4;                     // LESS_OR_EQUAL
+            };
+        }
+
+        private int fieldEntry(int field) {
+            return this.constantPool.fieldEntry(CLASS_NAME, "f" + field, this.fieldDescriptors.get(field));
+        }
+    }
+
+
+    // The constant pool of a class file, adding each constant once
+    private static class ConstantPool {
+        private final Bytes entries = new Bytes();
+        private final HashMap<String, Integer> indexes = new HashMap<>();
+        private int count = 1;
+
+        private int utf8(String text) {
+            Integer index = this.indexes.get("U" + text);
+            if (index != null) return index;
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            this.entries.u1(1).u2(textBytes.length).bytes(textBytes);
+            return this.add("U" + text);
+        }
+
+        private int classEntry(String name) {
+            Integer index = this.indexes.get("C" + name);
+            if (index != null) return index;
+            int nameIndex = this.utf8(name);
+            this.entries.u1(7).u2(nameIndex);
+            return this.add("C" + name);
+        }
+
+        private int fieldEntry(String owner, String name, String descriptor) {
+            return this.memberEntry(9, owner, name, descriptor);
+        }
+
+        private int methodEntry(String owner, String name, String descriptor, boolean isInterface) {
+            return this.memberEntry(isInterface ? 11 : 10, owner, name, descriptor);
+        }
+
+        private int memberEntry(int tag, String owner, String name, String descriptor) {
+            String key = tag + owner + "." + name + ":" + descriptor;
+            Integer index = this.indexes.get(key);
+            if (index != null) return index;
+            int ownerIndex = this.classEntry(owner);
+            int nameAndType = this.nameAndTypeEntry(name, descriptor);
+            this.entries.u1(tag).u2(ownerIndex).u2(nameAndType);
+            return this.add(key);
+        }
+
+        private int nameAndTypeEntry(String name, String descriptor) {
+            String key = "N" + name + ":" + descriptor;
+            Integer index = this.indexes.get(key);
+            if (index != null) return index;
+            int nameIndex = this.utf8(name);
+            int descriptorIndex = this.utf8(descriptor);
+            this.entries.u1(12).u2(nameIndex).u2(descriptorIndex);
+            return this.add(key);
+        }
+
+        private int add(String key) {
+            this.indexes.put(key, this.count);
+            return this.count++;
+        }
+    }
+
+
+    // A growable byte array written in class file (big-endian) order
+    private static class Bytes {
+        private byte[] data = new byte[256];
+        private int size;
+
+        private Bytes u1(int value) {
+            if (this.size == this.data.length) this.data = Arrays.copyOf(this.data, this.size * 2);
+            this.data[this.size++] = (byte) value;
+            return this;
+        }
+
+        private Bytes u2(int value) {
+            return this.u1(value >>> 8).u1(value);
+        }
+
+        private Bytes u4(int value) {
+            return this.u2(value >>> 16).u2(value);
+        }
+
+        private Bytes bytes(byte[] bytes) {
+            for (byte value : bytes) this.u1(value);
+            return this;
+        }
+
+        private Bytes bytes(Bytes bytes) {
+            for (int position = 0; position < bytes.size; position++) this.u1(bytes.data[position]);
+            return this;
+        }
+
+        // Writes a branch instruction to a label, which may not have been placed yet
+        private void jump(int opcode, Label target) {
+            int branchPosition = this.size;
+            this.u1(opcode).u2(0);
+            target.addBranch(this, branchPosition);
+        }
+
+        private int size() {
+            return this.size;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(this.data, this.size);
+        }
+    }
+
+
+    // A position in a method's code that branches jump to. Branches written before the label is
+    // placed are filled in when it is.
+    private static class Label {
+        private int position = -1;
+        private final List<Integer> branches = new ArrayList<>();
+        private Bytes code;
+
+        private void addBranch(Bytes code, int branchPosition) {
+            this.code = code;
+            if (this.position >= 0) {
+                this.patch(branchPosition);
+            } else {
+                this.branches.add(branchPosition);
+            }
+        }
+
+        private void place(Bytes code) {
+            this.code = code;
+            this.position = code.size();
+            for (int branchPosition : this.branches) {
+                this.patch(branchPosition);
+            }
+        }
+
+        private void patch(int branchPosition) {
+            int offset = this.position - branchPosition;
+            this.code.data[branchPosition + 1] = (byte) (offset >>> 8);
+            this.code.data[branchPosition + 2] = (byte) offset;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uob.DBException.*;
+import edu.uob.Token.*;
+
+public class PrepareCMD extends DBcmd {
+    private String statementName;
+    private PreparedStatement preparedStatement;
+
+    public PrepareCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
+        this.tokenStream = tokenStream;
+    }
+
+
+    public void parseCommand() throws DBException {
+        // <Prepare> ::= "PREPARE " [StatementName] " AS " <CommandType>
+        if (this.tokenStream.size() < 3 + QueryLexer.MINIMUM_QUERY_LENGTH) {
+            throw new malformedQueryException();
+        }
+        checkIdentifier(1);
+        checkKeyword(2, "as");
+        this.statementName = this.tokenStream.get(1).getTokenValue();
+
+        // The statement keeps its own semicolon
+        List<Token> statement = this.tokenStream.subList(3, this.tokenStream.size());
+        Token commandType = statement.get(0);
+        if (commandType.getTokenType() != TokenType.keyword ||
+                commandType.getTokenValue().equals("prepare") || commandType.getTokenValue().equals("execute")) {
+            throw new invalidKeywordException(commandType.getTokenValue());
+        }
+        // Checks the type of command. The rest is checked each time the statement is executed,
+        // once its values are known.
+        QueryParser.createCommand(new ArrayList<>(statement), this.session);
+        this.preparedStatement = new PreparedStatement(statement);
+    }
+
+
+    public String handleQuery() {
+        this.session.addPreparedStatement(this.statementName, this.preparedStatement);
+        return "[OK]";
+    }
+
+
+    public boolean isReadOnly() {
+        return true;
+    }
+}
@@ -0,0 +1,62 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uob.Token.TokenType;
+
+// A statement saved by PREPARE, with a ? in place of each value to be given by EXECUTE. The
+// statement is split into tokens, classified and converted to lower case once, when it is
+// prepared. Executing it only means putting the values into a copy of its tokens, in lower case
+// wherever QueryParser would have converted them, as StatementCache does for its templates.
+public class PreparedStatement {
+    public static final String PLACEHOLDER = "?";
+
+    private final Token[] tokens;
+    private final int[] placeholderPositions;
+    private final boolean[] convertedToLower;
+
+
+    // Takes the tokens of the statement, already converted to lower case
+    public PreparedStatement(List<Token> statement) {
+        this.tokens = statement.toArray(new Token[0]);
+        List<Integer> positions = new ArrayList<>();
+        for (int i = 0; i < this.tokens.length; i++) {
+            // A quoted '?' is text, not a placeholder
+            if (this.tokens[i].getTokenType() == TokenType.symbol &&
+                    this.tokens[i].getTokenValue().equals(PLACEHOLDER)) {
+                positions.add(i);
+            }
+        }
+        this.placeholderPositions = new int[positions.size()];
+        this.convertedToLower = new boolean[positions.size()];
+        for (int i = 0; i < positions.size(); i++) {
+            this.placeholderPositions[i] = positions.get(i);
+            this.convertedToLower[i] = QueryParser.isConvertedToLower(statement, positions.get(i));
+        }
+    }
+
+
+    public int getNumberOfPlaceholders() {
+        return this.placeholderPositions.length;
+    }
+
+
+    // Returns the command for the statement with the given values in place of its placeholders,
+    // ready for parseCommand()
+    public DBcmd bind(List<Token> values, Session session) throws DBException {
+        if (values.size() != this.placeholderPositions.length) {
+            throw new DBException("The prepared statement takes " + this.placeholderPositions.length +
+                    " values, but " + values.size() + " were given.");
+        }
+        // Tokens other than the placeholders are shared, since nothing changes a token once it
+        // is in lower case
+        ArrayList<Token> tokenStream = new ArrayList<>(List.of(this.tokens));
+        for (int i = 0; i < this.placeholderPositions.length; i++) {
+            Token value = values.get(i);
+            String tokenValue = this.convertedToLower[i] ? value.getTokenValue().toLowerCase() : value.getTokenValue();
+            tokenStream.set(this.placeholderPositions[i], new Token(value.getTokenType(), tokenValue));
+        }
+        return QueryParser.createCommand(tokenStream, session);
+    }
+}
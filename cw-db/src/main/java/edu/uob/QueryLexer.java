@@ -0,0 +1,145 @@
+package edu.uob;
+
+import java.util.ArrayList;
+
+// Splits a command into tokens in one pass over its characters. Each token is given by its
+// kind and its offsets in the command, so scanning allocates nothing; the text of a token is
+// only copied out when a Token is made from it.
+//
+// Tokens are separated by spaces, tabs and line breaks. Brackets, commas and semicolons are
+// tokens of their own, as are comparators (==, !=, >=, <=, >, <) and the = of SET, even when
+// they are written next to a name or value (age>40). Text between single quotes is one token,
+// whatever it holds; a quote that is never closed runs to the end of the command.
+public class QueryLexer {
+    static final int MINIMUM_QUERY_LENGTH = 3;
+    static final String TERMINAL_CHARACTER = ";";
+
+    public enum Kind { WORD, QUOTED, SYMBOL, COMPARATOR }
+
+    private final String command;
+    private int position;
+    private Kind kind;
+    // Offsets of the current token. For a QUOTED token they leave out the quotes.
+    private int start;
+    private int end;
+
+
+    public QueryLexer(String command) {
+        this.command = command;
+    }
+
+
+    // Moves on to the next token, and returns false once there are none left
+    public boolean next() {
+        int length = this.command.length();
+        while (this.position < length && isSpace(this.command.charAt(this.position))) {
+            this.position++;
+        }
+        if (this.position == length) return false;
+        char character = this.command.charAt(this.position);
+        this.start = this.position;
+        if (character == '\'') {
+            this.kind = Kind.QUOTED;
+            this.start = this.position + 1;
+            int closingQuote = this.command.indexOf('\'', this.start);
+            this.end = closingQuote < 0 ? length : closingQuote;
+            this.position = closingQuote < 0 ? length : closingQuote + 1;
+            return true;
+        }
+        if (isSymbol(character)) {
+            this.kind = Kind.SYMBOL;
+            this.position++;
+        } else {
+            int comparatorLength = comparatorLength(this.position);
+            if (comparatorLength > 0) {
+                this.kind = Kind.COMPARATOR;
+                this.position += comparatorLength;
+            } else {
+                this.kind = Kind.WORD;
+                while (this.position < length && !isWordEnd(this.position)) {
+                    this.position++;
+                }
+            }
+        }
+        this.end = this.position;
+        return true;
+    }
+
+
+    // Getters for the current token
+    public Kind getKind() {
+        return this.kind;
+    }
+    public int getStart() {
+        return this.start;
+    }
+    public int getEnd() {
+        return this.end;
+    }
+    public char charAt(int offset) {
+        return this.command.charAt(offset);
+    }
+    public String getText() {
+        return this.command.substring(this.start, this.end);
+    }
+
+
+    // The Token for the current token
+    public Token getToken() {
+        if (this.kind == Kind.QUOTED) {
+            return new Token(this.command.substring(this.start - 1, Math.min(this.end + 1, this.command.length())));
+        }
+        return new Token(this.getText());
+    }
+
+
+    // Splits a whole command into Tokens, checking that it is long enough and ends with a
+    // semicolon
+    public static ArrayList<Token> getTokens(String command) throws DBException {
+        ArrayList<Token> tokens = new ArrayList<>();
+        QueryLexer lexer = new QueryLexer(command);
+        boolean endsWithTerminal = false;
+        while (lexer.next()) {
+            tokens.add(lexer.getToken());
+            endsWithTerminal = lexer.getKind() == Kind.SYMBOL && lexer.charAt(lexer.getStart()) == ';';
+        }
+        // Error handling: according to the BNF, shortest possible query contains 2 tokens. Check that
+        // this.tokens is at least 2 tokens long.
+        // Also check that the last token is a semi-colon (terminating character)
+        if (tokens.size() < MINIMUM_QUERY_LENGTH) {
+            throw new DBException("Valid queries must contain at least " + MINIMUM_QUERY_LENGTH + " words! Your query only contains " + tokens.size() + " words. Please input a valid query.");
+        }
+        if (!endsWithTerminal) {
+            throw new DBException("Valid queries must end with a semicolon (" + TERMINAL_CHARACTER + "). Please input a valid query.");
+        }
+        return tokens;
+    }
+
+
+    private static boolean isSpace(char character) {
+        return character == ' ' || character == '\r' || character == '\n' || character == '\t';
+    }
+
+
+    private static boolean isSymbol(char character) {
+        return character == '(' || character == ')' || character == ',' || character == ';';
+    }
+
+
+    // The length of the comparator (or =) starting at offset, or 0 if there is none
+    private int comparatorLength(int offset) {
+        char character = this.command.charAt(offset);
+        boolean followedByEquals = offset + 1 < this.command.length() && this.command.charAt(offset + 1) == '=';
+        return switch (character) {
+            case '=', '<', '>' -> followedByEquals ? 2 : 1;
+            case '!' -> followedByEquals ? 2 : 0;
+            default -> 0;
+        };
+    }
+
+
+    private boolean isWordEnd(int offset) {
+        char character = this.command.charAt(offset);
+        return isSpace(character) || isSymbol(character) || character == '\'' || this.comparatorLength(offset) > 0;
+    }
+}
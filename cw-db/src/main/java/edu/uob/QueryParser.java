@@ -1,15 +1,18 @@
 package edu.uob;
 
 import java.util.*;
+import java.util.function.IntFunction;
 
 import edu.uob.DBException.*;
 import edu.uob.Token.*;
 
 public class QueryParser {
     private ArrayList<Token> tokenStream;
+    private Session session;
 
-    public QueryParser(ArrayList<Token> tokenStream) {
+    public QueryParser(ArrayList<Token> tokenStream, Session session) {
         this.tokenStream = tokenStream;
+        this.session = session;
     }
 
     public DBcmd parse() throws DBException {
@@ -18,18 +21,25 @@ public class QueryParser {
             throw new invalidKeywordException(this.tokenStream.get(0).getTokenValue());
         }
         this.convertTokenStreamToLower();
+        return createCommand(this.tokenStream, this.session);
+    }
+
 
-        String commandType = this.tokenStream.get(0).getTokenValue();
+    // Creates the command for a token stream that has already been converted to lower case
+    public static DBcmd createCommand(ArrayList<Token> tokenStream, Session session) throws DBException {
+        String commandType = tokenStream.get(0).getTokenValue();
         return switch (commandType) {
-            case "use" -> new UseCMD(this.tokenStream);
-            case "create" -> new CreateCMD(this.tokenStream);
-            case "drop" -> new DropCMD(this.tokenStream);
-            case "alter" -> new AlterCMD(this.tokenStream);
-            case "insert" -> new InsertCMD(this.tokenStream);
-            case "select" -> new SelectCMD(this.tokenStream);
-            case "update" -> new UpdateCMD(this.tokenStream);
-            case "delete" -> new DeleteCMD(this.tokenStream);
-            case "join" -> new JoinCMD(this.tokenStream);
+            case "use" -> new UseCMD(tokenStream, session);
+            case "create" -> new CreateCMD(tokenStream, session);
+            case "drop" -> new DropCMD(tokenStream, session);
+            case "alter" -> new AlterCMD(tokenStream, session);
+            case "insert" -> new InsertCMD(tokenStream, session);
+            case "select" -> new SelectCMD(tokenStream, session);
+            case "update" -> new UpdateCMD(tokenStream, session);
+            case "delete" -> new DeleteCMD(tokenStream, session);
+            case "join" -> new JoinCMD(tokenStream, session);
+            case "prepare" -> new PrepareCMD(tokenStream, session);
+            case "execute" -> new ExecuteCMD(tokenStream, session);
             default -> throw new DBException("Error: invalid type of command. Please input a valid query.");
         };
     }
@@ -60,27 +70,50 @@ public class QueryParser {
 
 
     private void convertTokenStreamToLower() {
+        for (int i = 0; i < this.tokenStream.size(); i++) {
+            if (isConvertedToLower(this.tokenStream, i)) {
+                this.tokenStream.get(i).setTokenToLowerCase();
+            }
+        }
+    }
+
+
+    // Whether the token at tokenIndex is converted to lower case. It depends only on the
+    // position of the token and on the words of the query, never on the values in it.
+    public static boolean isConvertedToLower(List<Token> tokenStream, int tokenIndex) {
+        return isConvertedToLower(index -> tokenStream.get(index).getTokenValue(), tokenStream.size(), tokenIndex);
+    }
+
+
+    // As above, for a query given by the text of each of its tokens
+    public static boolean isConvertedToLower(IntFunction<String> tokenValues, int numberOfTokens, int tokenIndex) {
         // This has to do with making queries case-insensitive and converting
         // table/database names to lowercase, while preserving case in attribute names
         // Converts all of the tokens EXCEPT column names to lowercase.
         // This proviso only pertains to the Alter, Update and Create commands
         int lastIndex;
+        String commandType = tokenValues.apply(0);
+
+        // A prepared statement is converted as it would be on its own, and the values given to
+        // EXECUTE are converted when they are put into the statement
+        if (commandType.equalsIgnoreCase("prepare") && numberOfTokens > 3) {
+            return tokenIndex < 3 ||
+                    isConvertedToLower(index -> tokenValues.apply(index + 3), numberOfTokens - 3, tokenIndex - 3);
+        } else if (commandType.equalsIgnoreCase("execute")) {
+            return tokenIndex < 2;
+        }
 
-        if (this.tokenStream.get(0).getTokenValue().equalsIgnoreCase("alter")) {
-            lastIndex = this.tokenStream.size() - 2;
-        } else if (this.tokenStream.get(0).getTokenValue().equalsIgnoreCase("create") &&
-                this.tokenStream.size() > 3) {
+        if (commandType.equalsIgnoreCase("alter")) {
+            lastIndex = numberOfTokens - 2;
+        } else if (commandType.equalsIgnoreCase("create") && numberOfTokens > 3) {
             lastIndex = 3;
-        } else if (this.tokenStream.get(0).getTokenValue().equalsIgnoreCase("insert")) {
+        } else if (commandType.equalsIgnoreCase("insert")) {
             lastIndex = 4;
         } else {
-            lastIndex = this.tokenStream.size();
-        }
-        for (int i = 0; i < lastIndex; i++) {
-            if (!(i > 2 && this.tokenStream.get(i - 1).getTokenValue().equals("=") &&
-                    this.tokenStream.get(0).getTokenValue().equals("update"))) {
-                this.tokenStream.get(i).setTokenToLowerCase();
-            }
+            lastIndex = numberOfTokens;
         }
+        return tokenIndex < lastIndex && !(tokenIndex > 2 &&
+                tokenValues.apply(tokenIndex - 1).equals("=") &&
+                commandType.equalsIgnoreCase("update"));
     }
 }
\ No newline at end of file
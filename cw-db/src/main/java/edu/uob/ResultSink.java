@@ -0,0 +1,18 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.util.List;
+
+// Receives the response to a command as it is produced. Commands that return a table (SELECT
+// and JOIN) send the column names followed by one row at a time, so a large result never has
+// to be held in memory as a single String before it is sent to the client.
+public interface ResultSink {
+
+    // A complete response that is not a table, e.g. "[OK]" or an error message
+    void writeMessage(String message) throws IOException;
+
+    // Starts a successful table response. Called once, before any rows.
+    void writeHeader(List<String> columnNames) throws IOException;
+
+    void writeRow(List<String> row) throws IOException;
+}
@@ -1,11 +1,14 @@
 package edu.uob;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
 public class SelectCMD extends DBcmd {
 
-    public SelectCMD(ArrayList<Token> tokenStream) {
+    public SelectCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
         this.tokenStream = tokenStream;
     }
 
@@ -32,45 +35,54 @@ public class SelectCMD extends DBcmd {
 
 
     public String handleQuery() {
+        return TextResultSink.collect(this);
+    }
+
+
+    // Rows are checked against the WHERE condition and sent to the sink one at a time, so the
+    // selected rows are never copied into a separate table or a single response String
+    public void handleQuery(ResultSink resultSink) throws IOException {
+        List<Integer> selectedColumns;
+        BitSet filteredRows = null;
         try {
             this.instantiateDatabaseTable();
+            // Apply the WHERE condition (if there is one) before any of the response is sent
+            if (this.condition != null && this.databaseTable.getNumberOfRows() > 0) {
+                this.databaseTable.checkConditionColumns(this.condition);
+                filteredRows = this.databaseTable.filterRows(this.condition);
+            }
+            // Select columns (or wildcard)
+            selectedColumns = this.selectColumns();
         } catch (DBException exception) {
-            return exception.getMessage();
+            resultSink.writeMessage(exception.getMessage());
+            return;
         }
 
-        // Handle WHERE condition (if there is one)
-        if (this.condition != null) {
-            try {
-                this.databaseTable.filterTable(this.condition);
-            } catch (DBException error) {
-                return error.getMessage();
+        ArrayList<String> columnNames = this.databaseTable.getColumnNames(true);
+        resultSink.writeHeader(selectedColumns == null ? columnNames : this.selectValues(columnNames, selectedColumns));
+        for (int rowIndex = 0; rowIndex < this.databaseTable.getNumberOfRows(); rowIndex++) {
+            if (filteredRows == null || filteredRows.get(rowIndex)) {
+                ArrayList<String> tableRow = this.databaseTable.getTableRow(rowIndex);
+                resultSink.writeRow(selectedColumns == null ? tableRow : this.selectValues(tableRow, selectedColumns));
             }
         }
-        // Select columns (or wildcard)
-        try {
-            this.selectColumns();
-        } catch (DBException exception) {
-            return exception.getMessage();
-        }
-        // Everything went fine, so return response code/message and printable table
-        return "[OK]\r\n" + databaseTable;
     }
 
 
-    private void selectColumns() throws DBException {
+    public boolean isReadOnly() {
+        return true;
+    }
+
+
+    // Returns the indices of the selected columns, or null for the wildcard *
+    private List<Integer> selectColumns() throws DBException {
         if (this.attributeList.isEmpty()) {
             throw new DBException("No columns were selected. " +
                     "Please select one or more columns, or use the wildcard character *.");
         }
-        // If WildAttribute is NOT *, filter table by selected columns (attribute
-        // names) before proceeding.
-        if (!(this.attributeList.size() == 1 && this.attributeList.get(0).equals("*"))) {
-            selectFilterColumns();
+        if (this.attributeList.size() == 1 && this.attributeList.get(0).equals("*")) {
+            return null;
         }
-    }
-
-
-    private void selectFilterColumns() throws DBException {
         List<Integer> selectColumnIndices = new ArrayList<>();
         ArrayList<String> columnNames = this.databaseTable.getColumnNames(false);
         for (String column : this.attributeList) {
@@ -82,6 +94,15 @@ public class SelectCMD extends DBcmd {
         if (selectColumnIndices.isEmpty()) {
             throw new DBException("None of the selected columns exist in this table.");
         }
-        this.databaseTable.filterColumnsByIndex(selectColumnIndices);
+        return selectColumnIndices;
+    }
+
+
+    private List<String> selectValues(List<String> row, List<Integer> selectedColumns) {
+        List<String> selectedValues = new ArrayList<>(selectedColumns.size());
+        for (int columnIndex : selectedColumns) {
+            selectedValues.add(row.get(columnIndex));
+        }
+        return selectedValues;
     }
-}
\ No newline at end of file
+}
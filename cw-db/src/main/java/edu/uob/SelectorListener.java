@@ -0,0 +1,314 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking network front end for DBServer. A single selector thread owns every client
+// socket and only reads and writes bytes; complete commands are handed to a fixed pool of
+// worker threads. An idle connection costs one small Connection object and no thread, so
+// memory and thread count stay flat as the number of open connections grows.
+public class SelectorListener {
+    private static final char END_OF_TRANSMISSION = 4;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    // Stop reading from a client whose unsent responses exceed this many bytes, or whose
+    // commands waiting to run exceed this many characters, until they drain
+    private static final int MAX_PENDING_OUTPUT = 1024 * 1024;
+    private static final int MAX_PENDING_COMMANDS = 1024 * 1024;
+    // A command longer than this closes the connection, as it could never be queued. Framed
+    // clients are held to the same limit.
+    private static final int MAX_COMMAND_LENGTH = FramedProtocol.MAX_FRAME_SIZE;
+
+    private final DBServer server;
+    private final ExecutorService workerPool;
+    // Shared by all connections: only the selector thread reads from sockets
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    // Connections whose interest ops must be updated by the selector thread
+    private final ConcurrentLinkedQueue<Connection> pendingUpdates = new ConcurrentLinkedQueue<>();
+    private Selector selector;
+
+    public SelectorListener(DBServer server, int workerThreads) {
+        if (workerThreads < 1) {
+            throw new IllegalArgumentException("Worker threads must be at least 1, but was " + workerThreads);
+        }
+        this.server = server;
+        this.workerPool = Executors.newFixedThreadPool(workerThreads, new WorkerThreadFactory());
+    }
+
+
+    public void listenOn(int portNumber) throws IOException {
+        try (Selector selector = Selector.open();
+             ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            this.selector = selector;
+            serverChannel.bind(new InetSocketAddress(portNumber));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            System.out.println("Server listening on port " + portNumber + " (non-blocking)");
+
+            while (!Thread.interrupted()) {
+                selector.select();
+                this.applyPendingUpdates();
+                Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+                while (selectedKeys.hasNext()) {
+                    SelectionKey key = selectedKeys.next();
+                    selectedKeys.remove();
+                    try {
+                        this.handleKey(key, serverChannel);
+                    } catch (IOException e) {
+                        System.err.println("Connection closed after a non-fatal IO error: " + e.getMessage());
+                        if (key.attachment() instanceof Connection connection) {
+                            connection.close();
+                        }
+                    }
+                }
+            }
+        } finally {
+            this.workerPool.shutdownNow();
+        }
+    }
+
+
+    private void handleKey(SelectionKey key, ServerSocketChannel serverChannel) throws IOException {
+        if (!key.isValid()) return;
+        if (key.isAcceptable()) {
+            this.acceptConnection(serverChannel);
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        if (key.isReadable()) {
+            this.readCommands(connection);
+        }
+        if (key.isValid() && key.isWritable()) {
+            this.writeResponses(connection);
+        }
+    }
+
+
+    private void acceptConnection(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, this.server.createSession());
+        connection.key = channel.register(this.selector, SelectionKey.OP_READ, connection);
+        System.out.println("Connection established: " + channel.getRemoteAddress());
+    }
+
+
+    // Read whatever bytes are available and split them into newline-terminated commands.
+    // Bytes of an incomplete command are kept on the connection until the rest arrives.
+    private void readCommands(Connection connection) throws IOException {
+        this.readBuffer.clear();
+        int bytesRead = connection.channel.read(this.readBuffer);
+        if (bytesRead == -1) {
+            // Client has finished sending; close once all of its commands have been answered
+            synchronized (connection) {
+                connection.inputClosed = true;
+            }
+            connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ);
+            this.closeIfFinished(connection);
+            return;
+        }
+        this.readBuffer.flip();
+        int lineStart = 0;
+        for (int i = 0; i < this.readBuffer.limit(); i++) {
+            if (this.readBuffer.get(i) == '\n') {
+                connection.appendPartialLine(this.readBuffer, lineStart, i);
+                this.queueCommand(connection, connection.takeLine());
+                lineStart = i + 1;
+            }
+        }
+        connection.appendPartialLine(this.readBuffer, lineStart, this.readBuffer.limit());
+        synchronized (connection) {
+            if (connection.pendingCommandLength > MAX_PENDING_COMMANDS) {
+                this.updateInterestOps(connection);
+            }
+        }
+    }
+
+
+    private void queueCommand(Connection connection, String command) {
+        boolean startWorker;
+        synchronized (connection) {
+            connection.pendingCommands.add(command);
+            connection.pendingCommandLength += command.length();
+            startWorker = !connection.executing;
+            connection.executing = true;
+        }
+        if (startWorker) {
+            this.workerPool.execute(() -> this.executeNextCommand(connection));
+        }
+    }
+
+
+    // Runs on a worker thread. Commands from one connection execute one at a time and in the
+    // order they arrived; the worker resubmits itself so busy clients cannot hog a thread.
+    private void executeNextCommand(Connection connection) {
+        String command;
+        synchronized (connection) {
+            command = connection.pendingCommands.poll();
+            connection.pendingCommandLength -= command.length();
+        }
+        System.out.println("Received message: " + command);
+        String result;
+        try {
+            result = this.server.handleCommand(command, connection.session);
+        } catch (RuntimeException exception) {
+            // The client still gets a response, and the connection carries on with its next command
+            System.err.println("Failed to run " + command + ": " + exception);
+            result = "[ERROR]: Something went wrong while running the command.";
+        }
+        ByteBuffer response = StandardCharsets.UTF_8.encode(result + "\n" + END_OF_TRANSMISSION + "\n");
+
+        boolean moreCommands;
+        synchronized (connection) {
+            connection.outgoing.add(response);
+            connection.pendingOutput += response.remaining();
+            moreCommands = !connection.pendingCommands.isEmpty();
+            connection.executing = moreCommands;
+        }
+        this.pendingUpdates.add(connection);
+        this.selector.wakeup();
+        if (moreCommands) {
+            this.workerPool.execute(() -> this.executeNextCommand(connection));
+        }
+    }
+
+
+    private void applyPendingUpdates() {
+        Connection connection;
+        while ((connection = this.pendingUpdates.poll()) != null) {
+            if (!connection.key.isValid()) continue;
+            synchronized (connection) {
+                this.updateInterestOps(connection);
+            }
+            this.closeIfFinished(connection);
+        }
+    }
+
+
+    // Called by the selector thread while holding the connection's lock. Reading is paused
+    // while the client has too much waiting, so a client that sends faster than its commands
+    // run or its responses are read cannot make the server's memory grow.
+    private void updateInterestOps(Connection connection) {
+        int interestOps = connection.inputClosed ? 0 : SelectionKey.OP_READ;
+        if (!connection.outgoing.isEmpty()) interestOps |= SelectionKey.OP_WRITE;
+        if (connection.pendingOutput > MAX_PENDING_OUTPUT || connection.pendingCommandLength > MAX_PENDING_COMMANDS) {
+            interestOps &= ~SelectionKey.OP_READ;
+        }
+        connection.key.interestOps(interestOps);
+    }
+
+
+    private void writeResponses(Connection connection) throws IOException {
+        synchronized (connection) {
+            while (!connection.outgoing.isEmpty()) {
+                // Pipelined responses that are waiting together go out in one gathering write
+                ByteBuffer[] responses = connection.outgoing.toArray(new ByteBuffer[0]);
+                long bytesWritten = connection.channel.write(responses);
+                connection.pendingOutput -= bytesWritten;
+                while (!connection.outgoing.isEmpty() && !connection.outgoing.peek().hasRemaining()) {
+                    connection.outgoing.poll();
+                }
+                if (!connection.outgoing.isEmpty()) {
+                    // Socket buffer is full - wait until the selector reports it writable again
+                    return;
+                }
+            }
+            this.updateInterestOps(connection);
+        }
+        this.closeIfFinished(connection);
+    }
+
+
+    private void closeIfFinished(Connection connection) {
+        synchronized (connection) {
+            if (connection.inputClosed && !connection.executing && connection.outgoing.isEmpty()) {
+                connection.close();
+            }
+        }
+    }
+
+
+    private static class Connection {
+        private final SocketChannel channel;
+        private final Session session;
+        private SelectionKey key;
+        // Bytes of a command that has not been terminated by a newline yet. Only allocated
+        // while a partial command is outstanding, so idle connections hold no buffer.
+        private ByteBuffer partialLine;
+        private final ArrayDeque<String> pendingCommands = new ArrayDeque<>();
+        private int pendingCommandLength;
+        private final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<>();
+        private int pendingOutput;
+        private boolean executing;
+        private boolean inputClosed;
+
+        private Connection(SocketChannel channel, Session session) {
+            this.channel = channel;
+            this.session = session;
+        }
+
+        private void appendPartialLine(ByteBuffer source, int start, int end) throws IOException {
+            int length = end - start;
+            if (length == 0) return;
+            int lineLength = length + (this.partialLine == null ? 0 : this.partialLine.position());
+            if (lineLength > MAX_COMMAND_LENGTH) {
+                throw new IOException("Received a command of more than " + MAX_COMMAND_LENGTH + " bytes");
+            }
+            if (this.partialLine == null) {
+                this.partialLine = ByteBuffer.allocate(Math.max(256, length));
+            } else if (this.partialLine.remaining() < length) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(this.partialLine.capacity() * 2,
+                        this.partialLine.position() + length));
+                this.partialLine.flip();
+                grown.put(this.partialLine);
+                this.partialLine = grown;
+            }
+            this.partialLine.put(source.duplicate().limit(end).position(start));
+        }
+
+        // Decode the buffered bytes as one command, dropping a trailing carriage return
+        private String takeLine() {
+            if (this.partialLine == null) return "";
+            this.partialLine.flip();
+            String line = StandardCharsets.UTF_8.decode(this.partialLine).toString();
+            this.partialLine = null;
+            if (line.endsWith("\r")) {
+                line = line.substring(0, line.length() - 1);
+            }
+            return line;
+        }
+
+        private void close() {
+            this.key.cancel();
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close connection: " + e.getMessage());
+            }
+        }
+    }
+
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        public Thread newThread(Runnable task) {
+            Thread thread = new Thread(task, "db-worker-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
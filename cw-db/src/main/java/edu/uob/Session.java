@@ -0,0 +1,60 @@
+package edu.uob;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+// Per-connection state. Each client connection gets its own Session, so a USE command only
+// changes the current database of the client that sent it.
+public class Session {
+    private final String storageFolderPath;
+    // Shared by all sessions of the same server
+    private final TableCache tableCache;
+    private final LogManager logManager;
+    private String databaseName;
+    private String databasePath;
+    // Statements saved by PREPARE, by name
+    private final Map<String, PreparedStatement> preparedStatements = new HashMap<>();
+
+    public Session(String storageFolderPath, TableCache tableCache, LogManager logManager) {
+        this.storageFolderPath = storageFolderPath;
+        this.tableCache = tableCache;
+        this.logManager = logManager;
+        this.databaseName = null;
+        this.databasePath = null;
+    }
+
+
+    // Path of a database folder within the storage folder
+    public String getDatabasePath(String databaseName) {
+        return this.storageFolderPath + File.separator + databaseName;
+    }
+
+
+    // Getters and setters
+    public String getStorageFolderPath() {
+        return this.storageFolderPath;
+    }
+    public TableCache getTableCache() {
+        return this.tableCache;
+    }
+    public LogManager getLogManager() {
+        return this.logManager;
+    }
+    public String getDatabaseName() {
+        return this.databaseName;
+    }
+    public String getDatabasePath() {
+        return this.databasePath;
+    }
+    public void setDatabaseName(String databaseName) {
+        this.databaseName = databaseName;
+        this.databasePath = this.getDatabasePath(databaseName);
+    }
+    public PreparedStatement getPreparedStatement(String statementName) {
+        return this.preparedStatements.get(statementName);
+    }
+    public void addPreparedStatement(String statementName, PreparedStatement preparedStatement) {
+        this.preparedStatements.put(statementName, preparedStatement);
+    }
+}
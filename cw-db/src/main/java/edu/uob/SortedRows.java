@@ -0,0 +1,98 @@
+package edu.uob;
+
+import java.util.Comparator;
+
+// The rows of one side of a merge join, in order of their join values and then of their
+// position in the table. Empty cells are left out, since they never match. The rows can be
+// read from the start more than once.
+//
+// The order comes from the table itself when its join column is already sorted (as the id
+// column usually is), or from an index on the join column. Rows are never sorted for a join:
+// a side that is not already in order is hash joined instead (see JoinMatches).
+public class SortedRows {
+    public static final int END = -1;
+
+    // Join values are sorted integers first, by value, then everything else as text. Values
+    // that are equal as integers but written differently ("7" and "007") are ordered as text,
+    // so two values compare as equal exactly when the join would match them.
+    public static final Comparator<String> JOIN_VALUE_ORDER = (value1, value2) -> {
+        long integer1 = ColumnVector.parseInteger(value1);
+        long integer2 = ColumnVector.parseInteger(value2);
+        boolean isInteger1 = integer1 != ColumnVector.NOT_AN_INTEGER;
+        boolean isInteger2 = integer2 != ColumnVector.NOT_AN_INTEGER;
+        if (isInteger1 != isInteger2) return isInteger1 ? -1 : 1;
+        if (isInteger1 && integer1 != integer2) return Long.compare(integer1, integer2);
+        return value1.compareTo(value2);
+    };
+
+    private final int[] rows;
+    private final int numberOfRows;
+
+
+    private SortedRows(int[] rows, int numberOfRows) {
+        this.rows = rows;
+        this.numberOfRows = numberOfRows;
+    }
+
+
+    // The rows in table order, or null if the join values are not already sorted
+    public static SortedRows inTableOrder(String[] joinValues) {
+        int[] rows = new int[joinValues.length];
+        int numberOfRows = 0;
+        String previousValue = null;
+        for (int row = 0; row < joinValues.length; row++) {
+            if (joinValues[row] == null) continue;
+            if (previousValue != null && JOIN_VALUE_ORDER.compare(previousValue, joinValues[row]) > 0) return null;
+            previousValue = joinValues[row];
+            rows[numberOfRows++] = row;
+        }
+        return new SortedRows(rows, numberOfRows);
+    }
+
+
+    // The rows in the order given by an index, or null if that is not join value order. The
+    // order is checked, since an index orders values in almost the same way as the join.
+    public static SortedRows inIndexOrder(String[] joinValues, int[] indexedRows) {
+        for (int position = 1; position < indexedRows.length; position++) {
+            if (compareRows(joinValues, indexedRows[position - 1], indexedRows[position]) > 0) {
+                return null;
+            }
+        }
+        return new SortedRows(indexedRows, indexedRows.length);
+    }
+
+
+    private static int compareRows(String[] joinValues, int row1, int row2) {
+        int comparison = JOIN_VALUE_ORDER.compare(joinValues[row1], joinValues[row2]);
+        return comparison != 0 ? comparison : Integer.compare(row1, row2);
+    }
+
+
+    public int getNumberOfRows() {
+        return this.numberOfRows;
+    }
+
+
+    // Starts reading the rows from the first one
+    public RowReader read() {
+        return new RowReader(this.rows, this.numberOfRows);
+    }
+
+
+    // Reads rows one at a time
+    public static class RowReader {
+        private final int[] rows;
+        private final int numberOfRows;
+        private int position;
+
+        private RowReader(int[] rows, int numberOfRows) {
+            this.rows = rows;
+            this.numberOfRows = numberOfRows;
+        }
+
+        // Returns the next row, or END after the last one
+        public int next() {
+            return this.position == this.numberOfRows ? END : this.rows[this.position++];
+        }
+    }
+}
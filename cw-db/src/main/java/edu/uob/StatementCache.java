@@ -0,0 +1,205 @@
+package edu.uob;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uob.Token.TokenType;
+
+// Token streams of recently run statements, shared by every session of a server. Statements
+// are keyed by their normalized text: the words of the query separated by single spaces, in
+// lower case wherever QueryParser would convert them, with each literal (a number or a quoted
+// string) replaced by a marker for its type. So "SELECT * FROM people WHERE age > 30;" and
+// "select * from People where age >  41 ;" share one template, while words whose case is kept
+// (such as column names in CREATE TABLE) must match exactly.
+//
+// A template is the token stream as QueryParser made it for the first statement of its shape,
+// with the positions of its literals. Running another statement of the same shape only means
+// scanning its text once for the literals and putting them into a copy of the template, in
+// lower case wherever QueryParser would have converted them. Making and classifying the other
+// tokens and converting them to lower case are skipped. The command still parses its tokens,
+// which is cheap and keeps every check and error message as it was.
+public class StatementCache {
+    public static final int DEFAULT_CAPACITY = 1024;
+    // Longer statements, such as bulk inserts, are rarely repeated with the same number of
+    // values, and would only push smaller templates out of the cache
+    public static final int MAX_TEMPLATE_LENGTH = 1024;
+    // Marks a literal in a normalized statement. Words cannot contain a quote, so a marker
+    // is never mistaken for a word.
+    private static final char LITERAL_MARKER = '\'';
+
+    private final int capacity;
+    // Access-ordered, so the least recently used template is dropped first
+    private final LinkedHashMap<String, Template> templates;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    public StatementCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public StatementCache(int capacity) {
+        this.capacity = capacity;
+        this.templates = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Template> eldest) {
+                return this.size() > StatementCache.this.capacity;
+            }
+        };
+    }
+
+
+    // Returns the command for a statement, ready for parseCommand()
+    public DBcmd getCommand(String command, Session session) throws DBException {
+        Statement statement = Statement.scan(command);
+        if (statement != null) {
+            Template template;
+            synchronized (this) {
+                template = this.templates.get(statement.key);
+            }
+            if (template != null) {
+                this.hitCount.incrementAndGet();
+                return QueryParser.createCommand(template.bind(statement.literals), session);
+            }
+        }
+        this.missCount.incrementAndGet();
+        ArrayList<Token> tokenStream = QueryLexer.getTokens(command);
+        boolean cacheable = statement != null && tokenStream.size() <= MAX_TEMPLATE_LENGTH &&
+                statement.matches(tokenStream);
+        DBcmd query = new QueryParser(tokenStream, session).parse();
+        if (cacheable) {
+            // The tokens have now been converted to lower case
+            Template template = new Template(tokenStream, statement);
+            synchronized (this) {
+                this.templates.put(statement.key, template);
+            }
+        }
+        return query;
+    }
+
+
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+    public synchronized int getNumberOfTemplates() {
+        return this.templates.size();
+    }
+
+
+    // A statement split into words and literals by QueryLexer, without making any Tokens
+    private static class Statement {
+        private String key;
+        // The text of every token, with literals as QueryParser would see them
+        private final List<String> tokenValues = new ArrayList<>();
+        private final List<Integer> literalPositions = new ArrayList<>();
+        private final List<TokenType> literalTypes = new ArrayList<>();
+        private final List<String> literals = new ArrayList<>();
+
+        // Returns null for a statement that cannot have a template, i.e. one with an unclosed
+        // quote
+        private static Statement scan(String command) {
+            Statement statement = new Statement();
+            QueryLexer lexer = new QueryLexer(command);
+            while (lexer.next()) {
+                if (lexer.getKind() == QueryLexer.Kind.QUOTED) {
+                    if (lexer.getEnd() == command.length()) return null;
+                    statement.addLiteral(lexer.getText(), TokenType.plainText);
+                    continue;
+                }
+                TokenType literalType = lexer.getKind() == QueryLexer.Kind.WORD ? numberType(lexer) : null;
+                if (literalType != null) {
+                    statement.addLiteral(lexer.getText(), literalType);
+                } else {
+                    statement.tokenValues.add(lexer.getText());
+                }
+            }
+            if (statement.tokenValues.isEmpty()) return null;
+            statement.key = statement.buildKey();
+            return statement;
+        }
+
+        private void addLiteral(String literal, TokenType literalType) {
+            this.literalPositions.add(this.tokenValues.size());
+            this.literalTypes.add(literalType);
+            this.literals.add(literal);
+            this.tokenValues.add(literal);
+        }
+
+        private String buildKey() {
+            StringBuilder key = new StringBuilder();
+            int numberOfTokens = this.tokenValues.size();
+            int nextLiteral = 0;
+            for (int i = 0; i < numberOfTokens; i++) {
+                if (nextLiteral < this.literalPositions.size() && this.literalPositions.get(nextLiteral) == i) {
+                    key.append(LITERAL_MARKER).append(this.literalTypes.get(nextLiteral++).ordinal());
+                } else if (QueryParser.isConvertedToLower(this.tokenValues::get, numberOfTokens, i)) {
+                    key.append(this.tokenValues.get(i).toLowerCase());
+                } else {
+                    key.append(this.tokenValues.get(i));
+                }
+                key.append(' ');
+            }
+            return key.toString();
+        }
+
+        // The type Token would give a number, or null if the word is not one
+        private static TokenType numberType(QueryLexer lexer) {
+            char first = lexer.charAt(lexer.getStart());
+            if (!Character.isDigit(first) && first != '.') return null;
+            String word = lexer.getText();
+            // A lone "." is a symbol
+            if (word.equals(".")) return null;
+            if (Token.isFloat(word)) return TokenType.floatLiteral;
+            if (Token.isDigitSequence(word)) return TokenType.integerLiteral;
+            return null;
+        }
+
+        // True if Token gave the literals the same types as the scan
+        private boolean matches(List<Token> tokenStream) {
+            for (int i = 0; i < this.literalPositions.size(); i++) {
+                if (tokenStream.get(this.literalPositions.get(i)).getTokenType() != this.literalTypes.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+
+    // The token stream of a statement with the positions of its literals
+    private static class Template {
+        private final Token[] tokens;
+        private final int[] literalPositions;
+        private final TokenType[] literalTypes;
+        private final boolean[] convertedToLower;
+
+        private Template(List<Token> tokenStream, Statement statement) {
+            this.tokens = tokenStream.toArray(new Token[0]);
+            int numberOfLiterals = statement.literalPositions.size();
+            this.literalPositions = new int[numberOfLiterals];
+            this.literalTypes = new TokenType[numberOfLiterals];
+            this.convertedToLower = new boolean[numberOfLiterals];
+            for (int i = 0; i < numberOfLiterals; i++) {
+                this.literalPositions[i] = statement.literalPositions.get(i);
+                this.literalTypes[i] = statement.literalTypes.get(i);
+                this.convertedToLower[i] = QueryParser.isConvertedToLower(tokenStream, this.literalPositions[i]);
+            }
+        }
+
+        // A copy of the token stream holding the given literals. Tokens other than the
+        // literals are shared, since nothing changes a token once it is in lower case.
+        private ArrayList<Token> bind(List<String> literals) {
+            ArrayList<Token> tokenStream = new ArrayList<>(List.of(this.tokens));
+            for (int i = 0; i < this.literalPositions.length; i++) {
+                String literal = this.convertedToLower[i] ? literals.get(i).toLowerCase() : literals.get(i);
+                tokenStream.set(this.literalPositions[i], new Token(this.literalTypes[i], literal));
+            }
+            return tokenStream;
+        }
+    }
+}
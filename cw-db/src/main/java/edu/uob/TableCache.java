@@ -0,0 +1,163 @@
+package edu.uob;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Tables loaded from disk, shared by every session of a server and keyed by table file path.
+// Commands get their DBTable from here instead of re-reading the .tab file each time. Tables
+// are kept in least recently used order, and the least recently used ones are dropped once the
+// estimated size of all cached tables goes over the memory budget.
+//
+// Commands that change a table change the cached DBTable and log the change while they hold
+// the database's write lock. A table that is not cached is read from its file and then has the
+// changes in the database's write-ahead log replayed, so an evicted table loses nothing. A
+// command that fails part way through, and any CREATE or DROP, invalidates the affected tables
+// so that they are read again the next time they are used.
+//
+// Sessions that only read a database can miss the same table at the same time. The first one
+// reads it, and the others wait for that read instead of starting their own, so a table (and
+// any index file rebuilt while opening it) is only read once.
+public class TableCache {
+    // By default the cache may use up to a quarter of the maximum heap size
+    public static final long DEFAULT_MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 4;
+
+    private final long memoryBudget;
+    private final LogManager logManager;
+    // Access-ordered, so iteration starts at the least recently used table
+    private final LinkedHashMap<String, DBTable> tables = new LinkedHashMap<>(16, 0.75f, true);
+    // Tables being read from disk, by path
+    private final HashMap<String, CompletableFuture<DBTable>> loadingTables = new HashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public TableCache(LogManager logManager) {
+        this(DEFAULT_MEMORY_BUDGET, logManager);
+    }
+
+    public TableCache(long memoryBudget, LogManager logManager) {
+        this.memoryBudget = memoryBudget;
+        this.logManager = logManager;
+    }
+
+
+    // Returns the table stored in tablePath, reading it from disk (plus any changes waiting in
+    // the write-ahead log) if it is not cached
+    public DBTable getTable(String tablePath) throws DBException {
+        CompletableFuture<DBTable> loadingTable;
+        synchronized (this) {
+            DBTable table = this.tables.get(tablePath);
+            if (table != null) {
+                this.hitCount.incrementAndGet();
+                // The table may have grown since it was last used
+                this.evictLeastRecentlyUsed(table);
+                return table;
+            }
+            loadingTable = this.loadingTables.get(tablePath);
+            if (loadingTable == null) {
+                this.loadingTables.put(tablePath, new CompletableFuture<>());
+            }
+        }
+        if (loadingTable != null) {
+            this.hitCount.incrementAndGet();
+            return awaitLoad(loadingTable);
+        }
+        this.missCount.incrementAndGet();
+        // Read the file outside the cache lock so sessions using other tables are not held up.
+        // The caller holds the database lock, so no other command changes the table while it is
+        // read, and other readers of it wait for this read.
+        DBTable table;
+        try {
+            table = new DBTable(tablePath);
+            this.logManager.replayLog(table, new File(tablePath).getParent());
+        } catch (DBException | RuntimeException exception) {
+            CompletableFuture<DBTable> failedLoad;
+            synchronized (this) {
+                failedLoad = this.loadingTables.remove(tablePath);
+            }
+            failedLoad.completeExceptionally(exception);
+            throw exception;
+        }
+        CompletableFuture<DBTable> finishedLoad;
+        synchronized (this) {
+            // A table bigger than the whole budget is used for this command only
+            if (table.getEstimatedSize() <= this.memoryBudget) {
+                this.tables.put(tablePath, table);
+                this.evictLeastRecentlyUsed(table);
+            }
+            finishedLoad = this.loadingTables.remove(tablePath);
+        }
+        finishedLoad.complete(table);
+        return table;
+    }
+
+
+    // Waits for another session to finish reading a table
+    private static DBTable awaitLoad(CompletableFuture<DBTable> loadingTable) throws DBException {
+        try {
+            return loadingTable.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DBException("Interrupted while waiting for a table to be read.");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DBException exception) throw exception;
+            if (e.getCause() instanceof RuntimeException exception) throw exception;
+            throw new DBException("Failed to read a table.");
+        }
+    }
+
+
+    public synchronized void invalidateTable(String tablePath) {
+        this.tables.remove(tablePath);
+    }
+
+
+    // Drops every cached table of a database
+    public synchronized void invalidateDatabase(String databasePath) {
+        String databasePrefix = databasePath + File.separator;
+        this.tables.keySet().removeIf(tablePath -> tablePath.startsWith(databasePrefix));
+    }
+
+
+    // Evicts least recently used tables until the cache fits its memory budget. The table that
+    // is being used by the current command is never evicted.
+    private void evictLeastRecentlyUsed(DBTable tableInUse) {
+        long cachedSize = 0;
+        for (DBTable table : this.tables.values()) {
+            cachedSize += table.getEstimatedSize();
+        }
+        Iterator<Map.Entry<String, DBTable>> leastRecentlyUsed = this.tables.entrySet().iterator();
+        while (cachedSize > this.memoryBudget && leastRecentlyUsed.hasNext()) {
+            DBTable table = leastRecentlyUsed.next().getValue();
+            if (table != tableInUse) {
+                cachedSize -= table.getEstimatedSize();
+                leastRecentlyUsed.remove();
+                this.evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+
+    // Getters for the cache statistics
+    public long getHitCount() {
+        return this.hitCount.get();
+    }
+    public long getMissCount() {
+        return this.missCount.get();
+    }
+    public long getEvictionCount() {
+        return this.evictionCount.get();
+    }
+    public synchronized int getNumberOfCachedTables() {
+        return this.tables.size();
+    }
+    public long getMemoryBudget() {
+        return this.memoryBudget;
+    }
+}
@@ -0,0 +1,58 @@
+package edu.uob;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.List;
+
+// Writes responses in the tab-separated text format returned to clients. Rows go straight to
+// the underlying writer (normally a buffered socket writer), so only the writer's buffer is
+// held in memory however many rows there are.
+public class TextResultSink implements ResultSink {
+    private final Writer output;
+
+    public TextResultSink(Writer output) {
+        this.output = output;
+    }
+
+
+    // Runs a command and returns its whole response as a String
+    public static String collect(DBcmd query) {
+        StringWriter response = new StringWriter();
+        try {
+            query.handleQuery(new TextResultSink(response));
+        } catch (IOException e) {
+            // A StringWriter never throws
+            throw new UncheckedIOException(e);
+        }
+        return response.toString();
+    }
+
+
+    public void writeMessage(String message) throws IOException {
+        this.output.write(message);
+    }
+
+
+    public void writeHeader(List<String> columnNames) throws IOException {
+        this.output.write("[OK]\r\n");
+        for (String columnName : columnNames) {
+            this.output.write(columnName);
+            this.output.write('\t');
+        }
+        this.output.write("\r\n");
+    }
+
+
+    public void writeRow(List<String> row) throws IOException {
+        for (String cellData : row) {
+            // Empty cells are stored as null (or "null" once written to disk) - print them as blank
+            if (cellData != null && !cellData.equals("null") && !cellData.isBlank()) {
+                this.output.write(cellData);
+            }
+            this.output.write('\t');
+        }
+        this.output.write("\r\n");
+    }
+}
@@ -1,20 +1,37 @@
 package edu.uob;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Arrays;
+import java.util.Map;
 
 public class Token {
     private TokenType tokenType;
     private String tokenValue;
     final static List<String> keywords = Arrays.asList("use", "create", "drop", "alter", "insert",
             "select", "update", "delete", "join", "database", "table", "into", "values", "from",
-            "where", "set", "on");
+            "where", "set", "on", "index", "prepare", "execute");
     final static List<String> alterationTypes = Arrays.asList("add", "drop");
     final static List<String> symbols = Arrays.asList("!", "#", "$", "%", "&", "(", ")", "*", "+", ",", "-", ".",
             "/", ":", ";", ">", "=", "<", "?", "@", "[", "\\", "]", "^", "_", "`", "{", "}", "~");
     final static List<String> booleanOperators = Arrays.asList("and", "or");
     final static List<String> comparators = Arrays.asList("==", ">", "<", ">=", "<=", "!=", "like");
     final static List<String> booleanLiterals = Arrays.asList("true", "false");
+    // The type of every word in the lists above, so a word is classified by one lookup. The
+    // earlier lists win, as they did when the lists were searched in turn. The boolean literals
+    // can go in too, since no word in them could be a number.
+    private final static Map<String, TokenType> wordTypes = new HashMap<>();
+    private final static int longestWord;
+
+    static {
+        addWordTypes(keywords, TokenType.keyword);
+        addWordTypes(alterationTypes, TokenType.alterationType);
+        addWordTypes(symbols, TokenType.symbol);
+        addWordTypes(booleanOperators, TokenType.booleanOperator);
+        addWordTypes(comparators, TokenType.comparator);
+        addWordTypes(booleanLiterals, TokenType.booleanLiteral);
+        longestWord = wordTypes.keySet().stream().mapToInt(String::length).max().orElse(0);
+    }
 
 
     public Token(String token) {
@@ -23,39 +40,49 @@ public class Token {
     }
 
 
+    // A token whose type is already known, e.g. a literal put into a cached statement
+    Token(TokenType tokenType, String tokenValue) {
+        this.tokenType = tokenType;
+        this.tokenValue = tokenValue;
+    }
+
+
+    private static void addWordTypes(List<String> words, TokenType tokenType) {
+        for (String word : words) {
+            wordTypes.putIfAbsent(word, tokenType);
+        }
+    }
+
+
     private TokenType findTokenType(String token) {
-        // Make queries case-insensitive by making tokens lowercase
-        token = token.toLowerCase();
-
-        // Find the token type - string matching
-        if (keywords.contains(token)) return TokenType.keyword;
-        else if (alterationTypes.contains(token)) return TokenType.alterationType;
-        else if (symbols.contains(token)) return TokenType.symbol;
-        else if (booleanOperators.contains(token)) return TokenType.booleanOperator;
-        else if (comparators.contains(token)) return TokenType.comparator;
-        else if (isFloat(token)) return TokenType.floatLiteral;
+        // Words are matched case-insensitively. Tokens longer than every word (such as long
+        // string literals) are never copied to lower case.
+        if (token.length() <= longestWord) {
+            TokenType wordType = wordTypes.get(token.toLowerCase());
+            if (wordType != null) return wordType;
+        }
+        // Then by the characters of the token, each test reading them at most once
+        if (isFloat(token)) return TokenType.floatLiteral;
         else if (isDigitSequence(token)) return TokenType.integerLiteral;
-        else if (booleanLiterals.contains(token)) return TokenType.booleanLiteral;
         else if (isCharLiteral(token)) return TokenType.charLiteral;
+        // "null" is caught here, as a string literal, before it could be given the Null type
         else if (isStringLiteral(token)) return TokenType.stringLiteral;
-        else if (token.equals("null")) return TokenType.Null;
         else return TokenType.plainText;
     }
 
 
     private String findTokenValue(String token) {
         // If '', remove quotes
-        if (token.contains("'")) {
-            return token.replaceAll("'", "");
+        if (token.indexOf('\'') >= 0) {
+            return token.replace("'", "");
         }
         else {
-            // Convert token to lowercase to ensure query case-insensitivity
             return token;
         }
     }
 
 
-    private static boolean isDigitSequence(String token) {
+    static boolean isDigitSequence(String token) {
         for (int i = 0; i < token.length(); i++) {
             if (!Character.isDigit(token.charAt(i))) return false;
         }
@@ -63,18 +90,30 @@ public class Token {
     }
 
 
-    private static boolean isFloat(String token) {
-        if (!token.contains(".")) return false;
+    // [DigitSequence] "." [DigitSequence]. The digits before the point may be left out, and
+    // points at the end are ignored. A sign is only accepted in the odd case of the token
+    // holding "+|-", which has always been removed before the digits are checked.
+    static boolean isFloat(String token) {
+        if (token.indexOf('.') < 0) return false;
 
-        if (token.contains("+") || token.contains("-")) {
+        if (token.indexOf('+') >= 0 || token.indexOf('-') >= 0) {
             if (!(token.charAt(0) == '+' || token.charAt(0) == '-')) return false;
-            token = token.replace("+|-", ""); // remove + or -
+            if (!token.contains("+|-")) return false;
+            token = token.replace("+|-", "");
         }
 
-        // Length of array of DigitSequences should be 2 - no more than 1 . in float
-        String[] splitToken = token.split("\\.");
-        if (splitToken.length != 2) return false;
-        return isDigitSequence(splitToken[0]) && isDigitSequence(splitToken[1]);
+        int end = token.length();
+        while (end > 0 && token.charAt(end - 1) == '.') end--;
+        int numberOfPoints = 0;
+        for (int i = 0; i < end; i++) {
+            char character = token.charAt(i);
+            if (character == '.') {
+                numberOfPoints++;
+            } else if (!Character.isDigit(character)) {
+                return false;
+            }
+        }
+        return numberOfPoints == 1;
     }
 
 
@@ -88,10 +127,10 @@ public class Token {
 
     private static boolean isStringLiteral(String token) {
         // "" | [CharLiteral] | [StringLiteral] [CharLiteral]
+        // Only the first character has ever been checked against [CharLiteral], so that is
+        // all that is checked here
         if (token.isEmpty()) return true;
-        if (isCharLiteral(token)) return true;
-        if (token.length() > 1) return isStringLiteral(token.substring(0, token.length()-1));
-        return false;
+        return Character.isAlphabetic(token.charAt(0)) || Character.isSpaceChar(token.charAt(0));
     }
 
 
@@ -126,7 +165,8 @@ public class Token {
 
     public enum TargetType {
         DATABASE,
-        TABLE
+        TABLE,
+        INDEX
     }
 
 
@@ -140,4 +180,28 @@ public class Token {
         AND,
         OR
     }
+
+
+    public enum Comparator {
+        EQUAL("=="),
+        GREATER(">"),
+        LESS("<"),
+        GREATER_OR_EQUAL(">="),
+        LESS_OR_EQUAL("<="),
+        NOT_EQUAL("!="),
+        LIKE("like");
+
+        private final String symbol;
+
+        Comparator(String symbol) {
+            this.symbol = symbol;
+        }
+
+        public static Comparator fromSymbol(String symbol) throws DBException {
+            for (Comparator comparator : values()) {
+                if (comparator.symbol.equals(symbol)) return comparator;
+            }
+            throw new DBException("Invalid comparator " + symbol + ".");
+        }
+    }
 }
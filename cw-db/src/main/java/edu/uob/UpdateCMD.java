@@ -1,11 +1,14 @@
 package edu.uob;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import edu.uob.DBException.*;
 
 public class UpdateCMD extends DBcmd {
 
-    public UpdateCMD(ArrayList<Token> tokenStream) {
+    public UpdateCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
         this.tokenStream = tokenStream;
     }
 
@@ -37,21 +40,32 @@ public class UpdateCMD extends DBcmd {
                 return new manuallyChangingIdColumnException().getMessage();
             }
         }
-        ArrayList<String> filteredDataIds;
+        BitSet filteredRows;
         try {
             this.instantiateDatabaseTable();
-            // Apply condition - get ids of the rows the condition applies to
-            filteredDataIds = this.filterTableByCondition();
+        } catch (DBException exception) {
+            return exception.getMessage();
+        }
+        try {
+            // Apply condition - get the rows the condition applies to. This does not change the
+            // table, so the cached table is still good if it fails.
+            filteredRows = this.filterTableByCondition();
+        } catch (DBException exception) {
+            return exception.getMessage();
+        }
+        try {
             // Set new values (according to name-value pairs) for rows where condition is true
-            this.updateTable(filteredDataIds);
+            this.updateTable(filteredRows);
         } catch (DBException exception) {
+            this.invalidateCachedTable();
             return exception.getMessage();
         }
         return "[OK]";
     }
 
 
-    private void updateValue(NameValuePair nameValuePair, int rowIndex)
+    // Sets the column of a name-value pair in every filtered row. The column is looked up once.
+    private void updateValue(NameValuePair nameValuePair, BitSet filteredRows)
             throws DBException {
         String attributeName = nameValuePair.getAttributeName();
         String value = nameValuePair.getValue();
@@ -59,20 +73,21 @@ public class UpdateCMD extends DBcmd {
         if (columnIndex == -1) {
             throw new DBException("Column name " + attributeName + " does not exist within this table");
         }
-        this.databaseTable.setTableValue(columnIndex, rowIndex, value);
+        this.databaseTable.setTableValues(columnIndex, filteredRows, value);
     }
 
 
-    private void updateTable(ArrayList<String> filteredDataIds)
+    private void updateTable(BitSet filteredRows)
             throws DBException {
-        int idColumnIndex = this.databaseTable.getColumnNames(false).indexOf("id");
         for (NameValuePair nameValuePair : this.nameValueList) {
-            for (int rowIndex = 0; rowIndex < this.databaseTable.getNumberOfRows(); rowIndex++) {
-                if (filteredDataIds.contains(this.databaseTable.getTableValue(idColumnIndex, rowIndex, false))) {
-                    this.updateValue(nameValuePair, rowIndex);
-                }
-            }
+            this.updateValue(nameValuePair, filteredRows);
+        }
+        // Log the new version of each updated row
+        List<WriteAheadLog.Record> changes = new ArrayList<>();
+        for (int rowIndex = filteredRows.nextSetBit(0); rowIndex >= 0; rowIndex = filteredRows.nextSetBit(rowIndex + 1)) {
+            changes.add(WriteAheadLog.Record.update(this.databaseTable.getTableName(),
+                    this.databaseTable.getTableRow(rowIndex)));
         }
-        databaseTable.writeDataToFile();
+        this.logChanges(changes);
     }
 }
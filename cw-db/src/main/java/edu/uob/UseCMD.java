@@ -6,11 +6,9 @@ import java.util.ArrayList;
 import edu.uob.DBException.*;
 
 public class UseCMD extends DBcmd {
-    private String previousDatabaseName;
-
-    public UseCMD(ArrayList<Token> tokenStream) {
+    public UseCMD(ArrayList<Token> tokenStream, Session session) {
+        super(session);
         this.tokenStream = tokenStream;
-        this.previousDatabaseName = databaseName;
     }
 
     public void parseCommand() throws DBException {
@@ -22,13 +20,16 @@ public class UseCMD extends DBcmd {
 
 
     public String handleQuery() {
-        // Check that database exists. If not, return error message and reset current database to previous
+        // Check that database exists. If not, return error message and keep the current database
         if (!new File(databasePath).exists()) {
-            if (this.previousDatabaseName != null) {
-                setDatabaseName(this.previousDatabaseName);
-            }
             return new databaseDoesNotExistException(databaseName).getMessage();
         }
+        this.session.setDatabaseName(this.databaseName);
         return "[OK]";
     }
+
+
+    public boolean isReadOnly() {
+        return true;
+    }
 }
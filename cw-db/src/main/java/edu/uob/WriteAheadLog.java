@@ -0,0 +1,336 @@
+package edu.uob;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// Write-ahead log of one database, stored in the database folder as wal.log.
+//
+// INSERT, UPDATE and DELETE change the cached table in memory and append a record of each
+// changed row to the log, instead of rewriting the table file. A change is acknowledged once
+// its records have been synced to disk. Commands wait for the sync after releasing the database
+// lock, so one sync covers every command that appended records in the meantime (group commit).
+// Now and then the changed tables are written to their .tab files and the log is emptied
+// (a checkpoint, see LogManager).
+//
+// Each record is a four byte length, a CRC32 of the payload and the payload itself. A record
+// that was only partly written when the server stopped fails its length or checksum check,
+// and it and anything after it are ignored.
+public class WriteAheadLog {
+    public static final String LOG_FILE_NAME = "wal.log";
+    private static final byte INSERT = 'I';
+    private static final byte UPDATE = 'U';
+    private static final byte DELETE = 'D';
+
+    private final String databasePath;
+    private final FileChannel channel;
+    private boolean closed;
+    // Positions are counted from when the log was opened and keep growing when the log is
+    // emptied, so a command's position stays valid across a checkpoint
+    private long truncatedBytes;
+    private long writePosition;
+    private volatile long appendedPosition;
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncFinished = this.syncLock.newCondition();
+    private boolean syncInProgress;
+    private long durablePosition;
+
+
+    public WriteAheadLog(String databasePath) throws DBException {
+        this.databasePath = databasePath;
+        try {
+            this.channel = FileChannel.open(Paths.get(databasePath, LOG_FILE_NAME), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Drop a record that was only partly written before the server stopped
+            this.writePosition = this.readValidLength();
+            this.channel.truncate(this.writePosition);
+        } catch (IOException e) {
+            throw new DBException("Failed to open the write-ahead log of " + databasePath);
+        }
+        this.appendedPosition = this.writePosition;
+        this.durablePosition = this.writePosition;
+    }
+
+
+    // One changed row: the whole new row (including its id) for INSERT and UPDATE, or just the
+    // id for DELETE
+    public static class Record {
+        private final byte type;
+        private final String tableName;
+        private final List<String> row;
+        private final String id;
+
+        private Record(byte type, String tableName, List<String> row, String id) {
+            this.type = type;
+            this.tableName = tableName;
+            this.row = row;
+            this.id = id;
+        }
+
+        public static Record insert(String tableName, List<String> row) {
+            return new Record(INSERT, tableName, row, null);
+        }
+
+        public static Record update(String tableName, List<String> row) {
+            return new Record(UPDATE, tableName, row, null);
+        }
+
+        public static Record delete(String tableName, String id) {
+            return new Record(DELETE, tableName, null, id);
+        }
+
+        public boolean isInsert() {
+            return this.type == INSERT;
+        }
+        public boolean isDelete() {
+            return this.type == DELETE;
+        }
+        public String getTableName() {
+            return this.tableName;
+        }
+        public List<String> getRow() {
+            return this.row;
+        }
+        public String getId() {
+            return this.id;
+        }
+    }
+
+
+    // Appends the records of one command and returns the position to pass to awaitDurable().
+    // If the records cannot be written completely, the log is cut back to where it was.
+    public synchronized long append(List<Record> records) throws DBException {
+        if (this.closed) {
+            throw new DBException("The write-ahead log of " + this.databasePath + " has been closed.");
+        }
+        ByteArrayOutputStream encodedRecords = new ByteArrayOutputStream();
+        try {
+            for (Record record : records) {
+                encodeRecord(record, encodedRecords);
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(encodedRecords.toByteArray());
+            while (buffer.hasRemaining()) {
+                this.channel.write(buffer, this.writePosition + buffer.position());
+            }
+        } catch (IOException e) {
+            try {
+                this.channel.truncate(this.writePosition);
+            } catch (IOException truncateError) {
+                System.err.println("Failed to undo a partial log write: " + truncateError.getMessage());
+            }
+            throw new DBException("Failed to write to the write-ahead log of " + this.databasePath);
+        }
+        this.writePosition += encodedRecords.size();
+        this.appendedPosition = this.truncatedBytes + this.writePosition;
+        return this.appendedPosition;
+    }
+
+
+    // Returns once everything up to position has been synced to disk. If another command is
+    // already syncing, wait for it and then sync whatever it did not cover, so that a single
+    // sync serves all the commands waiting at that moment.
+    public void awaitDurable(long position) throws DBException {
+        this.syncLock.lock();
+        try {
+            while (this.durablePosition < position) {
+                if (this.syncInProgress) {
+                    this.syncFinished.awaitUninterruptibly();
+                    continue;
+                }
+                this.syncInProgress = true;
+                long syncedPosition = this.appendedPosition;
+                boolean synced = false;
+                this.syncLock.unlock();
+                try {
+                    this.channel.force(false);
+                    synced = true;
+                } catch (IOException e) {
+                    // If the database has been dropped there is nothing left to save
+                    synced = !this.channel.isOpen();
+                    if (!synced) System.err.println("Failed to sync the write-ahead log: " + e.getMessage());
+                } finally {
+                    this.syncLock.lock();
+                    this.syncInProgress = false;
+                    if (synced) this.durablePosition = Math.max(this.durablePosition, syncedPosition);
+                    this.syncFinished.signalAll();
+                }
+                if (!synced) {
+                    throw new DBException("Failed to save changes to the write-ahead log of " + this.databasePath);
+                }
+            }
+        } finally {
+            this.syncLock.unlock();
+        }
+    }
+
+
+    public synchronized List<Record> readRecords() throws DBException {
+        List<Record> records = new ArrayList<>();
+        if (this.closed) return records;
+        try {
+            DataInputStream input = this.openForReading();
+            long position = 0;
+            while (position < this.writePosition) {
+                byte[] payload = readPayload(input, this.writePosition - position);
+                if (payload == null) break;
+                records.add(decodeRecord(payload));
+                position += 8 + payload.length;
+            }
+        } catch (IOException e) {
+            throw new DBException("Failed to read the write-ahead log of " + this.databasePath);
+        }
+        return records;
+    }
+
+
+    // Empties the log once its changes have been written to the table files
+    public synchronized void truncate() throws DBException {
+        try {
+            this.channel.truncate(0);
+            this.channel.force(true);
+        } catch (IOException e) {
+            throw new DBException("Failed to empty the write-ahead log of " + this.databasePath);
+        }
+        this.truncatedBytes += this.writePosition;
+        this.writePosition = 0;
+        this.appendedPosition = this.truncatedBytes;
+        // Everything that was in the log is now safely in the table files
+        this.syncLock.lock();
+        try {
+            this.durablePosition = Math.max(this.durablePosition, this.truncatedBytes);
+            this.syncFinished.signalAll();
+        } finally {
+            this.syncLock.unlock();
+        }
+    }
+
+
+    public synchronized void close() {
+        this.closed = true;
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close the write-ahead log: " + e.getMessage());
+        }
+    }
+
+
+    public synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+
+    // Number of bytes of records waiting for the next checkpoint
+    public synchronized long size() {
+        return this.writePosition;
+    }
+
+
+    public String getDatabasePath() {
+        return this.databasePath;
+    }
+
+
+    // Length of the part of the file made up of complete, undamaged records
+    private long readValidLength() throws IOException {
+        long fileLength = this.channel.size();
+        DataInputStream input = this.openForReading();
+        long validLength = 0;
+        while (validLength < fileLength) {
+            byte[] payload = readPayload(input, fileLength - validLength);
+            if (payload == null) break;
+            validLength += 8 + payload.length;
+        }
+        return validLength;
+    }
+
+
+    private DataInputStream openForReading() throws IOException {
+        this.channel.position(0);
+        // Not closed after reading, since closing it would close the channel
+        return new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.channel)));
+    }
+
+
+    // Returns the payload of the next record, or null if it is incomplete or damaged
+    private static byte[] readPayload(DataInputStream input, long bytesLeft) throws IOException {
+        if (bytesLeft < 8) return null;
+        int payloadLength = input.readInt();
+        int checksum = input.readInt();
+        if (payloadLength < 0 || payloadLength > bytesLeft - 8) return null;
+        byte[] payload = new byte[payloadLength];
+        input.readFully(payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue() == checksum ? payload : null;
+    }
+
+
+    private static void encodeRecord(Record record, ByteArrayOutputStream output) throws IOException {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payloadBytes);
+        payload.writeByte(record.type);
+        writeString(payload, record.tableName);
+        if (record.type == DELETE) {
+            writeString(payload, record.id);
+        } else {
+            payload.writeInt(record.row.size());
+            for (String value : record.row) {
+                writeString(payload, value);
+            }
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payloadBytes.toByteArray());
+        DataOutputStream header = new DataOutputStream(output);
+        header.writeInt(payloadBytes.size());
+        header.writeInt((int) crc.getValue());
+        payloadBytes.writeTo(output);
+    }
+
+
+    private static Record decodeRecord(byte[] payloadBytes) throws IOException {
+        DataInputStream payload = new DataInputStream(new ByteArrayInputStream(payloadBytes));
+        byte type = payload.readByte();
+        String tableName = readString(payload);
+        if (type == DELETE) {
+            return new Record(type, tableName, null, readString(payload));
+        }
+        int numberOfValues = payload.readInt();
+        List<String> row = new ArrayList<>(numberOfValues);
+        for (int i = 0; i < numberOfValues; i++) {
+            row.add(readString(payload));
+        }
+        return new Record(type, tableName, row, null);
+    }
+
+
+    // Strings are written as their UTF-8 length (-1 for null) followed by the bytes
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        if (length == -1) return null;
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
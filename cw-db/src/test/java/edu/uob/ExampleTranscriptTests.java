@@ -1,5 +1,6 @@
 package edu.uob;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -11,6 +12,12 @@ public class ExampleTranscriptTests {
         server = new DBServer();
     }
 
+    // Stop the server's checkpoint thread and close its logs _after_ every @Test
+    @AfterEach
+    public void teardown() {
+        server.close();
+    }
+
     private String sendCommandToServer(String command) {
         // Try to send a command to the server - this call will timeout if it takes too long (in case the server enters an infinite loop)
         return server.handleCommand(command);
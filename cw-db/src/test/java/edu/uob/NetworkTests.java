@@ -0,0 +1,337 @@
+package edu.uob;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class NetworkTests {
+
+    private static final char END_OF_TRANSMISSION = 4;
+
+    // Random name generator - useful for testing "bare earth" queries (i.e. where tables don't previously exist)
+    private String generateRandomName() {
+        String randomName = "";
+        for(int i=0; i<10 ;i++) randomName += (char)( 97 + (Math.random() * 25.0));
+        return randomName;
+    }
+
+    // Start a server listening in the background, and wait until it accepts connections
+    private void startConcurrentServer(int portNumber, int maxConnections) throws InterruptedException {
+        Thread serverThread = new Thread(() -> {
+            try {
+                new DBServer().concurrentListenOn(portNumber, maxConnections);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForServer(portNumber);
+    }
+
+    private void startNonBlockingServer(int portNumber, int workerThreads) throws InterruptedException {
+        Thread serverThread = new Thread(() -> {
+            try {
+                new DBServer().nonBlockingListenOn(portNumber, workerThreads);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+        waitForServer(portNumber);
+    }
+
+    private void waitForServer(int portNumber) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                new Socket("localhost", portNumber).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new AssertionError("Server did not start listening on port " + portNumber);
+    }
+
+    // Send one command over a socket and read the response up to the end-of-transmission marker
+    private String sendCommandOverSocket(BufferedReader reader, BufferedWriter writer, String command)
+            throws IOException {
+        writer.write(command + "\n");
+        writer.flush();
+        return readResponse(reader);
+    }
+
+    private String readResponse(BufferedReader reader) throws IOException {
+        StringBuilder response = new StringBuilder();
+        String line = reader.readLine();
+        while (line != null && !line.contains("" + END_OF_TRANSMISSION)) {
+            response.append(line).append("\n");
+            line = reader.readLine();
+        }
+        return response.toString();
+    }
+
+
+    // An idle client holding a connection open must not stop other clients from being served
+    @Test
+    public void testIdleClientDoesNotBlockOthers() throws Exception {
+        startConcurrentServer(8891, 4);
+        String randomName = generateRandomName();
+        try (Socket idleClient = new Socket("localhost", 8891);
+             Socket activeClient = new Socket("localhost", 8891)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(activeClient.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(activeClient.getOutputStream()));
+            String response = assertTimeoutPreemptively(Duration.ofMillis(2000), () -> {
+                sendCommandOverSocket(reader, writer, "CREATE DATABASE " + randomName + ";");
+                return sendCommandOverSocket(reader, writer, "USE " + randomName + ";");
+            }, "A second client was not served while the first client's connection was open");
+            assertTrue(response.contains("[OK]"), "A valid query was made over the network, however an [OK] tag was not returned");
+            assertTrue(idleClient.isConnected());
+        }
+    }
+
+    // Clients beyond the connection limit wait in the backlog until a slot frees up
+    @Test
+    public void testMaxConnectionsLimit() throws Exception {
+        startConcurrentServer(8892, 1);
+        Socket firstClient = new Socket("localhost", 8892);
+        try (Socket secondClient = new Socket("localhost", 8892)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(secondClient.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(secondClient.getOutputStream()));
+            writer.write("USE " + generateRandomName() + ";\n");
+            writer.flush();
+            Thread.sleep(300);
+            assertFalse(reader.ready(), "A client beyond the connection limit was served");
+            firstClient.close();
+            String response = assertTimeoutPreemptively(Duration.ofMillis(2000), () -> readResponse(reader),
+                    "A waiting client was not served after a connection slot was freed");
+            assertTrue(response.contains("[ERROR]"), "Using a non-existent database over the network did not return [ERROR]");
+        }
+    }
+
+    // The non-blocking server keeps many idle connections open without a thread each,
+    // and still serves an active client promptly
+    @Test
+    public void testNonBlockingServerWithManyIdleClients() throws Exception {
+        startNonBlockingServer(8893, 2);
+        String randomName = generateRandomName();
+        List<Socket> idleClients = new ArrayList<>();
+        try (Socket activeClient = new Socket("localhost", 8893)) {
+            for (int i = 0; i < 200; i++) {
+                idleClients.add(new Socket("localhost", 8893));
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(activeClient.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(activeClient.getOutputStream()));
+            String response = assertTimeoutPreemptively(Duration.ofMillis(2000), () -> {
+                sendCommandOverSocket(reader, writer, "CREATE DATABASE " + randomName + ";");
+                sendCommandOverSocket(reader, writer, "USE " + randomName + ";");
+                sendCommandOverSocket(reader, writer, "CREATE TABLE marks (name, mark);");
+                sendCommandOverSocket(reader, writer, "INSERT INTO marks VALUES ('Simon', 65);");
+                return sendCommandOverSocket(reader, writer, "SELECT * FROM marks;");
+            }, "The non-blocking server did not serve an active client while many idle clients were connected");
+            assertTrue(response.contains("[OK]"), "A valid query was made over the network, however an [OK] tag was not returned");
+            assertTrue(response.contains("Simon"), "Simon was added to a table over the network, but was not returned by SELECT *");
+        } finally {
+            for (Socket idleClient : idleClients) idleClient.close();
+        }
+    }
+
+    // A command split across several network packets is only executed once it is complete
+    @Test
+    public void testNonBlockingServerPartialCommands() throws Exception {
+        startNonBlockingServer(8894, 1);
+        try (Socket client = new Socket("localhost", 8894)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            OutputStream output = client.getOutputStream();
+            output.write("USE aNonExist".getBytes());
+            output.flush();
+            Thread.sleep(100);
+            assertFalse(reader.ready(), "An incomplete command was executed");
+            output.write("entDatabase;\n".getBytes());
+            output.flush();
+            String response = assertTimeoutPreemptively(Duration.ofMillis(2000), () -> readResponse(reader));
+            assertTrue(response.contains("anonexistentdatabase"), "A command sent in several packets was not reassembled");
+        }
+    }
+
+    // Commands sent back-to-back without waiting for responses are executed in order,
+    // and each gets its own response, in both server modes
+    @Test
+    public void testPipelinedCommands() throws Exception {
+        startConcurrentServer(8895, 2);
+        startNonBlockingServer(8896, 2);
+        for (int portNumber : new int[] {8895, 8896}) {
+            String randomName = generateRandomName();
+            List<String> commands = new ArrayList<>();
+            commands.add("CREATE DATABASE " + randomName + ";");
+            commands.add("USE " + randomName + ";");
+            commands.add("CREATE TABLE numbers (value);");
+            for (int i = 0; i < 500; i++) {
+                commands.add("INSERT INTO numbers VALUES (" + i + ");");
+            }
+            commands.add("SELECT * FROM numbers WHERE value > 497;");
+            try (Socket client = new Socket("localhost", portNumber)) {
+                List<String> responses = assertTimeoutPreemptively(Duration.ofMillis(10000),
+                        () -> DBClient.sendPipelined(commands, client));
+                assertEquals(commands.size(), responses.size(), "Not every pipelined command received a response");
+                for (int i = 0; i < commands.size() - 1; i++) {
+                    assertEquals("[OK]\n", responses.get(i), "Pipelined command " + commands.get(i) + " failed");
+                }
+                String lastResponse = responses.get(responses.size() - 1);
+                assertTrue(lastResponse.contains("499\t498") && lastResponse.contains("500\t499"),
+                        "Pipelined inserts were not all executed in order before the final SELECT");
+            }
+        }
+    }
+
+    // A client that pipelines more commands than may be queued at once has reading from it
+    // paused until they run, and still gets every response. A command longer than the maximum
+    // closes the connection rather than being buffered.
+    @Test
+    public void testNonBlockingServerInputLimits() throws Exception {
+        startNonBlockingServer(8900, 1);
+        String randomName = generateRandomName();
+        List<String> commands = new ArrayList<>();
+        commands.add("CREATE DATABASE " + randomName + ";");
+        String paddedCommand = "USE" + " ".repeat(500) + randomName + ";";
+        for (int i = 0; i < 5000; i++) {
+            commands.add(paddedCommand);
+        }
+        try (Socket client = new Socket("localhost", 8900)) {
+            List<String> responses = assertTimeoutPreemptively(Duration.ofMillis(10000),
+                    () -> DBClient.sendPipelined(commands, client));
+            assertEquals(commands.size(), responses.size(), "Not every pipelined command received a response");
+            assertEquals("[OK]\n", responses.get(responses.size() - 1));
+        }
+
+        try (Socket client = new Socket("localhost", 8900)) {
+            Thread sender = new Thread(() -> {
+                byte[] block = new byte[64 * 1024];
+                Arrays.fill(block, (byte) 'a');
+                try {
+                    OutputStream output = client.getOutputStream();
+                    for (long sent = 0; sent <= FramedProtocol.MAX_FRAME_SIZE; sent += block.length) {
+                        output.write(block);
+                    }
+                } catch (IOException e) {
+                    // The server closed the connection part way through
+                }
+            });
+            sender.setDaemon(true);
+            sender.start();
+            boolean closed = assertTimeoutPreemptively(Duration.ofMillis(5000), () -> {
+                try {
+                    return client.getInputStream().read() == -1;
+                } catch (IOException e) {
+                    return true;
+                }
+            }, "The server kept buffering a command without a newline");
+            assertTrue(closed);
+        }
+    }
+
+    // A framed client can send commands spanning several lines, and a large result comes back
+    // in several chunks that add up to the same text as the line protocol returns
+    @Test
+    public void testFramedProtocol() throws Exception {
+        startConcurrentServer(8897, 2);
+        String randomName = generateRandomName();
+        try (Socket framedClient = new Socket("localhost", 8897);
+             Socket textClient = new Socket("localhost", 8897)) {
+            InputStream input = new BufferedInputStream(framedClient.getInputStream());
+            OutputStream output = new BufferedOutputStream(framedClient.getOutputStream());
+            FramedProtocol.sendHandshake(input, output);
+            FramedProtocol.FrameReader responseReader = new FramedProtocol.FrameReader(input);
+            FramedProtocol.writeRequest(output, "CREATE DATABASE " + randomName + ";");
+            assertTrue(readFramedResponse(responseReader).contains("[OK]"));
+            FramedProtocol.writeRequest(output, "USE " + randomName + ";");
+            assertTrue(readFramedResponse(responseReader).contains("[OK]"));
+            FramedProtocol.writeRequest(output, "CREATE TABLE marks\n(name,\n mark);");
+            assertTrue(readFramedResponse(responseReader).contains("[OK]"), "A command spanning several lines failed");
+            for (int i = 0; i < 1000; i++) {
+                FramedProtocol.writeRequest(output, "INSERT INTO marks VALUES ('Student number " + i + "', " + i + ");");
+                readFramedResponse(responseReader);
+            }
+
+            FramedProtocol.writeRequest(output, "SELECT * FROM marks;");
+            int chunkCount = 0;
+            StringBuilder framedResponse = new StringBuilder();
+            while (responseReader.readFrame() && responseReader.getFrameType() == FramedProtocol.CHUNK) {
+                framedResponse.append(responseReader.getPayloadAsString());
+                chunkCount++;
+            }
+            assertEquals(FramedProtocol.END, responseReader.getFrameType());
+            assertTrue(chunkCount > 1, "A large result was not split into several chunks");
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(textClient.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(textClient.getOutputStream()));
+            sendCommandOverSocket(reader, writer, "USE " + randomName + ";");
+            String textResponse = sendCommandOverSocket(reader, writer, "SELECT * FROM marks;");
+            assertEquals(textResponse.replace("\r", ""), framedResponse.toString().replace("\r", "") + "\n",
+                    "The framed response differs from the line protocol response");
+        }
+    }
+
+    // A frame header claiming a payload over the maximum size closes the connection, without
+    // the server allocating room for it, and other clients are still served
+    @Test
+    public void testOversizedFrame() throws Exception {
+        startConcurrentServer(8899, 2);
+        try (Socket framedClient = new Socket("localhost", 8899)) {
+            InputStream input = new BufferedInputStream(framedClient.getInputStream());
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(framedClient.getOutputStream()));
+            FramedProtocol.sendHandshake(input, output);
+            output.write(FramedProtocol.REQUEST);
+            output.writeInt(FramedProtocol.MAX_FRAME_SIZE + 1);
+            output.flush();
+            int received = assertTimeoutPreemptively(Duration.ofMillis(2000), () -> input.read(),
+                    "The server did not close a connection that sent an oversized frame");
+            assertEquals(-1, received);
+        }
+        try (Socket textClient = new Socket("localhost", 8899)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(textClient.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(textClient.getOutputStream()));
+            String response = assertTimeoutPreemptively(Duration.ofMillis(2000),
+                    () -> sendCommandOverSocket(reader, writer, "USE " + generateRandomName() + ";"));
+            assertTrue(response.contains("[ERROR]"));
+        }
+    }
+
+    // A bad LIKE pattern gets an error response, and the non-blocking server goes on serving the
+    // commands that the client sends after it
+    @Test
+    public void testNonBlockingServerAfterBadPattern() throws Exception {
+        startNonBlockingServer(8898, 1);
+        String randomName = generateRandomName();
+        try (Socket client = new Socket("localhost", 8898)) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(client.getOutputStream()));
+            String response = assertTimeoutPreemptively(Duration.ofMillis(2000), () -> {
+                sendCommandOverSocket(reader, writer, "CREATE DATABASE " + randomName + ";");
+                sendCommandOverSocket(reader, writer, "USE " + randomName + ";");
+                sendCommandOverSocket(reader, writer, "CREATE TABLE marks (name, mark);");
+                sendCommandOverSocket(reader, writer, "INSERT INTO marks VALUES ('Simon', 65);");
+                assertTrue(sendCommandOverSocket(reader, writer, "SELECT * FROM marks WHERE name LIKE [;").contains("[ERROR]"),
+                        "A LIKE pattern that is not a valid regular expression did not return [ERROR]");
+                return sendCommandOverSocket(reader, writer, "SELECT * FROM marks;");
+            }, "The non-blocking server stopped serving a client after a bad LIKE pattern");
+            assertTrue(response.contains("Simon"));
+        }
+    }
+
+    private String readFramedResponse(FramedProtocol.FrameReader responseReader) throws IOException {
+        StringWriter response = new StringWriter();
+        DBClient.readFramedResponse(responseReader, response);
+        return response.toString();
+    }
+}
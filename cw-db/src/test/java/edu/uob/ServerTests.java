@@ -1,6 +1,10 @@
 package edu.uob;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -17,6 +21,12 @@ public class ServerTests {
         server = new DBServer();
     }
 
+    // Stop the server's checkpoint thread and close its logs _after_ every @Test
+    @AfterEach
+    public void teardown() {
+        server.close();
+    }
+
     private String sendCommandToServer(String command) {
         // Try to send a command to the server - this call will timeout if it takes too long (in case the server enters an infinite loop)
         return server.handleCommand(command);
@@ -734,4 +744,969 @@ public class ServerTests {
                 "Joining rows with multiple matches did not return all permutations of the matched rows.");
     }
 
-}
\ No newline at end of file
+    @Test
+    public void handleSessionsTest() {
+        // USE only changes the current database of the session that sent it
+        Session session1 = server.createSession();
+        Session session2 = server.createSession();
+        server.handleCommand("DROP DATABASE sessiondb1;", session1);
+        server.handleCommand("DROP DATABASE sessiondb2;", session1);
+        assertEquals("[OK]", server.handleCommand("CREATE DATABASE sessiondb1;", session1));
+        assertEquals("[OK]", server.handleCommand("CREATE DATABASE sessiondb2;", session2));
+        assertEquals("[OK]", server.handleCommand("USE sessiondb1;", session1));
+        assertEquals("[OK]", server.handleCommand("USE sessiondb2;", session2));
+        assertEquals("[OK]", server.handleCommand("CREATE TABLE things (name);", session1));
+        assertEquals("[OK]", server.handleCommand("INSERT INTO things VALUES (kettle);", session1));
+
+        String response = server.handleCommand("SELECT * FROM things;", session2);
+        assertTrue(response.contains("[ERROR]"), "A table created in one session's database was visible from another session's database");
+        response = server.handleCommand("SELECT * FROM things;", session1);
+        assertTrue(response.contains("kettle"), "USE in one session changed the current database of another session");
+
+        // A failed USE leaves the current database unchanged
+        assertTrue(server.handleCommand("USE aNonExistentDatabase;", session1).contains("[ERROR]"));
+        assertTrue(server.handleCommand("SELECT * FROM things;", session1).contains("kettle"));
+        assertEquals("[OK]", server.handleCommand("DROP DATABASE sessiondb1;", session1));
+        assertEquals("[OK]", server.handleCommand("DROP DATABASE sessiondb2;", session2));
+    }
+
+    @Test
+    public void handleSelectColumnOrderTest() {
+        // Selected columns are returned in the order they were asked for, headers and values alike
+        sendCommandToServer("DROP DATABASE orderdb;");
+        sendCommandToServer("CREATE DATABASE orderdb;");
+        sendCommandToServer("USE orderdb;");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55);");
+        String response = sendCommandToServer("SELECT mark, name FROM marks WHERE mark > 60;");
+        assertEquals("[OK]\r\nmark\tname\t\r\n65\tSimon\t\r\n", response);
+        response = sendCommandToServer("SELECT * FROM marks WHERE mark > 70;");
+        assertEquals("[OK]\r\nid\tname\tmark\t\r\n", response, "A SELECT matching no rows did not return just the headers");
+        sendCommandToServer("DROP DATABASE orderdb;");
+    }
+
+    @Test
+    public void handleTableCacheTest() {
+        // Repeated queries on a table are served from the cache, and changes are visible straight away
+        TableCache tableCache = server.getTableCache();
+        sendCommandToServer("DROP DATABASE cachedb;");
+        sendCommandToServer("CREATE DATABASE cachedb;");
+        sendCommandToServer("USE cachedb;");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        long misses = tableCache.getMissCount();
+        long hits = tableCache.getHitCount();
+        sendCommandToServer("SELECT * FROM marks;");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55);");
+        String response = sendCommandToServer("SELECT * FROM marks;");
+        assertTrue(response.contains("Simon") && response.contains("Sion"), "A row inserted into a cached table was not returned by SELECT");
+        assertEquals(misses, tableCache.getMissCount(), "A table was read from disk again although it was cached");
+        assertEquals(hits + 3, tableCache.getHitCount(), "Queries on a cached table were not counted as cache hits");
+
+        // A failed UPDATE must not leave a half-changed table in the cache
+        response = sendCommandToServer("UPDATE marks SET mark = 70, nosuchcolumn = 1 WHERE name == 'Simon';");
+        assertTrue(response.contains("[ERROR]"));
+        response = sendCommandToServer("SELECT * FROM marks WHERE name == 'Simon';");
+        assertTrue(response.contains("65") && !response.contains("70"), "A failed UPDATE changed the cached table");
+
+        // UPDATE and DELETE that match no rows change nothing, so the cached table is kept
+        misses = tableCache.getMissCount();
+        assertTrue(sendCommandToServer("UPDATE marks SET mark = 70 WHERE name == 'Nobody';").contains("No rows"));
+        assertTrue(sendCommandToServer("DELETE FROM marks WHERE name == 'Nobody';").contains("No rows"));
+        sendCommandToServer("SELECT * FROM marks;");
+        assertEquals(misses, tableCache.getMissCount(), "A table was read from disk again after a command that changed nothing");
+
+        // A dropped and recreated table is read from disk again
+        sendCommandToServer("DROP TABLE marks;");
+        sendCommandToServer("CREATE TABLE marks (name, mark, pass);");
+        response = sendCommandToServer("SELECT * FROM marks;");
+        assertEquals("[OK]\r\nid\tname\tmark\tpass\t\r\n", response, "A recreated table was served from the cache");
+        sendCommandToServer("DROP DATABASE cachedb;");
+    }
+
+    @Test
+    public void handleTableCacheEvictionTest() throws DBException {
+        // Least recently used tables are dropped once the cache goes over its memory budget
+        sendCommandToServer("DROP DATABASE evictiondb;");
+        sendCommandToServer("CREATE DATABASE evictiondb;");
+        sendCommandToServer("USE evictiondb;");
+        sendCommandToServer("CREATE TABLE first (name);");
+        sendCommandToServer("CREATE TABLE second (name);");
+        String databasePath = new File("databases" + File.separator + "evictiondb").getAbsolutePath();
+        String firstPath = databasePath + File.separator + "first.tab";
+        String secondPath = databasePath + File.separator + "second.tab";
+        for (int i = 0; i < 20; i++) {
+            sendCommandToServer("INSERT INTO first VALUES ('Student number " + i + "');");
+        }
+        // Room for the first table only - the second table is empty to begin with
+        long budget = server.getTableCache().getTable(firstPath).getEstimatedSize() + 1;
+        TableCache tableCache = new TableCache(budget, server.getLogManager());
+        DBTable firstTable = tableCache.getTable(firstPath);
+        tableCache.getTable(secondPath);
+        assertEquals(2, tableCache.getNumberOfCachedTables());
+        assertTrue(firstTable == tableCache.getTable(firstPath), "A cached table was read from disk again");
+        sendCommandToServer("INSERT INTO second VALUES ('Sion');");
+        tableCache.invalidateTable(secondPath);
+        tableCache.getTable(secondPath);
+        assertEquals(1, tableCache.getEvictionCount(), "The least recently used table was not evicted when the cache went over budget");
+        assertFalse(firstTable == tableCache.getTable(firstPath), "An evicted table was still served from the cache");
+        sendCommandToServer("DROP DATABASE evictiondb;");
+    }
+
+    @Test
+    public void handleInsertAppendTest() throws Exception {
+        // Inserted rows are logged, then appended to the table file at the next checkpoint, and
+        // ids carry on from the right value after the server is restarted
+        sendCommandToServer("DROP DATABASE appenddb;");
+        sendCommandToServer("CREATE DATABASE appenddb;");
+        sendCommandToServer("USE appenddb;");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("CREATE TABLE others (name);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("INSERT INTO others VALUES ('Chris');");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55);");
+        String databasePath = new File("databases" + File.separator + "appenddb").getAbsolutePath();
+        File tableFile = new File(databasePath + File.separator + "marks.tab");
+        assertEquals("id\tname\tmark", new String(Files.readAllBytes(tableFile.toPath())));
+        server.getLogManager().checkpoint(databasePath, server.getTableCache());
+        assertEquals("id\tname\tmark\n1\tSimon\t65\n2\tSion\t55", new String(Files.readAllBytes(tableFile.toPath())));
+
+        // A table file that ends with a newline (e.g. edited by hand) is appended to correctly
+        try (FileWriter writer = new FileWriter(tableFile, true)) {
+            writer.write("\n");
+        }
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35);");
+        sendCommandToServer("INSERT INTO others VALUES ('Neill');");
+        server.getLogManager().checkpoint(databasePath, server.getTableCache());
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE appenddb;");
+        String response = sendCommandToServer("SELECT * FROM marks;");
+        assertEquals("[OK]\r\nid\tname\tmark\t\r\n1\tSimon\t65\t\r\n2\tSion\t55\t\r\n3\tRob\t35\t\r\n", response);
+        sendCommandToServer("INSERT INTO others VALUES ('Steve');");
+        response = sendCommandToServer("SELECT * FROM others;");
+        assertTrue(response.contains("3\tSteve"), "The id counter of a table was lost after another table was inserted into");
+        sendCommandToServer("DROP DATABASE appenddb;");
+    }
+
+    @Test
+    public void handleWriteAheadLogTest() throws Exception {
+        // Changes that were logged but never written to the table files are recovered when the
+        // server starts again, and a partly written record at the end of the log is ignored
+        sendCommandToServer("DROP DATABASE waldb;");
+        sendCommandToServer("CREATE DATABASE waldb;");
+        sendCommandToServer("USE waldb;");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Sion', 55);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35);");
+        sendCommandToServer("UPDATE marks SET mark = 38 WHERE name == 'Rob';");
+        sendCommandToServer("DELETE FROM marks WHERE name == 'Sion';");
+        String expected = "[OK]\r\nid\tname\tmark\t\r\n1\tSimon\t65\t\r\n3\tRob\t38\t\r\n";
+        assertEquals(expected, sendCommandToServer("SELECT * FROM marks;"));
+        File logFile = new File("databases" + File.separator + "waldb" + File.separator + "wal.log");
+        try (FileOutputStream log = new FileOutputStream(logFile, true)) {
+            log.write(new byte[] {0, 0, 0, 40, 1, 2});
+        }
+
+        // Start a new server without checkpointing the old one, as if it had crashed
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE waldb;");
+        assertEquals(expected, sendCommandToServer("SELECT * FROM marks;"), "Logged changes were lost when the server restarted");
+        assertEquals(0, logFile.length(), "The write-ahead log was not emptied after recovery");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20);");
+        assertTrue(sendCommandToServer("SELECT * FROM marks;").contains("4\tChris"), "An id was reused after recovery");
+
+        // Sessions writing at the same time all have their changes saved
+        Thread[] writers = new Thread[4];
+        for (int i = 0; i < writers.length; i++) {
+            int writer = i;
+            writers[i] = new Thread(() -> {
+                Session session = server.createSession();
+                server.handleCommand("USE waldb;", session);
+                for (int row = 0; row < 25; row++) {
+                    server.handleCommand("INSERT INTO marks VALUES ('Writer" + writer + "', " + row + ");", session);
+                }
+            });
+            writers[i].start();
+        }
+        for (Thread writer : writers) writer.join();
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE waldb;");
+        String response = sendCommandToServer("SELECT * FROM marks WHERE id > 103;");
+        assertTrue(response.contains("\r\n104\t") && !response.contains("\r\n105\t"), "Rows written by concurrent sessions were lost");
+        sendCommandToServer("DROP DATABASE waldb;");
+    }
+
+    @Test
+    public void handleTornCheckpointTest() throws Exception {
+        // A crash part way through a checkpoint can leave the last line appended to a table file
+        // or to metadata.tab cut short. The log still holds those changes, so on restart no row
+        // is lost or mixed up with another and no id is reused.
+        sendCommandToServer("DROP DATABASE torndb;");
+        sendCommandToServer("CREATE DATABASE torndb;");
+        sendCommandToServer("USE torndb;");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        for (int i = 1; i <= 10; i++) {
+            sendCommandToServer("INSERT INTO marks VALUES ('Student" + i + "', " + i + ");");
+        }
+        String databasePath = new File("databases" + File.separator + "torndb").getAbsolutePath();
+        server.getLogManager().checkpoint(databasePath, server.getTableCache());
+        sendCommandToServer("INSERT INTO marks VALUES ('Rob', 35);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Chris', 20);");
+        // Rows 11 and 12 were being appended when the server stopped, part way through the id of 12
+        File tableFile = new File(databasePath + File.separator + "marks.tab");
+        try (FileWriter writer = new FileWriter(tableFile, true)) {
+            writer.write("\n11\tRob\t35\n1");
+        }
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE torndb;");
+        String expected = "[OK]\r\nid\tname\tmark\t\r\n10\tStudent10\t10\t\r\n11\tRob\t35\t\r\n12\tChris\t20\t\r\n";
+        assertEquals(expected, sendCommandToServer("SELECT * FROM marks WHERE id > 9;"));
+        assertEquals("[OK]\r\nid\tname\tmark\t\r\n1\tStudent1\t1\t\r\n", sendCommandToServer("SELECT * FROM marks WHERE id == 1;"));
+
+        // Row 13 was appended, but its id counter was only partly added to metadata.tab
+        sendCommandToServer("INSERT INTO marks VALUES ('Neill', 50);");
+        try (FileWriter writer = new FileWriter(tableFile, true)) {
+            writer.write("\n13\tNeill\t50");
+        }
+        try (FileWriter writer = new FileWriter(new File(databasePath + File.separator + "metadata.tab"), true)) {
+            writer.write("\nmar");
+        }
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE torndb;");
+        sendCommandToServer("INSERT INTO marks VALUES ('Steve', 40);");
+        expected = "[OK]\r\nid\tname\tmark\t\r\n13\tNeill\t50\t\r\n14\tSteve\t40\t\r\n";
+        assertEquals(expected, sendCommandToServer("SELECT * FROM marks WHERE id > 12;"));
+        // Files are rewritten under a temporary name, which is never left behind
+        for (String fileName : new File(databasePath).list()) {
+            assertFalse(fileName.endsWith(".tmp"), "A temporary file was left behind: " + fileName);
+        }
+        sendCommandToServer("DROP DATABASE torndb;");
+    }
+
+    @Test
+    public void handleFailedRecoveryTest() throws Exception {
+        // A database whose log cannot be applied at startup is left alone and cannot be used,
+        // while the other databases are still recovered
+        for (String databaseName : new String[] {"brokendb", "workingdb"}) {
+            sendCommandToServer("DROP DATABASE " + databaseName + ";");
+            sendCommandToServer("CREATE DATABASE " + databaseName + ";");
+            sendCommandToServer("USE " + databaseName + ";");
+            sendCommandToServer("CREATE TABLE marks (name, mark);");
+            sendCommandToServer("INSERT INTO marks VALUES ('Simon', 65);");
+        }
+        // The logged row no longer fits the table file
+        File tableFile = new File("databases" + File.separator + "brokendb" + File.separator + "marks.tab");
+        Files.write(tableFile.toPath(), "id\tname\tmark\tpass".getBytes());
+        File logFile = new File("databases" + File.separator + "brokendb" + File.separator + "wal.log");
+        long logLength = logFile.length();
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE workingdb;");
+        assertTrue(sendCommandToServer("SELECT * FROM marks;").contains("1\tSimon\t65"), "A database was not recovered after another one failed");
+        assertTrue(sendCommandToServer("USE brokendb;").contains("[ERROR]"), "A database that failed to recover could be used");
+        assertTrue(sendCommandToServer("DROP DATABASE brokendb;").contains("[ERROR]"), "A database that failed to recover could be dropped");
+        assertEquals(logLength, logFile.length(), "The log of a database that failed to recover was changed");
+
+        // Once the table file is put right, the logged row is recovered
+        Files.write(tableFile.toPath(), "id\tname\tmark".getBytes());
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE brokendb;");
+        assertTrue(sendCommandToServer("SELECT * FROM marks;").contains("1\tSimon\t65"), "The log of a database that failed to recover was lost");
+        sendCommandToServer("DROP DATABASE brokendb;");
+        sendCommandToServer("DROP DATABASE workingdb;");
+    }
+
+    @Test
+    public void handleServerCloseTest() {
+        // Closing a server stops its checkpoint thread, so replaced servers do not pile up
+        int checkpointThreads = countCheckpointThreads();
+        server.close();
+        assertEquals(checkpointThreads - 1, countCheckpointThreads(), "Closing a server did not stop its checkpoint thread");
+        server = new DBServer();
+        assertEquals(checkpointThreads, countCheckpointThreads());
+    }
+
+    private int countCheckpointThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("db-checkpoint") && thread.isAlive()) count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void handleTypedColumnsTest() throws Exception {
+        // Values are stored in typed columns, but always come back exactly as they were written,
+        // and a column holding a mix of types still compares as before
+        sendCommandToServer("DROP DATABASE typesdb;");
+        sendCommandToServer("CREATE DATABASE typesdb;");
+        sendCommandToServer("USE typesdb;");
+        sendCommandToServer("CREATE TABLE items (name, amount, price, instock);");
+        sendCommandToServer("INSERT INTO items VALUES ('Apple', 10, 0.5, TRUE);");
+        sendCommandToServer("INSERT INTO items VALUES ('Pear', 007, 1.50, FALSE);");
+        sendCommandToServer("INSERT INTO items VALUES ('apple', -3, 2.5, maybe);");
+        String expected = "[OK]\r\nid\tname\tamount\tprice\tinstock\t\r\n" +
+                "1\tApple\t10\t0.5\tTRUE\t\r\n2\tPear\t007\t1.50\tFALSE\t\r\n3\tapple\t-3\t2.5\tmaybe\t\r\n";
+        assertEquals(expected, sendCommandToServer("SELECT * FROM items;"));
+
+        String response = sendCommandToServer("SELECT name FROM items WHERE amount > 5;");
+        assertTrue(response.contains("Apple") && response.contains("Pear") && !response.contains("apple"),
+                "Integers written in different ways were not compared as numbers");
+        response = sendCommandToServer("SELECT id FROM items WHERE name == 'apple';");
+        assertTrue(response.contains("\r\n1\t") && response.contains("\r\n3\t"), "String comparison is no longer case-insensitive");
+        response = sendCommandToServer("SELECT id FROM items WHERE price == 2.5;");
+        assertTrue(response.contains("\r\n3\t") && !response.contains("\r\n1\t"), "A decimal value was not found");
+        response = sendCommandToServer("SELECT id FROM items WHERE price > 1;");
+        assertFalse(response.contains("\r\n1\t"), "A decimal value was compared to an integer");
+        response = sendCommandToServer("SELECT id FROM items WHERE instock == true;");
+        assertTrue(response.contains("\r\n1\t") && !response.contains("\r\n2\t"), "A boolean value was not found");
+
+        // Updates and a restart keep the values' text
+        sendCommandToServer("UPDATE items SET amount = lots WHERE name == pear;");
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE typesdb;");
+        response = sendCommandToServer("SELECT name FROM items WHERE amount == lots;");
+        assertTrue(response.contains("Pear"), "An updated value was lost");
+        response = sendCommandToServer("SELECT * FROM items WHERE amount < 20;");
+        assertTrue(response.contains("1\tApple\t10\t0.5\tTRUE") && response.contains("3\tapple\t-3\t2.5\tmaybe"),
+                "Values changed when the table was written to disk and read back");
+        sendCommandToServer("DROP DATABASE typesdb;");
+    }
+
+    @Test
+    public void handleIdIndexTest() {
+        // Conditions on a single id are looked up rather than scanned, and give the same rows
+        // as before after rows have been deleted and updated
+        sendCommandToServer("DROP DATABASE indexdb;");
+        sendCommandToServer("CREATE DATABASE indexdb;");
+        sendCommandToServer("USE indexdb;");
+        sendCommandToServer("CREATE TABLE numbers (value, parity);");
+        for (int i = 1; i <= 200; i++) {
+            sendCommandToServer("INSERT INTO numbers VALUES (" + (i * 10) + ", " + (i % 2 == 0 ? "even" : "odd") + ");");
+        }
+        assertEquals("[OK]\r\nid\tvalue\tparity\t\r\n42\t420\teven\t\r\n", sendCommandToServer("SELECT * FROM numbers WHERE id == 42;"));
+        assertTrue(sendCommandToServer("SELECT * FROM numbers WHERE id == 007;").contains("7\t70\todd"));
+        assertEquals("[OK]\r\nid\tvalue\tparity\t\r\n", sendCommandToServer("SELECT * FROM numbers WHERE id == 500;"));
+        assertEquals("[OK]\r\nid\tvalue\tparity\t\r\n", sendCommandToServer("SELECT * FROM numbers WHERE id == seven;"));
+        assertTrue(sendCommandToServer("SELECT * FROM numbers WHERE (parity == odd) AND (id == 43);").contains("43\t430"));
+        assertFalse(sendCommandToServer("SELECT * FROM numbers WHERE (parity == even) AND (id == 43);").contains("43\t430"));
+        assertTrue(sendCommandToServer("SELECT * FROM numbers WHERE (id == 43) AND (colour == red);").contains("[ERROR]"),
+                "A condition on a column that does not exist was not reported");
+
+        assertEquals("[OK]", sendCommandToServer("DELETE FROM numbers WHERE id == 50;"));
+        assertEquals("[OK]", sendCommandToServer("DELETE FROM numbers WHERE value > 1500;"));
+        assertTrue(sendCommandToServer("DELETE FROM numbers WHERE id == 50;").contains("[ERROR]"), "A deleted id was found again");
+        assertTrue(sendCommandToServer("SELECT * FROM numbers WHERE id == 51;").contains("51\t510\todd"));
+        assertTrue(sendCommandToServer("SELECT * FROM numbers WHERE id == 150;").contains("150\t1500\teven"));
+        assertFalse(sendCommandToServer("SELECT * FROM numbers WHERE id == 151;").contains("151\t"));
+        assertEquals("[OK]", sendCommandToServer("UPDATE numbers SET parity = updated WHERE id == 99;"));
+        assertTrue(sendCommandToServer("SELECT * FROM numbers WHERE parity == updated;").contains("99\t990\tupdated"));
+        sendCommandToServer("INSERT INTO numbers VALUES (2010, odd);");
+        assertTrue(sendCommandToServer("SELECT * FROM numbers WHERE id == 201;").contains("201\t2010\todd"));
+        sendCommandToServer("DROP DATABASE indexdb;");
+    }
+
+    @Test
+    public void handleCreateIndexTest() {
+        // Conditions on a column with an index give the same rows as without one, while rows
+        // are inserted, updated and deleted and after the server restarts
+        sendCommandToServer("DROP DATABASE btreedb;");
+        sendCommandToServer("CREATE DATABASE btreedb;");
+        sendCommandToServer("USE btreedb;");
+        sendCommandToServer("CREATE TABLE stock (item, Quantity);");
+        for (int i = 1; i <= 300; i++) {
+            sendCommandToServer("INSERT INTO stock VALUES (item" + (i % 7) + ", " + ((i * 37) % 101) + ");");
+        }
+        String[] queries = {"SELECT id FROM stock WHERE quantity == 50;", "SELECT id FROM stock WHERE quantity > 90;",
+                "SELECT id FROM stock WHERE quantity < 5;", "SELECT id FROM stock WHERE item == item3;",
+                "SELECT id FROM stock WHERE item > item5;", "SELECT id FROM stock WHERE (quantity > 95) OR (item < item1);",
+                "SELECT id FROM stock WHERE (quantity > 50) AND (item == item2);"};
+        String[] unindexed = new String[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            unindexed[i] = sendCommandToServer(queries[i]);
+        }
+        String databasePath = new File("databases" + File.separator + "btreedb").getAbsolutePath();
+        File indexFile = new File(databasePath + File.separator + "stock.quantity.idx");
+        assertEquals("[OK]", sendCommandToServer("CREATE INDEX ON stock (Quantity);"));
+        assertEquals("[OK]", sendCommandToServer("CREATE INDEX ON stock (item);"));
+        assertTrue(indexFile.exists(), "CREATE INDEX did not write an index file");
+        assertTrue(sendCommandToServer("CREATE INDEX ON stock (quantity);").contains("[ERROR]"),
+                "An index was created twice");
+        assertTrue(sendCommandToServer("CREATE INDEX ON stock (colour);").contains("[ERROR]"),
+                "An index was created on a column that does not exist");
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(unindexed[i], sendCommandToServer(queries[i]), queries[i]);
+        }
+
+        sendCommandToServer("INSERT INTO stock VALUES (item9, 500);");
+        sendCommandToServer("UPDATE stock SET quantity = 501 WHERE id == 10;");
+        sendCommandToServer("DELETE FROM stock WHERE quantity < 3;");
+        assertEquals("[OK]\r\nid\t\r\n10\t\r\n301\t\r\n", sendCommandToServer("SELECT id FROM stock WHERE quantity > 499;"));
+        assertEquals("[OK]\r\nid\t\r\n", sendCommandToServer("SELECT id FROM stock WHERE quantity < 3;"));
+        // An UPDATE of many rows moves each of them in the index
+        sendCommandToServer("UPDATE stock SET quantity = 700 WHERE item == item3;");
+        assertEquals(sendCommandToServer("SELECT id FROM stock WHERE item == item3;"),
+                sendCommandToServer("SELECT id FROM stock WHERE quantity == 700;"));
+        for (int i = 0; i < queries.length; i++) {
+            unindexed[i] = sendCommandToServer(queries[i]);
+        }
+        // Changes still in the log are applied to the indexes when the server starts again
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE btreedb;");
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(unindexed[i], sendCommandToServer(queries[i]), queries[i]);
+        }
+
+        assertEquals("[OK]", sendCommandToServer("DROP INDEX ON stock (quantity);"));
+        assertFalse(indexFile.exists(), "DROP INDEX did not delete the index file");
+        assertTrue(sendCommandToServer("DROP INDEX ON stock (quantity);").contains("[ERROR]"),
+                "An index that does not exist was dropped");
+        assertEquals(unindexed[1], sendCommandToServer(queries[1]));
+        assertEquals("[OK]", sendCommandToServer("ALTER TABLE stock DROP item;"));
+        assertFalse(new File(databasePath + File.separator + "stock.item.idx").exists(),
+                "Dropping a column did not delete its index");
+        assertEquals("[OK]", sendCommandToServer("CREATE INDEX ON stock (quantity);"));
+        assertEquals("[OK]", sendCommandToServer("DROP TABLE stock;"));
+        assertFalse(indexFile.exists(), "Dropping a table did not delete its indexes");
+        sendCommandToServer("DROP DATABASE btreedb;");
+    }
+
+    @Test
+    public void handleHashJoinTest() {
+        // Joined rows come out in the order of the first table, then of the second, whichever
+        // table is the smaller one, and repeated join values on both sides all pair up
+        sendCommandToServer("DROP DATABASE joindb;");
+        sendCommandToServer("CREATE DATABASE joindb;");
+        sendCommandToServer("USE joindb;");
+        sendCommandToServer("CREATE TABLE colours (colour, shade);");
+        sendCommandToServer("CREATE TABLE fruit (name, colour);");
+        String[] colours = {"red", "GREEN", "yellow", "red", "blue"};
+        String[] fruit = {"apple red", "lime green", "cherry Red", "banana yellow", "kiwi green", "plum purple", "lemon yellow"};
+        for (int i = 0; i < colours.length; i++) {
+            sendCommandToServer("INSERT INTO colours VALUES (" + colours[i] + ", shade" + i + ");");
+        }
+        for (String f : fruit) {
+            sendCommandToServer("INSERT INTO fruit VALUES (" + f.split(" ")[0] + ", " + f.split(" ")[1] + ");");
+        }
+        StringBuilder expected = new StringBuilder("[OK]\r\nid\tcolours.shade\tfruit.name\t\r\n");
+        int joinedId = 1;
+        for (int i = 0; i < colours.length; i++) {
+            for (String f : fruit) {
+                if (colours[i].equalsIgnoreCase(f.split(" ")[1])) {
+                    expected.append(joinedId++).append("\tshade").append(i).append("\t").append(f.split(" ")[0]).append("\t\r\n");
+                }
+            }
+        }
+        assertEquals(expected.toString(), sendCommandToServer("JOIN colours AND fruit ON colour AND colour;"));
+
+        expected = new StringBuilder("[OK]\r\nid\tfruit.name\tcolours.shade\t\r\n");
+        joinedId = 1;
+        for (String f : fruit) {
+            for (int i = 0; i < colours.length; i++) {
+                if (colours[i].equalsIgnoreCase(f.split(" ")[1])) {
+                    expected.append(joinedId++).append("\t").append(f.split(" ")[0]).append("\tshade").append(i).append("\t\r\n");
+                }
+            }
+        }
+        assertEquals(expected.toString(), sendCommandToServer("JOIN fruit AND colours ON colour AND colour;"));
+
+        // Empty cells do not match each other
+        sendCommandToServer("ALTER TABLE colours ADD note;");
+        sendCommandToServer("ALTER TABLE fruit ADD note;");
+        assertEquals("[OK]\r\nid\tcolours.colour\tcolours.shade\tfruit.name\tfruit.colour\t\r\n",
+                sendCommandToServer("JOIN colours AND fruit ON note AND note;"));
+        sendCommandToServer("DROP DATABASE joindb;");
+    }
+
+    @Test
+    public void handleParallelJoinTest() throws DBException {
+        // Splitting a join into partitions finds the same pairs, in the same order, as a
+        // single-threaded join
+        Random random = new Random(42);
+        String[] joinValues1 = new String[5000];
+        String[] joinValues2 = new String[3000];
+        for (int row = 0; row < joinValues1.length; row++) {
+            joinValues1[row] = random.nextInt(20) == 0 ? null : "value" + random.nextInt(2000);
+        }
+        for (int row = 0; row < joinValues2.length; row++) {
+            joinValues2[row] = random.nextInt(20) == 0 ? null : "value" + random.nextInt(2000);
+        }
+        JoinMatches serialMatches = JoinMatches.hashJoin(joinValues1, joinValues2, 1);
+        for (int numberOfPartitions : new int[] {2, 16, 128}) {
+            JoinMatches partitionedMatches = JoinMatches.hashJoin(joinValues1, joinValues2, numberOfPartitions);
+            JoinMatches swappedMatches = JoinMatches.hashJoin(joinValues2, joinValues1, numberOfPartitions);
+            assertEquals(serialMatches.getTotalMatches(), partitionedMatches.getTotalMatches());
+            assertEquals(serialMatches.getTotalMatches(), swappedMatches.getTotalMatches());
+            for (int row = 0; row < joinValues1.length; row++) {
+                assertEquals(serialMatches.getNumberOfMatches(row), partitionedMatches.getNumberOfMatches(row));
+                for (int match = 0; match < serialMatches.getNumberOfMatches(row); match++) {
+                    assertEquals(serialMatches.getMatch(row, match), partitionedMatches.getMatch(row, match));
+                }
+            }
+        }
+        // ...and the pairs are the ones a nested loop finds
+        int match = 0;
+        for (int row1 = 0; row1 < joinValues1.length; row1++) {
+            for (int row2 = 0; row2 < joinValues2.length; row2++) {
+                if (joinValues1[row1] != null && joinValues1[row1].equals(joinValues2[row2])) {
+                    assertTrue(match < serialMatches.getNumberOfMatches(row1));
+                    assertEquals(row2, serialMatches.getMatch(row1, match++));
+                }
+            }
+            assertEquals(match, serialMatches.getNumberOfMatches(row1));
+            match = 0;
+        }
+    }
+
+    @Test
+    public void handleMergeJoinTest() throws DBException {
+        // Merging rows given in join value order (as an index gives them) finds the same pairs
+        // as a hash join
+        Random random = new Random(7);
+        String[] joinValues1 = new String[4000];
+        String[] joinValues2 = new String[2500];
+        for (int row = 0; row < joinValues1.length; row++) {
+            joinValues1[row] = random.nextInt(20) == 0 ? null : randomJoinValue(random);
+        }
+        for (int row = 0; row < joinValues2.length; row++) {
+            joinValues2[row] = random.nextInt(20) == 0 ? null : randomJoinValue(random);
+        }
+        JoinMatches hashMatches = JoinMatches.hashJoin(joinValues1, joinValues2, 1);
+        SortedRows sortedRows1 = SortedRows.inIndexOrder(joinValues1, rowsInJoinOrder(joinValues1));
+        SortedRows sortedRows2 = SortedRows.inIndexOrder(joinValues2, rowsInJoinOrder(joinValues2));
+        assertTrue(sortedRows1 != null && sortedRows2 != null, "Rows in join value order were not recognised");
+        JoinMatches mergeMatches = JoinMatches.mergeJoin(joinValues1, sortedRows1, joinValues2, sortedRows2);
+        assertEquals(hashMatches.getTotalMatches(), mergeMatches.getTotalMatches());
+        for (int row = 0; row < joinValues1.length; row++) {
+            assertEquals(hashMatches.getNumberOfMatches(row), mergeMatches.getNumberOfMatches(row));
+            for (int match = 0; match < hashMatches.getNumberOfMatches(row); match++) {
+                assertEquals(hashMatches.getMatch(row, match), mergeMatches.getMatch(row, match));
+            }
+        }
+        assertTrue(SortedRows.inIndexOrder(new String[] {"1", "2", "10"}, new int[] {0, 2, 1}) == null,
+                "Rows out of join value order were taken as sorted");
+        String[] sortedValues = {"-3", "01", "1", "2", null, "10", "apple", "apple", "banana"};
+        assertTrue(SortedRows.inTableOrder(sortedValues) != null, "Sorted values were not recognised");
+        assertFalse(SortedRows.inTableOrder(new String[] {"2", "10", "1"}) != null, "Unsorted values were taken as sorted");
+
+        // JOINs are merged once both join columns are in order (id, and a column with an index),
+        // and give the same result as the hash join
+        sendCommandToServer("DROP DATABASE mergedb;");
+        sendCommandToServer("CREATE DATABASE mergedb;");
+        sendCommandToServer("USE mergedb;");
+        sendCommandToServer("CREATE TABLE teams (name);");
+        sendCommandToServer("CREATE TABLE players (name, team);");
+        for (int team = 1; team <= 12; team++) {
+            sendCommandToServer("INSERT INTO teams VALUES (team" + team + ");");
+        }
+        for (int player = 1; player <= 40; player++) {
+            sendCommandToServer("INSERT INTO players VALUES (player" + player + ", " + ((player * 5) % 13) + ");");
+        }
+        StringBuilder expected = new StringBuilder("[OK]\r\nid\tteams.name\tplayers.name\t\r\n");
+        int joinedId = 1;
+        for (int team = 1; team <= 12; team++) {
+            for (int player = 1; player <= 40; player++) {
+                if ((player * 5) % 13 == team) {
+                    expected.append(joinedId++).append("\tteam").append(team).append("\tplayer").append(player).append("\t\r\n");
+                }
+            }
+        }
+        assertEquals(expected.toString(), sendCommandToServer("JOIN teams AND players ON id AND team;"));
+        assertEquals("[OK]", sendCommandToServer("CREATE INDEX ON players (team);"));
+        assertEquals(expected.toString(), sendCommandToServer("JOIN teams AND players ON id AND team;"));
+        sendCommandToServer("DROP DATABASE mergedb;");
+    }
+
+    // The rows holding a value, in join value order and then by row
+    private static int[] rowsInJoinOrder(String[] joinValues) {
+        return IntStream.range(0, joinValues.length).filter(row -> joinValues[row] != null).boxed()
+                .sorted((row1, row2) -> SortedRows.JOIN_VALUE_ORDER.compare(joinValues[row1], joinValues[row2]))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    private static String randomJoinValue(Random random) {
+        return switch (random.nextInt(4)) {
+            case 0 -> Integer.toString(random.nextInt(500) - 100);
+            case 1 -> "00" + random.nextInt(50);
+            default -> "value" + random.nextInt(800);
+        };
+    }
+
+    @Test
+    public void handleCompiledConditionTest() {
+        // Conditions compiled for each type of column select the same rows as comparing the text
+        // of every cell, with Integer.parseInt() deciding what is a number
+        sendCommandToServer("DROP DATABASE conditiondb;");
+        sendCommandToServer("CREATE DATABASE conditiondb;");
+        sendCommandToServer("USE conditiondb;");
+        sendCommandToServer("CREATE TABLE cells (text, amount, price, instock);");
+        String[][] rows = {{"Apple", "10", "0.5", "TRUE"}, {"10", "7", "1.5", "FALSE"}, {"pear", "-3", "2.5", "TRUE"},
+                {"007", "0", "10.0", "FALSE"}, {"TRUE", "42", "0.5", "TRUE"}, {"0.5", "7", "3.25", "FALSE"},
+                {"-3", "10", "1.5", "TRUE"}, {"banana", "5", "2.5", "FALSE"}, {"apple", "-3", "0.5", "TRUE"}};
+        for (String[] row : rows) {
+            sendCommandToServer("INSERT INTO cells VALUES (" + String.join(", ", row) + ");");
+        }
+        sendCommandToServer("ALTER TABLE cells ADD note;");
+        String[] columns = {"text", "amount", "price", "instock", "note"};
+        String[] comparators = {"==", "!=", ">", "<", "like"};
+        String[] values = {"7", "-3", "007", "apple", "0.5", "true", "b", "pp", "10"};
+        for (int column = 0; column < columns.length; column++) {
+            for (String comparator : comparators) {
+                for (String value : values) {
+                    StringBuilder expected = new StringBuilder("[OK]\r\nid\t\r\n");
+                    for (int row = 0; row < rows.length; row++) {
+                        String cell = column < rows[row].length ? rows[row][column] : null;
+                        if (cell != null && referenceMatches(cell.toLowerCase(), comparator, value)) {
+                            expected.append(row + 1).append("\t\r\n");
+                        }
+                    }
+                    String query = "SELECT id FROM cells WHERE " + columns[column] + " " + comparator + " " + value + ";";
+                    assertEquals(expected.toString(), sendCommandToServer(query), query);
+                }
+            }
+        }
+        sendCommandToServer("DROP DATABASE conditiondb;");
+    }
+
+    @Test
+    public void handleGeneratedPredicateTest() {
+        // A condition run often enough is replaced by a generated class, which must select the
+        // same rows as the interpreted condition did, including for new values of the same shape
+        sendCommandToServer("DROP DATABASE generateddb;");
+        sendCommandToServer("CREATE DATABASE generateddb;");
+        sendCommandToServer("USE generateddb;");
+        sendCommandToServer("CREATE TABLE orders (amount, name, quantity);");
+        String[][] rows = {{"3", "x", "1"}, {"8", "y", "2"}, {"12", "x", "0"}, {"6", "x", "5"},
+                {"abc", "x", "4"}, {"9", "z", "-1"}, {"20", "y", "7"}};
+        for (String[] row : rows) {
+            sendCommandToServer("INSERT INTO orders VALUES (" + String.join(", ", row) + ");");
+        }
+        int generatedBefore = PredicateCompiler.getGeneratedClassCount();
+        String[] queries = {
+                "SELECT id FROM orders WHERE (amount > 5) AND (name == x);",
+                "SELECT id FROM orders WHERE ((amount < 4) OR (quantity > 4)) AND (name != z);",
+                "SELECT id FROM orders WHERE (name == y) OR ((amount > 8) AND (quantity < 1));"};
+        String[] expected = {"[OK]\r\nid\t\r\n3\t\r\n4\t\r\n", "[OK]\r\nid\t\r\n1\t\r\n4\t\r\n7\t\r\n",
+                "[OK]\r\nid\t\r\n2\t\r\n3\t\r\n6\t\r\n7\t\r\n"};
+        for (int query = 0; query < queries.length; query++) {
+            for (int run = 0; run < 12; run++) {
+                assertEquals(expected[query], sendCommandToServer(queries[query]), queries[query]);
+            }
+        }
+        assertTrue(PredicateCompiler.getGeneratedClassCount() > generatedBefore);
+        // Same shape as the first query, different constants
+        assertEquals("[OK]\r\nid\t\r\n2\t\r\n7\t\r\n",
+                sendCommandToServer("SELECT id FROM orders WHERE (amount > 7) AND (name == y);"));
+        sendCommandToServer("DROP DATABASE generateddb;");
+    }
+
+    @Test
+    public void handleLikeMatcherTest() {
+        // Plain text patterns are matched without regular expressions, and must select the same
+        // rows as the regular expression would
+        sendCommandToServer("DROP DATABASE likedb;");
+        sendCommandToServer("CREATE DATABASE likedb;");
+        sendCommandToServer("USE likedb;");
+        sendCommandToServer("CREATE TABLE words (word);");
+        String[] words = {"banana", "Bandana", "apple", "a.5", "pineapple", "nab", "x+y"};
+        for (String word : words) {
+            sendCommandToServer("INSERT INTO words VALUES (" + word + ");");
+        }
+        String[] patterns = {"an", "^ba", "na$", "^banana$", "^a\\.", "\\.5$", "^x\\+", "a.a", "an|pp", "[b-c]a", "ap*l"};
+        for (String pattern : patterns) {
+            StringBuilder expected = new StringBuilder("[OK]\r\nid\t\r\n");
+            for (int row = 0; row < words.length; row++) {
+                if (referenceMatches(words[row].toLowerCase(), "like", pattern)) {
+                    expected.append(row + 1).append("\t\r\n");
+                }
+            }
+            String query = "SELECT id FROM words WHERE word LIKE " + pattern + ";";
+            assertEquals(expected.toString(), sendCommandToServer(query), query);
+        }
+        assertTrue(LikeMatcher.forPattern("^a\\.").isPlainText());
+        assertFalse(LikeMatcher.forPattern("an|pp").isPlainText());
+        // A pattern that is not a valid regular expression is an error, not an exception
+        assertTrue(sendCommandToServer("SELECT id FROM words WHERE word LIKE [;").startsWith("[ERROR]"));
+        assertTrue(sendCommandToServer("DELETE FROM words WHERE word LIKE 'a(';").startsWith("[ERROR]"));
+        sendCommandToServer("DROP DATABASE likedb;");
+    }
+
+    @Test
+    public void handleNgramIndexTest() {
+        // LIKE conditions on a column with an NGRAM index give the same rows as without one,
+        // while rows are inserted, updated and deleted and after the server restarts
+        sendCommandToServer("DROP DATABASE ngramdb;");
+        sendCommandToServer("CREATE DATABASE ngramdb;");
+        sendCommandToServer("USE ngramdb;");
+        sendCommandToServer("CREATE TABLE fruit (name, amount);");
+        String[] names = {"banana", "Bandana", "apple", "pineapple", "grape", "grapefruit", "ban", "nab"};
+        for (int i = 0; i < 200; i++) {
+            sendCommandToServer("INSERT INTO fruit VALUES (" + names[i % names.length] + i + ", " + i + ");");
+        }
+        String[] queries = {"SELECT id FROM fruit WHERE name LIKE ana;", "SELECT id FROM fruit WHERE name LIKE ^grape;",
+                "SELECT id FROM fruit WHERE name LIKE le1$;", "SELECT id FROM fruit WHERE name LIKE apple1[0-4];",
+                "SELECT id FROM fruit WHERE name LIKE ^b.n\\d;", "SELECT id FROM fruit WHERE name LIKE ban|nab;",
+                "SELECT id FROM fruit WHERE (name LIKE ple) AND (amount > 100);"};
+        String[] unindexed = new String[queries.length];
+        for (int i = 0; i < queries.length; i++) {
+            unindexed[i] = sendCommandToServer(queries[i]);
+        }
+        String databasePath = new File("databases" + File.separator + "ngramdb").getAbsolutePath();
+        File indexFile = new File(databasePath + File.separator + "fruit.name.ngram");
+        assertEquals("[OK]", sendCommandToServer("CREATE INDEX ON fruit (name) USING NGRAM;"));
+        assertTrue(indexFile.exists(), "CREATE INDEX did not write an n-gram index file");
+        assertTrue(sendCommandToServer("CREATE INDEX ON fruit (amount) USING HASH;").contains("[ERROR]"),
+                "An index of an unknown type was created");
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(unindexed[i], sendCommandToServer(queries[i]), queries[i]);
+        }
+
+        sendCommandToServer("INSERT INTO fruit VALUES (watermelon, 500);");
+        sendCommandToServer("UPDATE fruit SET name = melonade WHERE id == 10;");
+        sendCommandToServer("DELETE FROM fruit WHERE amount < 20;");
+        assertEquals("[OK]\r\nid\t\r\n201\t\r\n", sendCommandToServer("SELECT id FROM fruit WHERE name LIKE melon;"));
+        for (int i = 0; i < queries.length; i++) {
+            unindexed[i] = sendCommandToServer(queries[i]);
+        }
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE ngramdb;");
+        for (int i = 0; i < queries.length; i++) {
+            assertEquals(unindexed[i], sendCommandToServer(queries[i]), queries[i]);
+        }
+        assertEquals("[OK]", sendCommandToServer("DROP INDEX ON fruit (name);"));
+        assertFalse(indexFile.exists(), "DROP INDEX did not delete the n-gram index file");
+        sendCommandToServer("DROP DATABASE ngramdb;");
+    }
+
+    @Test
+    public void handleStatementCacheTest() {
+        // Statements that differ only in their literals share a template, and give the same
+        // responses as statements parsed from scratch
+        sendCommandToServer("DROP DATABASE statementdb;");
+        sendCommandToServer("CREATE DATABASE statementdb;");
+        sendCommandToServer("USE statementdb;");
+        sendCommandToServer("CREATE TABLE people (Name, age);");
+        StatementCache statementCache = server.getStatementCache();
+        long hits = statementCache.getHitCount();
+        assertEquals("[OK]", sendCommandToServer("INSERT INTO people VALUES ('Alice', 31);"));
+        assertEquals("[OK]", sendCommandToServer("INSERT INTO people VALUES ('BOB', 47);"));
+        assertEquals("[OK]", sendCommandToServer("INSERT  INTO people\tVALUES('carol',25) ;"));
+        assertEquals(hits + 2, statementCache.getHitCount(), "Statements of the same shape did not share a template");
+        // Inserted values keep their case, while values in conditions are compared in lower case
+        assertEquals("[OK]\r\nid\tName\tage\t\r\n2\tBOB\t47\t\r\n",
+                sendCommandToServer("SELECT * FROM people WHERE name == 'Bob';"));
+        assertEquals("[OK]\r\nName\t\r\nAlice\t\r\n",
+                sendCommandToServer("SELECT Name FROM people WHERE name == 'ALICE';"));
+        assertEquals("[OK]\r\nName\t\r\nAlice\t\r\nBOB\t\r\n", sendCommandToServer("SELECT Name FROM people WHERE age > 30;"));
+        assertEquals("[OK]\r\nName\t\r\nBOB\t\r\n", sendCommandToServer("SELECT Name FROM people WHERE age > 40;"));
+        // Words that are converted to lower case anyway may be written in any case
+        hits = statementCache.getHitCount();
+        assertEquals("[OK]\r\nName\t\r\nBOB\t\r\n", sendCommandToServer("select name from People where AGE >  41 ;"));
+        assertEquals(hits + 1, statementCache.getHitCount(), "Statements differing only in the case of their words did not share a template");
+        assertEquals("[OK]", sendCommandToServer("UPDATE people SET age = 48 WHERE id == 2;"));
+        assertEquals("[OK]", sendCommandToServer("UPDATE people SET age = 26 WHERE id == 3;"));
+        assertEquals("[OK]\r\nage\t\r\n31\t\r\n48\t\r\n26\t\r\n", sendCommandToServer("SELECT age FROM people;"));
+        // Errors are the same as without the cache
+        String error = sendCommandToServer("SELECT * FROM people WHERE age > 30");
+        assertEquals(error, sendCommandToServer("SELECT * FROM people WHERE age > 40"));
+        assertTrue(error.contains("[ERROR]"));
+        assertTrue(sendCommandToServer("SELECT * FROM people WHERE name == 'unclosed;").contains("[ERROR]"));
+        assertTrue(statementCache.getNumberOfTemplates() > 0);
+        sendCommandToServer("DROP DATABASE statementdb;");
+    }
+
+    @Test
+    public void handleGluedComparatorTest() {
+        // Comparators and the = of SET are tokens of their own, with or without spaces around them
+        sendCommandToServer("DROP DATABASE lexerdb;");
+        sendCommandToServer("CREATE DATABASE lexerdb;");
+        sendCommandToServer("USE lexerdb;");
+        sendCommandToServer("CREATE TABLE marks (name, mark);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Steve', 65);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Dave', 55);");
+        sendCommandToServer("INSERT INTO marks VALUES ('Bob', 35);");
+        assertEquals("[OK]\r\nname\t\r\nSteve\t\r\n", sendCommandToServer("SELECT name FROM marks WHERE mark>60;"));
+        assertEquals("[OK]\r\nname\t\r\nSteve\t\r\nDave\t\r\n", sendCommandToServer("SELECT name FROM marks WHERE mark >= 55;"));
+        assertEquals("[OK]\r\nname\t\r\nDave\t\r\nBob\t\r\n", sendCommandToServer("SELECT name FROM marks WHERE mark<=55;"));
+        assertEquals("[OK]\r\nname\t\r\nSteve\t\r\nBob\t\r\n",
+                sendCommandToServer("SELECT name FROM marks WHERE (mark!=55)AND(name!='x');"));
+        assertEquals("[OK]", sendCommandToServer("UPDATE marks SET mark=40 WHERE name=='Bob';"));
+        assertEquals("[OK]\r\nmark\t\r\n40\t\r\n", sendCommandToServer("SELECT mark FROM marks WHERE id==3;"));
+        // A quote that is never closed still leaves the query without its semicolon
+        assertTrue(sendCommandToServer("SELECT * FROM marks WHERE name == 'Bob;").contains("semicolon"));
+        sendCommandToServer("DROP DATABASE lexerdb;");
+    }
+
+    @Test
+    public void handleLongLiteralTest() {
+        // Long literals are classified in one pass over their characters
+        sendCommandToServer("DROP DATABASE tokendb;");
+        sendCommandToServer("CREATE DATABASE tokendb;");
+        sendCommandToServer("USE tokendb;");
+        sendCommandToServer("CREATE TABLE notes (body, score);");
+        String body = "x".repeat(100000);
+        assertEquals("[OK]", sendCommandToServer("INSERT INTO notes VALUES ('" + body + "', .5);"));
+        assertEquals("[OK]\r\nscore\t\r\n.5\t\r\n", sendCommandToServer("select score from NOTES where BODY == '" + body + "';"));
+        assertEquals("[OK]\r\nbody\t\r\n" + body + "\t\r\n", sendCommandToServer("SELECT body FROM notes WHERE score LIKE '5';"));
+        sendCommandToServer("DROP DATABASE tokendb;");
+    }
+
+    @Test
+    public void handleConditionPrecedenceTest() {
+        // AND binds more tightly than OR, and brackets override both
+        sendCommandToServer("DROP DATABASE precedencedb;");
+        sendCommandToServer("CREATE DATABASE precedencedb;");
+        sendCommandToServer("USE precedencedb;");
+        sendCommandToServer("CREATE TABLE flags (a, b, c);");
+        sendCommandToServer("INSERT INTO flags VALUES (1, 0, 0);");
+        sendCommandToServer("INSERT INTO flags VALUES (0, 1, 1);");
+        sendCommandToServer("INSERT INTO flags VALUES (0, 1, 0);");
+        assertEquals("[OK]\r\nid\t\r\n1\t\r\n2\t\r\n",
+                sendCommandToServer("SELECT id FROM flags WHERE a == 1 OR b == 1 AND c == 1;"));
+        assertEquals("[OK]\r\nid\t\r\n2\t\r\n",
+                sendCommandToServer("SELECT id FROM flags WHERE (a == 1 OR b == 1) AND c == 1;"));
+        assertEquals("[OK]\r\nid\t\r\n2\t\r\n",
+                sendCommandToServer("SELECT id FROM flags WHERE b == 1 AND c == 1 OR a == 2;"));
+        // Quoted AND is a value, not an operator
+        assertEquals("[OK]\r\nid\t\r\n", sendCommandToServer("SELECT id FROM flags WHERE a == 'and';"));
+        // Long chains are parsed in one pass
+        StringBuilder chain = new StringBuilder("SELECT id FROM flags WHERE c == 1");
+        for (int i = 0; i < 250; i++) {
+            chain.append(i % 2 == 0 ? " OR " : " AND ").append("(a == ").append(i + 2).append(")");
+        }
+        assertEquals("[OK]\r\nid\t\r\n2\t\r\n", sendCommandToServer(chain + ";"));
+        assertTrue(sendCommandToServer("SELECT id FROM flags WHERE (a == 1;").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("SELECT id FROM flags WHERE a == 1);").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("SELECT id FROM flags WHERE a == 1 AND;").contains("[ERROR]"));
+        sendCommandToServer("DROP DATABASE precedencedb;");
+    }
+
+    @Test
+    public void handlePreparedStatementTest() {
+        // PREPARE saves a statement with ? placeholders, and EXECUTE runs it with values for them
+        sendCommandToServer("DROP DATABASE prepareddb;");
+        sendCommandToServer("CREATE DATABASE prepareddb;");
+        sendCommandToServer("USE prepareddb;");
+        sendCommandToServer("CREATE TABLE people (Name, Age);");
+        assertEquals("[OK]", sendCommandToServer("PREPARE addPerson AS INSERT INTO people VALUES (?, ?);"));
+        assertEquals("[OK]", sendCommandToServer("EXECUTE addPerson ('Steve', 40);"));
+        assertEquals("[OK]", sendCommandToServer("execute ADDPERSON ('Dave', 25);"));
+        assertEquals("[OK]", sendCommandToServer("PREPARE olderThan AS SELECT Name FROM People WHERE Age > ?;"));
+        assertEquals("[OK]\r\nName\t\r\nSteve\t\r\n", sendCommandToServer("EXECUTE olderThan (30);"));
+        assertEquals("[OK]", sendCommandToServer("PREPARE setAge AS UPDATE people SET Age = ? WHERE Name == ?;"));
+        assertEquals("[OK]", sendCommandToServer("EXECUTE setAge (50, 'Dave');"));
+        assertEquals("[OK]\r\nName\t\r\nDave\t\r\n", sendCommandToServer("EXECUTE olderThan (45);"));
+        // A quoted '?' is a value, not a placeholder
+        assertEquals("[OK]", sendCommandToServer("PREPARE question AS SELECT Name FROM people WHERE Name == '?';"));
+        assertEquals("[OK]\r\nName\t\r\n", sendCommandToServer("EXECUTE question;"));
+        // Errors
+        assertTrue(sendCommandToServer("EXECUTE olderThan (20, 30);").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("EXECUTE olderThan (20,);").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("EXECUTE missing (20);").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("PREPARE nested AS EXECUTE olderThan (20);").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("PREPARE broken AS people;").contains("[ERROR]"));
+        // Prepared statements belong to the session that prepared them
+        Session otherSession = server.createSession();
+        assertTrue(server.handleCommand("EXECUTE olderThan (20);", otherSession).contains("[ERROR]"));
+        sendCommandToServer("DROP DATABASE prepareddb;");
+    }
+
+    @Test
+    public void handleMultiRowInsertTest() {
+        // One INSERT can add many rows, which take consecutive ids
+        sendCommandToServer("DROP DATABASE bulkdb;");
+        sendCommandToServer("CREATE DATABASE bulkdb;");
+        sendCommandToServer("USE bulkdb;");
+        sendCommandToServer("CREATE TABLE items (name, quantity);");
+        assertEquals("[OK]", sendCommandToServer("INSERT INTO items VALUES ('a)', 1), ('b', 2),('c',3);"));
+        assertEquals("[OK]\r\nid\tname\tquantity\t\r\n1\ta)\t1\t\r\n2\tb\t2\t\r\n3\tc\t3\t\r\n",
+                sendCommandToServer("SELECT * FROM items;"));
+        // A row with the wrong number of values stops all of the rows from being inserted
+        assertTrue(sendCommandToServer("INSERT INTO items VALUES ('d', 4), ('e');").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("INSERT INTO items VALUES ('d', 4),;").contains("[ERROR]"));
+        assertTrue(sendCommandToServer("INSERT INTO items VALUES ('d', 4) ('e', 5);").contains("[ERROR]"));
+        assertEquals("[OK]\r\nid\t\r\n3\t\r\n", sendCommandToServer("SELECT id FROM items WHERE quantity > 2;"));
+        StringBuilder bulkInsert = new StringBuilder("INSERT INTO items VALUES ");
+        for (int i = 0; i < 10000; i++) {
+            bulkInsert.append(i == 0 ? "" : ", ").append("('bulk', ").append(i).append(")");
+        }
+        assertEquals("[OK]", sendCommandToServer(bulkInsert + ";"));
+        assertEquals("[OK]\r\nid\tname\tquantity\t\r\n10003\tbulk\t9999\t\r\n",
+                sendCommandToServer("SELECT * FROM items WHERE quantity == 9999;"));
+        // The rows are in the write-ahead log, so they survive a restart
+        server.close();
+        server = new DBServer();
+        sendCommandToServer("USE bulkdb;");
+        assertTrue(sendCommandToServer("SELECT * FROM items WHERE id == 10003;").contains("10003\tbulk\t9999"));
+        sendCommandToServer("DROP DATABASE bulkdb;");
+    }
+
+    @Test
+    public void handleConcurrentTableLoadTest() throws Exception {
+        // Sessions that miss the same table at the same time read it from disk only once
+        sendCommandToServer("DROP DATABASE loaddb;");
+        sendCommandToServer("CREATE DATABASE loaddb;");
+        sendCommandToServer("USE loaddb;");
+        sendCommandToServer("CREATE TABLE scores (name, score);");
+        StringBuilder insert = new StringBuilder("INSERT INTO scores VALUES ");
+        for (int i = 0; i < 2000; i++) {
+            insert.append(i == 0 ? "" : ", ").append("('player").append(i).append("', ").append(i).append(")");
+        }
+        sendCommandToServer(insert + ";");
+        sendCommandToServer("CREATE INDEX ON scores (score);");
+        server.close();
+        server = new DBServer();
+        TableCache tableCache = server.getTableCache();
+        long misses = tableCache.getMissCount();
+        Thread[] readers = new Thread[8];
+        String[] responses = new String[readers.length];
+        for (int i = 0; i < readers.length; i++) {
+            int reader = i;
+            readers[i] = new Thread(() -> {
+                Session session = server.createSession();
+                server.handleCommand("USE loaddb;", session);
+                responses[reader] = server.handleCommand("SELECT name FROM scores WHERE score == 1234;", session);
+            });
+            readers[i].start();
+        }
+        for (Thread reader : readers) reader.join();
+        for (String response : responses) {
+            assertEquals("[OK]\r\nname\t\r\nplayer1234\t\r\n", response);
+        }
+        assertEquals(misses + 1, tableCache.getMissCount(), "A table was read more than once by concurrent sessions");
+        sendCommandToServer("DROP DATABASE loaddb;");
+    }
+
+    private static boolean referenceMatches(String cell, String comparator, String value) {
+        if (comparator.equals("like")) return java.util.regex.Pattern.compile(value).matcher(cell).find();
+        Integer cellInteger = null;
+        Integer valueInteger = null;
+        try { cellInteger = Integer.parseInt(cell); } catch (NumberFormatException e) { }
+        try { valueInteger = Integer.parseInt(value); } catch (NumberFormatException e) { }
+        int comparison;
+        if (cellInteger != null && valueInteger != null) {
+            comparison = Integer.compare(cellInteger, valueInteger);
+        } else if (cellInteger == null && valueInteger == null) {
+            comparison = cell.compareTo(value);
+        } else {
+            return false;
+        }
+        return switch (comparator) {
+            case "==" -> comparison == 0;
+            case "!=" -> comparison != 0;
+            case ">" -> comparison > 0;
+            default -> comparison < 0;
+        };
+    }
+}